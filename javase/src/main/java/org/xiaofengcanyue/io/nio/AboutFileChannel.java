@@ -67,12 +67,18 @@ public class AboutFileChannel {
         }
     }
 
+    /**
+     * 用缓冲区在通道间复制，更完整的实现见FileCopier
+     * @param srcFilename
+     * @param destFilename 已存在时被覆盖
+     * @throws IOException
+     */
     public static void copyUseByteBuffer(String srcFilename,String destFilename) throws IOException{
         ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
         try(FileChannel src = FileChannel.open(
                 Paths.get(srcFilename),StandardOpenOption.READ);
             FileChannel dest = FileChannel.open(
-                Paths.get(destFilename),StandardOpenOption.WRITE,StandardOpenOption.CREATE)
+                Paths.get(destFilename),StandardOpenOption.WRITE,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)
             ){
             while(src.read(buffer)>0 || buffer.position() != 0){
                 buffer.flip();
@@ -82,19 +88,26 @@ public class AboutFileChannel {
         }
     }
 
+    /**
+     * transferTo一次可能只传输一部分(Linux上单次最多约2GB)，需要循环直到传输完
+     * @param srcFilename
+     * @param destFilename 已存在时被覆盖
+     * @throws IOException
+     */
     public static void copyUseChannelTransfer(String srcFilename,String destFilename) throws IOException{
         try(FileChannel src = FileChannel.open(
                 Paths.get(srcFilename),StandardOpenOption.READ);
             FileChannel dest = FileChannel.open(
-                Paths.get(destFilename),StandardOpenOption.WRITE,StandardOpenOption.CREATE
+                Paths.get(destFilename),StandardOpenOption.WRITE,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING
             )
         ){
-            src.transferTo(0,src.size(),dest);
+            FileCopier.transfer(src,dest,0,src.size());
         }
     }
 
     /**
      * map将文件的内容刷到内存中，可实现高性能读写。
+     * 一个MappedByteBuffer最多映射Integer.MAX_VALUE字节，更大的文件见SegmentedMappedFile。
      * @param srcFilename
      * @throws IOException
      */
@@ -109,6 +122,7 @@ public class AboutFileChannel {
 
     /**
      * 文件通道的锁在整个虚拟机中共享。因此不能用它来同步线程。
+     * 多个进程频繁读取的配置见SharedConfigStore，读取不加锁。
      * @throws IOException
      */
     public static void updateWithLock() throws IOException{
@@ -5,6 +5,7 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.MembershipKey;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 public class AboutMulticastChannel {
@@ -28,26 +29,28 @@ public class AboutMulticastChannel {
                 break;
             }
             String str = new Date().toString();
-            dc.send(ByteBuffer.wrap(str.getBytes()),new InetSocketAddress(group,port));
+            dc.send(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)),new InetSocketAddress(group,port));
         }
     }
 
+    /**
+     * 加入serverStart使用的组播组并接收一条消息，网卡由MulticastReceiver.defaultInterface()选择。
+     * 需要高速接收多个组时使用MulticastReceiver
+     * @throws IOException
+     */
     public static void clientStart() throws IOException{
-        NetworkInterface ni = NetworkInterface.getByName("eth1");
+        NetworkInterface ni = MulticastReceiver.defaultInterface();
         int port = 5000;
         try(DatagramChannel dc = DatagramChannel.open(StandardProtocolFamily.INET)
                 .setOption(StandardSocketOptions.SO_REUSEADDR,true)
                 .bind(new InetSocketAddress(port))
                 .setOption(StandardSocketOptions.IP_MULTICAST_IF,ni)){
-            InetAddress group = InetAddress.getByName("224.0.0.1");
+            InetAddress group = InetAddress.getByName("224.0.0.2");
             MembershipKey key = dc.join(group,ni);
             ByteBuffer buffer = ByteBuffer.allocate(1024);
             dc.receive(buffer);
             buffer.flip();
-            byte[] data = new byte[buffer.limit()];
-            buffer.get(data);
-            String str = new String(data);
-            System.out.println(str);
+            System.out.println(StandardCharsets.UTF_8.decode(buffer));
             key.drop();
         }
     }
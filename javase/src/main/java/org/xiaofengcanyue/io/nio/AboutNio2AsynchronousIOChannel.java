@@ -2,8 +2,10 @@ package org.xiaofengcanyue.io.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutionException;
@@ -32,17 +34,33 @@ public class AboutNio2AsynchronousIOChannel {
         Integer len = result.get();
     }
 
-    public static void startAsyncSimpleServer() throws IOException{
+    public static AsynchronousChannelGroup startAsyncSimpleServer() throws IOException{
         AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(10, Executors.defaultThreadFactory());
 
         /**
          此处若不指定channelgroup，则会使用系统默认的守护线程。因此会很快退出
          */
-        final AsynchronousServerSocketChannel serverSocketChannel = AsynchronousServerSocketChannel.open(group).bind(new InetSocketAddress(10080));
+        final AsynchronousServerSocketChannel serverSocketChannel = AsynchronousServerSocketChannel.open(group);
+        serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+        serverSocketChannel.bind(new InetSocketAddress(10080));
         serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
             @Override
-            public void completed(AsynchronousSocketChannel result, Void attachment) {
+            public void completed(final AsynchronousSocketChannel result, Void attachment) {
+                /**
+                 与AboutSocketChannel.startSimpleServer相同，返回固定字符串后关闭连接
+                 */
+                serverSocketChannel.accept(null,this);
+                result.write(ByteBuffer.wrap("Hello".getBytes(StandardCharsets.UTF_8)), null, new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer len, Void attachment) {
+                        close(result);
+                    }
 
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        close(result);
+                    }
+                });
             }
 
             @Override
@@ -50,5 +68,14 @@ public class AboutNio2AsynchronousIOChannel {
 
             }
         });
+        return group;
+    }
+
+    private static void close(AsynchronousSocketChannel channel){
+        try{
+            channel.close();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
     }
 }
@@ -45,7 +45,7 @@ public class AboutNio2Files {
 
 
     /**
-     * 继承 SimpleFileVisitor 对目录进行遍历
+     * 继承 SimpleFileVisitor 对目录进行遍历，单线程；多线程并行遍历、删除见ParallelFileWalker
      */
     public static class SvnInfoCleanVisitor extends SimpleFileVisitor<Path>{
         @Override
@@ -120,6 +120,7 @@ public class AboutNio2Files {
 
     /**
      * 用类似选择器的方式来监控目录
+     * 只监控当前目录，收到事件时文件可能还没写完；递归监控并合并事件见DirectoryWatcher
      * @throws IOException
      * @throws InterruptedException
      */
@@ -6,9 +6,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 public class AboutSocketChannel {
@@ -51,75 +49,15 @@ public class AboutSocketChannel {
 
     /**
      * 使用 选择器非阻塞客户端 访问服务器
+     * 由BulkHttpFetcher完成：限制并发连接数，每个URL一个输出文件(写在当前目录)，复用同一主机的持久连接
      */
     public static class LoadWebPageUseSelector{
-        public void load(Set<URL> urls) throws IOException{
-            Map<SocketAddress,String> mapping = urlToSocketAddress(urls);
-            Selector selector = Selector.open();
-            for(SocketAddress address:mapping.keySet()){
-                register(selector,address);
+        public List<BulkHttpFetcher.Result> load(Set<URL> urls) throws IOException{
+            List<BulkHttpFetcher.Result> results = new BulkHttpFetcher().fetch(urls,Paths.get("."));
+            for(BulkHttpFetcher.Result result : results){
+                System.out.println(result);
             }
-            int finished = 0, total = mapping.size();
-            ByteBuffer buffer = ByteBuffer.allocate( 32 * 1024);
-            int len = -1;
-            while(finished < total){
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while(iterator.hasNext()){
-                    SelectionKey key = iterator.next();
-                    iterator.remove();
-                    if(key.isValid() && key.isReadable()){
-                        SocketChannel channel = (SocketChannel) key.channel();
-                        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
-                        String filename = address.getHostName() + ".txt";
-                        FileChannel destChannel = FileChannel.open(Paths.get(filename),StandardOpenOption.APPEND,StandardOpenOption.CREATE);
-                        buffer.clear();
-                        while((len = channel.read(buffer)) > 0 || buffer.position() != 0){
-                            buffer.flip();
-                            destChannel.write(buffer);
-                            buffer.compact();
-                        }
-                        if(len == -1){
-                            finished++;
-                            key.cancel();
-                        }
-                    }else if(key.isValid() && key.isConnectable()){
-                        SocketChannel channel = (SocketChannel) key.channel();
-                        boolean success = channel.finishConnect();
-                        if(!success){
-                            finished++;
-                            key.cancel();
-                        }else{
-                            InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
-                            String path = mapping.get(address);
-                            String request = "GET "+path+" HTTP/1.0\r\n\r\nHOST:"+address.getHostString()+"\r\n\r\n";
-                            ByteBuffer header = ByteBuffer.wrap(request.getBytes("UTF-8"));
-                            channel.write(header);
-                        }
-                    }
-                }
-            }
-        }
-
-        private void register(Selector selector,SocketAddress address)throws IOException{
-            SocketChannel channel = SocketChannel.open();
-            channel.configureBlocking(false);
-            channel.connect(address);
-            channel.register(selector,SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
-        }
-
-        private Map<SocketAddress,String> urlToSocketAddress(Set<URL> urls){
-            Map<SocketAddress,String> mapping = new HashMap<>();
-            for(URL url:urls){
-                int port = url.getPort() != -1 ? url.getPort():url.getDefaultPort();
-                SocketAddress address = new InetSocketAddress(url.getHost(),port);
-                String path = url.getPath();
-                if(url.getQuery() != null){
-                    path = path + "?" +url.getQuery();
-                }
-                mapping.put(address,path);
-            }
-            return mapping;
+            return results;
         }
     }
 
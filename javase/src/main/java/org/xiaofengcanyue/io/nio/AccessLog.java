@@ -0,0 +1,353 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.FileHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * StaticFileHttpServer的访问日志。
+ * 请求线程只把一条记录(时间、方法、路径、状态码、字节数、耗时)写入预先分配的环形缓冲区，不格式化字符串、不加锁、不做I/O；
+ * 唯一的后台线程取出记录，编码到直接缓冲区中，攒满一批后写入FileChannel。
+ * 环形缓冲区已满时直接丢弃记录并计数，请求线程不会因为磁盘慢而被阻塞。
+ *
+ * 环形缓冲区是有界的多生产者队列：每个槽位有一个序号，
+ * 序号等于写位置时槽位空闲，生产者通过CAS占用写位置后填充槽位，再把序号设为写位置+1发布给消费者；
+ * 消费者读完后把序号设为读位置+容量，槽位在下一圈重新变为空闲。
+ * 槽位的各个字段是普通数组，可见性由AtomicLongArray中序号的写入和读取保证。
+ */
+public class AccessLog implements AutoCloseable{
+
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getName());
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    /**
+     * 一条记录编码后的最大长度，批量缓冲区剩余不足这么多时先写出
+     */
+    private static final int MAX_RECORD_SIZE = 4 * 1024;
+    /**
+     * 路径编码后的最大长度，超过时截断；其余字段和分隔符合计不超过128字节，一条记录不会超过MAX_RECORD_SIZE
+     */
+    private static final int MAX_PATH_SIZE = MAX_RECORD_SIZE - 128;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final HttpRequestParser.Method[] METHODS = HttpRequestParser.Method.values();
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final byte[] methods;
+    private final String[] paths;
+    private final int[] statuses;
+    private final long[] bytes;
+    private final long[] latencies;
+    private final AtomicLong writePosition = new AtomicLong();
+    private long readPosition;
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+
+    public AccessLog(Path file) throws IOException{
+        this(file,16 * 1024);
+    }
+
+    /**
+     * @param file 以追加方式打开，不存在时创建
+     * @param capacity 环形缓冲区的槽位数，向上取整为2的幂
+     * @throws IOException
+     */
+    public AccessLog(Path file,int capacity) throws IOException{
+        int size = Integer.highestOneBit(Math.max(2,capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0;i < size;i++){
+            sequences.set(i,i);
+        }
+        this.timestamps = new long[size];
+        this.methods = new byte[size];
+        this.paths = new String[size];
+        this.statuses = new int[size];
+        this.bytes = new long[size];
+        this.latencies = new long[size];
+        this.channel = FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.APPEND);
+        this.writer = new Thread(this::drain,"access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 记录一次请求，不会阻塞
+     * @param method
+     * @param path 请求路径，可以为null
+     * @param status
+     * @param bytesSent 实际写出的字节数，包括响应头
+     * @param latencyMicros 从收到完整请求头到响应写完的时间
+     * @return 缓冲区已满被丢弃时返回false
+     */
+    public boolean record(HttpRequestParser.Method method,String path,int status,long bytesSent,long latencyMicros){
+        if(closed){
+            dropped.increment();
+            return false;
+        }
+        long position;
+        int index;
+        while(true){
+            position = writePosition.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0){
+                if(writePosition.compareAndSet(position,position + 1)){
+                    break;
+                }
+            }else if(difference < 0){
+                /**
+                 槽位还没被消费者读走，说明缓冲区已满
+                 */
+                dropped.increment();
+                return false;
+            }
+        }
+        timestamps[index] = System.currentTimeMillis();
+        methods[index] = (byte) (method == null ? -1 : method.ordinal());
+        paths[index] = path;
+        statuses[index] = status;
+        bytes[index] = bytesSent;
+        latencies[index] = latencyMicros;
+        sequences.lazySet(index,position + 1);
+        return true;
+    }
+
+    /**
+     * 后台线程：有记录时尽量多取，缓冲区满或暂时没有新记录时写入文件；空闲时短暂park，请求线程不需要唤醒它。
+     */
+    private void drain(){
+        try{
+            while(true){
+                boolean stopping = closed;
+                int count = 0;
+                while(pollInto(batch)){
+                    count++;
+                    if(batch.remaining() < MAX_RECORD_SIZE){
+                        flush();
+                    }
+                }
+                if(batch.position() > 0){
+                    flush();
+                }
+                if(stopping){
+                    return;
+                }
+                if(count == 0){
+                    LockSupport.parkNanos(this,IDLE_PARK_NANOS);
+                }
+            }
+        }catch (IOException e){
+            LOGGER.log(Level.SEVERE,"访问日志写入失败，后续记录将被丢弃",e);
+            closed = true;
+        }
+    }
+
+    private boolean pollInto(ByteBuffer buffer){
+        int index = (int) readPosition & mask;
+        if(sequences.get(index) != readPosition + 1){
+            return false;
+        }
+        encode(buffer,index);
+        paths[index] = null;
+        sequences.lazySet(index,readPosition + mask + 1);
+        readPosition++;
+        written.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 每条记录一行，字段以空格分隔：毫秒时间戳 方法 路径 状态码 字节数 耗时(微秒)
+     */
+    private void encode(ByteBuffer buffer,int index){
+        putLong(buffer,timestamps[index]);
+        buffer.put((byte) ' ');
+        int method = methods[index];
+        putAscii(buffer,method < 0 ? "-" : METHODS[method].name());
+        buffer.put((byte) ' ');
+        buffer.put((byte) '/');
+        putPath(buffer,paths[index]);
+        buffer.put((byte) ' ');
+        putLong(buffer,statuses[index]);
+        buffer.put((byte) ' ');
+        putLong(buffer,bytes[index]);
+        buffer.put((byte) ' ');
+        putLong(buffer,latencies[index]);
+        buffer.put((byte) '\n');
+    }
+
+    private static void putAscii(ByteBuffer buffer,String str){
+        for(int i = 0;i < str.length();i++){
+            buffer.put((byte) str.charAt(i));
+        }
+    }
+
+    /**
+     * 空白和控制字符转义为%XX，保证每条记录占一行、字段不会错位；非ASCII字符按UTF-8编码。
+     * 编码后超过MAX_PATH_SIZE时在字符边界截断：每个字符最多编码为4字节，写入前剩余不足4字节就停止。
+     */
+    private static void putPath(ByteBuffer buffer,String path){
+        if(path == null){
+            return;
+        }
+        int stop = buffer.position() + MAX_PATH_SIZE - 4;
+        for(int i = 0;i < path.length() && buffer.position() <= stop;i++){
+            char c = path.charAt(i);
+            if(c <= ' ' || c == 0x7f){
+                buffer.put((byte) '%');
+                buffer.put((byte) Character.toUpperCase(Character.forDigit(c >> 4,16)));
+                buffer.put((byte) Character.toUpperCase(Character.forDigit(c & 0xf,16)));
+            }else if(c < 0x80){
+                buffer.put((byte) c);
+            }else{
+                int end = Character.isHighSurrogate(c) && i + 1 < path.length() ? i + 2 : i + 1;
+                buffer.put(path.substring(i,end).getBytes(StandardCharsets.UTF_8));
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void putLong(ByteBuffer buffer,long value){
+        if(value < 0){
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while(value / divisor >= 10){
+            divisor *= 10;
+        }
+        for(;divisor > 0;divisor /= 10){
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void flush() throws IOException{
+        batch.flip();
+        while(batch.hasRemaining()){
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    public long getWritten(){
+        return written.get();
+    }
+
+    /**
+     * 停止接收新记录，写出缓冲区中剩余的记录后关闭文件
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        closed = true;
+        LockSupport.unpark(writer);
+        try{
+            writer.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    @Override
+    public String toString(){
+        return "written=" + getWritten() + ", dropped=" + getDropped();
+    }
+
+    public static void main(String[] args) throws Exception{
+        benchmark(4,1000000);
+    }
+
+    /**
+     * 多个线程同时记录请求，比较写入AccessLog与通过java.util.logging同步写入文件时每条记录在请求线程上的耗时。
+     * @param threads
+     * @param recordsPerThread
+     * @throws Exception
+     */
+    public static void benchmark(int threads,final int recordsPerThread) throws Exception{
+        Path logFile = Files.createTempFile("access",".log");
+        final AccessLog accessLog = new AccessLog(logFile);
+        long nanos = runConcurrently(threads,new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0;i < recordsPerThread;i++){
+                    accessLog.record(HttpRequestParser.Method.GET,"static/index.html",200,1024 + i,i & 1023);
+                }
+            }
+        });
+        accessLog.close();
+        System.out.println("AccessLog：" + nanos / ((long) threads * recordsPerThread) + " ns/条，" + accessLog + "，文件大小：" + Files.size(logFile));
+        Files.delete(logFile);
+
+        Path julFile = Files.createTempFile("jul",".log");
+        final Logger logger = Logger.getLogger(AccessLog.class.getName() + ".benchmark");
+        logger.setUseParentHandlers(false);
+        FileHandler handler = new FileHandler(julFile.toString());
+        handler.setFormatter(new SimpleFormatter());
+        logger.addHandler(handler);
+        final int julRecords = recordsPerThread / 10;
+        nanos = runConcurrently(threads,new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0;i < julRecords;i++){
+                    logger.log(Level.INFO,"处理请求：{0} {1} {2} {3} {4}",new Object[]{HttpRequestParser.Method.GET,"static/index.html",200,1024 + i,i & 1023});
+                }
+            }
+        });
+        handler.close();
+        logger.removeHandler(handler);
+        System.out.println("Logger.log：" + nanos / ((long) threads * julRecords) + " ns/条");
+        Files.delete(julFile);
+    }
+
+    private static long runConcurrently(int threads,final Runnable task) throws InterruptedException{
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int i = 0;i < threads;i++){
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try{
+                        start.await();
+                        task.run();
+                    }catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
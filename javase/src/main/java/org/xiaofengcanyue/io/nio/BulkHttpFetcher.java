@@ -0,0 +1,868 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 使用选择器的批量HTTP下载，由AboutSocketChannel.LoadWebPageUseSelector改写而来：
+ * 同时打开的连接数有上限(每个主机另有上限)，其余请求排队；
+ * 每个请求对应一个输出文件，收到响应头时打开、响应结束时关闭；
+ * 请求按URL区分而不是按解析后的地址，同一主机的多个路径互不影响；
+ * 使用HTTP/1.1持久连接，同一主机的后续请求复用空闲连接；
+ * 每个请求记录排队、建立连接、首字节和总耗时。
+ *
+ * 只支持http。响应体按Content-Length、chunked或读到连接关闭确定边界，输出文件中只有响应体。
+ * 所有连接都在调用fetch的线程上处理，实例不是线程安全的。
+ */
+public class BulkHttpFetcher {
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 100;
+
+    private int maxConnections = 16;
+    private int maxConnectionsPerHost = 6;
+    private long connectTimeoutMillis = 5000;
+    private long readTimeoutMillis = 15000;
+    private boolean keepAlive = true;
+
+    /**
+     * 一次fetch调用内的状态
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private Selector selector;
+    private final ArrayDeque<Host> ready = new ArrayDeque<>();
+    /**
+     * 所有主机的空闲连接，按变为空闲的先后排列，连接数达到上限时先关闭最早空闲的连接
+     */
+    private final LinkedHashSet<Connection> idle = new LinkedHashSet<>();
+    private long fetchStartNanos;
+    private int openConnections;
+    private int unfinished;
+    private int connectionsOpened;
+    private int peakConnections;
+
+    public void setMaxConnections(int maxConnections) {
+        if(maxConnections <= 0){
+            throw new IllegalArgumentException("maxConnections必须大于0：" + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if(maxConnectionsPerHost <= 0){
+            throw new IllegalArgumentException("maxConnectionsPerHost必须大于0：" + maxConnectionsPerHost);
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * @param readTimeoutMillis 连接上没有任何数据的最长时间，空闲连接超过这个时间也会关闭
+     */
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return 上一次fetch新建的连接数
+     */
+    public int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    /**
+     * @return 上一次fetch中同时打开的最大连接数
+     */
+    public int getPeakConnections() {
+        return peakConnections;
+    }
+
+    /**
+     * 一个请求的结果，耗时都从请求开始处理(新建连接或取得空闲连接)时算起
+     */
+    public static final class Result{
+        private final URL url;
+        private final Path output;
+        private final String requestPath;
+        private int status;
+        private long bodyBytes;
+        private boolean reused;
+        private boolean retried;
+        private long startNanos;
+        private long waitNanos;
+        private long connectNanos;
+        private long firstByteNanos;
+        private long totalNanos;
+        private IOException error;
+
+        Result(URL url,Path output){
+            this.url = url;
+            this.output = output;
+            String path = url.getPath().isEmpty() ? "/" : url.getPath();
+            this.requestPath = url.getQuery() == null ? path : path + "?" + url.getQuery();
+        }
+
+        public URL getUrl(){
+            return url;
+        }
+
+        public Path getOutput(){
+            return output;
+        }
+
+        /**
+         * @return 响应状态码，没有收到响应时为0
+         */
+        public int getStatus(){
+            return status;
+        }
+
+        public long getBodyBytes(){
+            return bodyBytes;
+        }
+
+        /**
+         * @return 是否在复用的持久连接上完成
+         */
+        public boolean isReused(){
+            return reused;
+        }
+
+        /**
+         * @return 从fetch开始到请求开始处理的排队时间
+         */
+        public long getWaitNanos(){
+            return waitNanos;
+        }
+
+        /**
+         * @return 建立连接的时间，复用连接时为0
+         */
+        public long getConnectNanos(){
+            return connectNanos;
+        }
+
+        public long getFirstByteNanos(){
+            return firstByteNanos;
+        }
+
+        public long getTotalNanos(){
+            return totalNanos;
+        }
+
+        /**
+         * @return 失败原因，成功收到完整响应(包括4xx、5xx)时为null
+         */
+        public IOException getError(){
+            return error;
+        }
+
+        @Override
+        public String toString(){
+            if(error != null){
+                return url + " ===> " + error;
+            }
+            return url + " ===> " + output + ", status=" + status + ", " + bodyBytes + " bytes" + (reused ? ", reused" : "")
+                    + String.format(Locale.ROOT,", wait=%.3fms, connect=%.3fms, firstByte=%.3fms, total=%.3fms",
+                    waitNanos / 1e6,connectNanos / 1e6,firstByteNanos / 1e6,totalNanos / 1e6);
+        }
+    }
+
+    /**
+     * 按“主机:端口”区分，地址只解析一次
+     */
+    private static final class Host{
+        private final String name;
+        private final int port;
+        private final String hostHeader;
+        private InetSocketAddress address;
+        private final ArrayDeque<Result> pending = new ArrayDeque<>();
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private int open;
+        private boolean ready;
+
+        Host(URL url){
+            this.name = url.getHost();
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            this.hostHeader = url.getPort() != -1 && url.getPort() != url.getDefaultPort() ? name + ":" + port : name;
+        }
+    }
+
+    /**
+     * 把urls下载到directory中，文件名为序号加上URL中的主机和路径
+     * @param urls
+     * @param directory 不存在时创建
+     * @return 与urls顺序相同的结果
+     * @throws IOException
+     */
+    public List<Result> fetch(Collection<URL> urls,Path directory) throws IOException{
+        Files.createDirectories(directory);
+        List<URL> urlList = new ArrayList<>(urls);
+        List<Path> outputs = new ArrayList<>(urlList.size());
+        for(int i = 0;i < urlList.size();i++){
+            URL url = urlList.get(i);
+            String name = (url.getHost() + url.getPath()).replaceAll("[^A-Za-z0-9._-]","_");
+            if(name.length() > 100){
+                name = name.substring(0,100);
+            }
+            outputs.add(directory.resolve(String.format("%04d-%s",i,name)));
+        }
+        return fetch(urlList,outputs);
+    }
+
+    /**
+     * 下载所有URL，全部完成(成功、失败或超时)后返回
+     * @param urls 可以重复，也可以是同一主机的不同路径
+     * @param outputs 与urls一一对应的输出文件
+     * @return 与urls顺序相同的结果
+     * @throws IOException 选择器出错
+     */
+    public List<Result> fetch(List<URL> urls,List<Path> outputs) throws IOException{
+        if(urls.size() != outputs.size()){
+            throw new IllegalArgumentException("urls与outputs的数量不一致");
+        }
+        List<Result> results = new ArrayList<>(urls.size());
+        /**
+         不使用URL作为键，URL.equals和hashCode会解析主机名
+         */
+        Map<String,Host> hosts = new HashMap<>();
+        fetchStartNanos = System.nanoTime();
+        unfinished = 0;
+        openConnections = 0;
+        connectionsOpened = 0;
+        peakConnections = 0;
+        for(int i = 0;i < urls.size();i++){
+            URL url = urls.get(i);
+            Result result = new Result(url,outputs.get(i));
+            results.add(result);
+            if(!"http".equalsIgnoreCase(url.getProtocol())){
+                result.error = new IOException("不支持的协议：" + url.getProtocol());
+                continue;
+            }
+            Host host = new Host(url);
+            String key = host.name.toLowerCase(Locale.ROOT) + ":" + host.port;
+            Host existing = hosts.get(key);
+            if(existing == null){
+                hosts.put(key,host);
+            }else{
+                host = existing;
+            }
+            host.pending.add(result);
+            markReady(host);
+            unfinished++;
+        }
+        selector = Selector.open();
+        try{
+            dispatch();
+            while(unfinished > 0){
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()){
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try{
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        if(key.isConnectable()){
+                            connection.finishConnect();
+                            continue;
+                        }
+                        if(key.isWritable()){
+                            connection.writeRequest();
+                        }
+                        if(key.isValid() && key.isReadable()){
+                            connection.read();
+                        }
+                    }catch (IOException e){
+                        connection.abort(e,true);
+                    }
+                }
+                checkTimeouts();
+                dispatch();
+            }
+        }finally {
+            for(SelectionKey key : new ArrayList<>(selector.keys())){
+                ((Connection) key.attachment()).abort(new IOException("下载已停止"),false);
+            }
+            selector.close();
+            selector = null;
+            ready.clear();
+            idle.clear();
+        }
+        return results;
+    }
+
+    private void markReady(Host host){
+        if(!host.ready && !host.pending.isEmpty() && host.open < maxConnectionsPerHost){
+            host.ready = true;
+            ready.addLast(host);
+        }
+    }
+
+    /**
+     * 轮流为各主机的排队请求分配连接，直到连接数达到上限并且没有可以关闭的空闲连接
+     */
+    private void dispatch(){
+        while(!ready.isEmpty()){
+            Host host = ready.peekFirst();
+            if(host.pending.isEmpty() || host.open >= maxConnectionsPerHost){
+                ready.pollFirst();
+                host.ready = false;
+                continue;
+            }
+            Connection reusable = host.idle.pollFirst();
+            if(reusable == null && openConnections >= maxConnections){
+                Iterator<Connection> oldest = idle.iterator();
+                if(!oldest.hasNext()){
+                    break;
+                }
+                oldest.next().abort(null,false);
+            }
+            ready.pollFirst();
+            host.ready = false;
+            Result result = host.pending.pollFirst();
+            if(reusable != null){
+                idle.remove(reusable);
+                reusable.start(result);
+            }else{
+                open(host,result);
+            }
+            markReady(host);
+        }
+    }
+
+    private void open(Host host,Result result){
+        result.startNanos = System.nanoTime();
+        result.waitNanos = result.startNanos - fetchStartNanos;
+        result.reused = false;
+        if(host.address == null){
+            InetSocketAddress address = new InetSocketAddress(host.name,host.port);
+            if(address.isUnresolved()){
+                UnknownHostException e = new UnknownHostException(host.name);
+                finish(result,e);
+                for(Result pending : host.pending){
+                    pending.startNanos = result.startNanos;
+                    pending.waitNanos = result.waitNanos;
+                    finish(pending,e);
+                }
+                host.pending.clear();
+                return;
+            }
+            host.address = address;
+        }
+        SocketChannel channel = null;
+        Connection connection = null;
+        try{
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY,true);
+            connection = new Connection(host,channel,result);
+            host.open++;
+            openConnections++;
+            connectionsOpened++;
+            peakConnections = Math.max(peakConnections,openConnections);
+            if(channel.connect(host.address)){
+                connection.key = channel.register(selector,0,connection);
+                connection.finishConnect();
+            }else{
+                connection.key = channel.register(selector,SelectionKey.OP_CONNECT,connection);
+            }
+        }catch (IOException e){
+            if(connection != null){
+                connection.abort(e,false);
+            }else{
+                if(channel != null){
+                    try{
+                        channel.close();
+                    }catch (IOException ignored){
+                    }
+                }
+                finish(result,e);
+            }
+        }
+    }
+
+    private void finish(Result result,IOException error){
+        result.error = error;
+        result.totalNanos = System.nanoTime() - result.startNanos;
+        unfinished--;
+    }
+
+    private void checkTimeouts(){
+        long now = System.nanoTime();
+        long connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        long readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        for(SelectionKey key : new ArrayList<>(selector.keys())){
+            Connection connection = (Connection) key.attachment();
+            if(!key.isValid()){
+                continue;
+            }
+            if(!connection.connected){
+                if(now - connection.lastActivityNanos > connectTimeoutNanos){
+                    connection.abort(new SocketTimeoutException("建立连接超时"),false);
+                }
+            }else if(now - connection.lastActivityNanos > readTimeoutNanos){
+                connection.abort(connection.current == null ? null : new SocketTimeoutException("读取超时"),false);
+            }
+        }
+    }
+
+    private enum State{
+        STATUS_LINE,
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END,
+        TRAILERS,
+        UNTIL_CLOSE,
+        DONE
+    }
+
+    private final class Connection{
+        private final Host host;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected;
+        private boolean closed;
+        private long lastActivityNanos = System.nanoTime();
+        private int served;
+
+        private Result current;
+        private ByteBuffer request;
+        private FileChannel output;
+        private boolean receivedAny;
+        private State state;
+        private final StringBuilder line = new StringBuilder();
+        private boolean http11;
+        private boolean keepAliveResponse;
+        private boolean chunked;
+        private long contentLength;
+        private long remaining;
+
+        Connection(Host host,SocketChannel channel,Result current){
+            this.host = host;
+            this.channel = channel;
+            this.current = current;
+        }
+
+        void finishConnect() throws IOException{
+            if(!channel.finishConnect()){
+                return;
+            }
+            connected = true;
+            lastActivityNanos = System.nanoTime();
+            current.connectNanos = lastActivityNanos - current.startNanos;
+            start(current);
+        }
+
+        /**
+         * 在这个连接上开始一个请求
+         */
+        void start(Result result){
+            if(served > 0){
+                result.startNanos = System.nanoTime();
+                result.waitNanos = result.startNanos - fetchStartNanos;
+                result.connectNanos = 0;
+                result.reused = true;
+            }
+            current = result;
+            receivedAny = false;
+            state = State.STATUS_LINE;
+            line.setLength(0);
+            String text = "GET " + result.requestPath + " HTTP/1.1\r\nHost: " + host.hostHeader + "\r\nAccept: */*\r\n"
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            request = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            try{
+                writeRequest();
+            }catch (IOException e){
+                abort(e,true);
+            }
+        }
+
+        void writeRequest() throws IOException{
+            channel.write(request);
+            lastActivityNanos = System.nanoTime();
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException{
+            buffer.clear();
+            int len = channel.read(buffer);
+            if(len == -1){
+                if(state == State.UNTIL_CLOSE){
+                    complete();
+                }else{
+                    abort(current == null ? null : new EOFException("响应结束前连接已关闭"),true);
+                }
+                return;
+            }
+            lastActivityNanos = System.nanoTime();
+            if(current == null){
+                /**
+                 空闲连接上不应该收到数据
+                 */
+                abort(null,false);
+                return;
+            }
+            if(!receivedAny){
+                receivedAny = true;
+                current.firstByteNanos = lastActivityNanos - current.startNanos;
+            }
+            buffer.flip();
+            consume();
+            if(state == State.DONE){
+                if(buffer.hasRemaining()){
+                    keepAliveResponse = false;
+                }
+                complete();
+            }
+        }
+
+        private void consume() throws IOException{
+            String text;
+            while(state != State.DONE && buffer.hasRemaining()){
+                switch (state){
+                    case STATUS_LINE:
+                        if((text = readLine()) != null){
+                            parseStatusLine(text);
+                        }
+                        break;
+                    case HEADERS:
+                        if((text = readLine()) != null){
+                            if(text.isEmpty()){
+                                headersComplete();
+                            }else{
+                                parseHeader(text);
+                            }
+                        }
+                        break;
+                    case BODY:
+                        remaining -= writeBody(remaining);
+                        if(remaining == 0){
+                            state = State.DONE;
+                        }
+                        break;
+                    case CHUNK_SIZE:
+                        if((text = readLine()) != null){
+                            remaining = parseChunkSize(text);
+                            state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                        }
+                        break;
+                    case CHUNK_DATA:
+                        remaining -= writeBody(remaining);
+                        if(remaining == 0){
+                            state = State.CHUNK_END;
+                        }
+                        break;
+                    case CHUNK_END:
+                        if((text = readLine()) != null){
+                            if(!text.isEmpty()){
+                                throw new IOException("chunk数据后缺少CRLF");
+                            }
+                            state = State.CHUNK_SIZE;
+                        }
+                        break;
+                    case TRAILERS:
+                        if((text = readLine()) != null && text.isEmpty()){
+                            state = State.DONE;
+                        }
+                        break;
+                    case UNTIL_CLOSE:
+                        writeBody(Long.MAX_VALUE);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return 读到完整的一行时返回去掉CRLF后的内容，否则返回null，已读的部分留在line中
+         */
+        private String readLine() throws IOException{
+            while(buffer.hasRemaining()){
+                byte b = buffer.get();
+                if(b == '\n'){
+                    int length = line.length();
+                    if(length > 0 && line.charAt(length - 1) == '\r'){
+                        line.setLength(length - 1);
+                    }
+                    String text = line.toString();
+                    line.setLength(0);
+                    return text;
+                }
+                if(line.length() >= MAX_LINE_LENGTH){
+                    throw new IOException("响应头中的行过长");
+                }
+                line.append((char) (b & 0xff));
+            }
+            return null;
+        }
+
+        private void parseStatusLine(String text) throws IOException{
+            if(!text.startsWith("HTTP/1.") || text.length() < 12){
+                throw new IOException("无效的状态行：" + text);
+            }
+            try{
+                current.status = Integer.parseInt(text.substring(9,12));
+            }catch (NumberFormatException e){
+                throw new IOException("无效的状态行：" + text);
+            }
+            http11 = text.charAt(7) != '0';
+            keepAliveResponse = http11;
+            chunked = false;
+            contentLength = -1;
+            state = State.HEADERS;
+        }
+
+        private void parseHeader(String text) throws IOException{
+            int colon = text.indexOf(':');
+            if(colon <= 0){
+                throw new IOException("无效的响应头：" + text);
+            }
+            String name = text.substring(0,colon).trim().toLowerCase(Locale.ROOT);
+            String value = text.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+            if("content-length".equals(name)){
+                try{
+                    contentLength = Long.parseLong(value);
+                }catch (NumberFormatException e){
+                    throw new IOException("无效的Content-Length：" + value);
+                }
+            }else if("transfer-encoding".equals(name)){
+                chunked = value.endsWith("chunked");
+            }else if("connection".equals(name)){
+                if(value.contains("close")){
+                    keepAliveResponse = false;
+                }else if(value.contains("keep-alive")){
+                    keepAliveResponse = true;
+                }
+            }
+        }
+
+        private void headersComplete() throws IOException{
+            int status = current.status;
+            if(status >= 100 && status < 200){
+                /**
+                 忽略100 Continue等临时响应
+                 */
+                current.status = 0;
+                state = State.STATUS_LINE;
+                return;
+            }
+            output = FileChannel.open(current.output,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+            if(status == 204 || status == 304){
+                state = State.DONE;
+            }else if(chunked){
+                state = State.CHUNK_SIZE;
+            }else if(contentLength >= 0){
+                remaining = contentLength;
+                state = remaining == 0 ? State.DONE : State.BODY;
+            }else{
+                keepAliveResponse = false;
+                state = State.UNTIL_CLOSE;
+            }
+        }
+
+        private long parseChunkSize(String text) throws IOException{
+            int extension = text.indexOf(';');
+            String size = (extension == -1 ? text : text.substring(0,extension)).trim();
+            try{
+                long value = Long.parseLong(size,16);
+                if(value < 0){
+                    throw new NumberFormatException();
+                }
+                return value;
+            }catch (NumberFormatException e){
+                throw new IOException("无效的chunk大小：" + text);
+            }
+        }
+
+        /**
+         * 把buffer中至多max个字节写入输出文件
+         * @return 写入的字节数
+         */
+        private int writeBody(long max) throws IOException{
+            int length = (int) Math.min(buffer.remaining(),max);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            while(buffer.hasRemaining()){
+                output.write(buffer);
+            }
+            buffer.limit(limit);
+            current.bodyBytes += length;
+            return length;
+        }
+
+        private void complete(){
+            Result result = current;
+            current = null;
+            try{
+                closeOutput();
+            }catch (IOException e){
+                finish(result,e);
+                abort(null,false);
+                return;
+            }
+            result.totalNanos = System.nanoTime() - result.startNanos;
+            unfinished--;
+            served++;
+            if(!keepAlive || !keepAliveResponse){
+                abort(null,false);
+                return;
+            }
+            Result next = host.pending.pollFirst();
+            if(next != null){
+                start(next);
+            }else{
+                key.interestOps(SelectionKey.OP_READ);
+                host.idle.addFirst(this);
+                idle.add(this);
+            }
+        }
+
+        /**
+         * 关闭连接。当前请求如果是在复用的连接上、还没有收到任何响应就失败了(服务器关闭了空闲连接)，
+         * 放回队首重试一次，否则以error结束。
+         * @param error 为null时表示正常关闭
+         * @param retryable
+         */
+        void abort(IOException error,boolean retryable){
+            if(closed){
+                return;
+            }
+            closed = true;
+            try{
+                channel.close();
+            }catch (IOException ignored){
+            }
+            try{
+                closeOutput();
+            }catch (IOException ignored){
+            }
+            host.open--;
+            openConnections--;
+            if(idle.remove(this)){
+                host.idle.remove(this);
+            }
+            Result result = current;
+            current = null;
+            if(result != null){
+                if(retryable && served > 0 && !receivedAny && !result.retried){
+                    result.retried = true;
+                    host.pending.addFirst(result);
+                }else{
+                    finish(result,error != null ? error : new IOException("连接已关闭"));
+                }
+            }
+            markReady(host);
+        }
+
+        private void closeOutput() throws IOException{
+            if(output != null){
+                FileChannel channel = output;
+                output = null;
+                channel.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        Path root = Files.createTempDirectory("fetch");
+        fetchFromLocalServer(root,100);
+    }
+
+    /**
+     * 启动StaticFileHttpServer作为本地服务器，分别使用持久连接和短连接下载同一组URL，
+     * 检查每个输出文件的大小，打印连接数和耗时分布
+     * @param root 测试文件所在目录
+     * @param copies 每个测试文件请求的次数
+     * @throws Exception
+     */
+    public static void fetchFromLocalServer(Path root,int copies) throws Exception{
+        Logger.getLogger("org.xiaofengcanyue.io.nio").setLevel(Level.WARNING);
+        long[] sizes = {1024,64 * 1024,1024 * 1024};
+        List<String> files = HttpLoadGenerator.createFiles(root,sizes);
+        List<URL> urls = new ArrayList<>();
+        List<Long> expected = new ArrayList<>();
+        for(int i = 0;i < copies;i++){
+            for(int j = 0;j < files.size();j++){
+                urls.add(new URL("http","localhost",ServerConfig.DEFAULT_PORT,files.get(j)));
+                expected.add(sizes[j]);
+            }
+        }
+        urls.add(new URL("http","localhost",ServerConfig.DEFAULT_PORT,"/missing.txt"));
+        expected.add(-1L);
+
+        StaticFileHttpServer server = StaticFileHttpServer.open(root,new ServerConfig(),StaticFileHttpServer.CopyStrategy.MAPPED,new StaticFileCache(),null);
+        try{
+            BulkHttpFetcher fetcher = new BulkHttpFetcher();
+            fetcher.setMaxConnections(8);
+            for(boolean keepAlive : new boolean[]{true,false}){
+                fetcher.setKeepAlive(keepAlive);
+                Path directory = Files.createTempDirectory("fetch-output");
+                long begin = System.nanoTime();
+                List<Result> results = fetcher.fetch(urls,directory);
+                long elapsed = System.nanoTime() - begin;
+                LatencyHistogram total = new LatencyHistogram();
+                int errors = 0;
+                int mismatches = 0;
+                for(int i = 0;i < results.size();i++){
+                    Result result = results.get(i);
+                    if(result.getError() != null){
+                        errors++;
+                        continue;
+                    }
+                    total.record(result.getTotalNanos());
+                    long expectedSize = expected.get(i);
+                    boolean ok = expectedSize < 0 ? result.getStatus() == 404
+                            : result.getStatus() == 200 && Files.size(result.getOutput()) == expectedSize;
+                    if(!ok){
+                        mismatches++;
+                    }
+                }
+                System.out.println((keepAlive ? "keep-alive" : "close") + " ===> " + results.size() + " requests in "
+                        + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, connections opened=" + fetcher.getConnectionsOpened()
+                        + ", peak=" + fetcher.getPeakConnections() + ", errors=" + errors + ", mismatches=" + mismatches + ", " + total);
+                System.out.println("    " + results.get(results.size() - 2));
+            }
+        }finally {
+            server.close();
+        }
+    }
+}
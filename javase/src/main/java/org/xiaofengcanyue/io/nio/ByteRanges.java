@@ -0,0 +1,97 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解析Range请求头，例如 bytes=0-499,500-999,-500,9500-
+ */
+class ByteRanges {
+
+    /**
+     * 一个请求中允许的最大区间数，防止客户端用大量细碎的区间放大响应
+     */
+    static final int MAX_RANGES = 16;
+    private static final String UNIT = "bytes=";
+
+    private ByteRanges(){}
+
+    /**
+     * @param header Range请求头的值
+     * @param size 文件大小
+     * @return 每个元素为{start,end}，end不包含在内，按start排序，重叠或相邻的区间已合并(RFC 7233 6.1)，
+     *         例如bytes=0-,0-只发送一次完整文件；格式错误或区间过多时返回null，表示忽略Range按完整文件响应；
+     *         所有区间都超出文件范围时返回空列表，应当返回416
+     */
+    static List<long[]> parse(String header,long size){
+        if(!header.regionMatches(true,0,UNIT,0,UNIT.length())){
+            return null;
+        }
+        String[] specs = header.substring(UNIT.length()).split(",");
+        if(specs.length > MAX_RANGES){
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for(String spec : specs){
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash == -1){
+                return null;
+            }
+            long start;
+            long end;
+            try{
+                if(dash == 0){
+                    /**
+                     -500 表示最后500个字节
+                     */
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if(suffix == 0){
+                        continue;
+                    }
+                    start = Math.max(0,size - suffix);
+                    end = size;
+                }else{
+                    start = Long.parseLong(spec.substring(0,dash));
+                    if(dash == spec.length() - 1){
+                        end = size;
+                    }else{
+                        long last = Long.parseLong(spec.substring(dash + 1));
+                        if(last < start){
+                            return null;
+                        }
+                        end = Math.min(size,last + 1);
+                    }
+                }
+            }catch (NumberFormatException e){
+                return null;
+            }
+            if(start < 0){
+                return null;
+            }
+            if(start < size && start < end){
+                ranges.add(new long[]{start,end});
+            }
+        }
+        return ranges.isEmpty() ? Collections.<long[]>emptyList() : coalesce(ranges);
+    }
+
+    private static List<long[]> coalesce(List<long[]> ranges){
+        if(ranges.size() == 1){
+            return ranges;
+        }
+        ranges.sort((a,b) -> Long.compare(a[0],b[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        long[] last = null;
+        for(long[] range : ranges){
+            if(last != null && range[0] <= last[1]){
+                last[1] = Math.max(last[1],range[1]);
+            }else{
+                last = range;
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,494 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 直接缓冲区池。容量按2的幂分级，每级的缓冲区从一块较大的直接内存(slab)中slice出来，减少allocateDirect的次数；
+ * 每个线程对每一级有一个小的本地缓存，取用和归还通常不需要同步；本地缓存按字节数限制，容量大的级别缓存的个数少，
+ * 最大的几级可能不在本地缓存。本地缓存满了一半转移到该级的全局空闲列表，
+ * 全局空闲列表有上限，超出的缓冲区直接丢弃，由GC在slab的所有缓冲区都不可达后回收内存。
+ * 超过最大级别的请求单独分配，归还时立即释放。
+ *
+ * acquire返回的缓冲区position为0，limit为请求的大小(capacity可能更大)，字节序为BIG_ENDIAN，
+ * 上一个使用者留下的position、limit、mark和字节序(见AboutBuffer.byteOrder)都会被重置，但内容不会清零。
+ * 归还之后不能再使用该缓冲区以及由它创建的视图(slice、duplicate、asIntBuffer等)；同一个缓冲区不能归还两次。
+ *
+ * 开启泄漏检测后，acquire返回的是池中缓冲区的duplicate并记录分配位置，它在归还前被GC回收时记录一条警告；
+ * 泄漏的缓冲区不会回到池中，因为由它创建的视图可能仍在使用。检测有额外开销，适合测试环境。
+ */
+public class DirectBufferPool {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectBufferPool.class.getName());
+
+    private final int minShift;
+    private final int maxSize;
+    private final int classCount;
+    private final int[] maxGlobalBuffers;
+    private final ArrayDeque<ByteBuffer>[] globals;
+    private int slabSize = 1024 * 1024;
+    private int localCacheSize = 16;
+    private long localCacheBytes = 2L * 1024 * 1024;
+    private volatile boolean leakDetection;
+
+    private final ThreadLocal<LocalCache> locals = new ThreadLocal<LocalCache>(){
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache(localCapacities());
+        }
+    };
+
+    /**
+     * 泄漏检测：以acquire返回的缓冲区(弱引用)为键
+     */
+    private final ConcurrentHashMap<Tracker,Tracker> outstanding = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder globalHits = new LongAdder();
+    private final LongAdder slabs = new LongAdder();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * 一个线程的本地缓存，每一级一个栈，栈的长度即该级的容量，可能为0
+     */
+    private static final class LocalCache{
+        private final ByteBuffer[][] stacks;
+        private final int[] sizes;
+
+        LocalCache(int[] capacities){
+            stacks = new ByteBuffer[capacities.length][];
+            for(int i = 0;i < capacities.length;i++){
+                stacks[i] = new ByteBuffer[capacities[i]];
+            }
+            sizes = new int[capacities.length];
+        }
+    }
+
+    /**
+     * 按身份比较的弱引用，查找时用一个临时的Tracker(同样按引用的对象比较)
+     */
+    private static final class Tracker extends WeakReference<ByteBuffer>{
+        private final int hash;
+        private final ByteBuffer pooled;
+        private final Throwable allocation;
+
+        Tracker(ByteBuffer buffer,ByteBuffer pooled,Throwable allocation,ReferenceQueue<ByteBuffer> queue){
+            super(buffer,queue);
+            this.hash = System.identityHashCode(buffer);
+            this.pooled = pooled;
+            this.allocation = allocation;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj){
+                return true;
+            }
+            if(!(obj instanceof Tracker)){
+                return false;
+            }
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((Tracker) obj).get();
+        }
+    }
+
+    /**
+     * 容量4KB到1MB，全局空闲列表共32MB
+     */
+    public DirectBufferPool(){
+        this(4 * 1024,1024 * 1024,32L * 1024 * 1024);
+    }
+
+    /**
+     * @param minSize 最小级别，向上取整为2的幂
+     * @param maxSize 最大级别，向上取整为2的幂，更大的请求不经过池
+     * @param maxFreeBytes 全局空闲列表缓存的总字节数上限，平均分给各级，每级至少一个
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public DirectBufferPool(int minSize,int maxSize,long maxFreeBytes){
+        this.minShift = 32 - Integer.numberOfLeadingZeros(Math.max(minSize,16) - 1);
+        int maxShift = Math.max(minShift,32 - Integer.numberOfLeadingZeros(maxSize - 1));
+        this.maxSize = 1 << maxShift;
+        this.classCount = maxShift - minShift + 1;
+        this.globals = new ArrayDeque[classCount];
+        this.maxGlobalBuffers = new int[classCount];
+        for(int i = 0;i < classCount;i++){
+            globals[i] = new ArrayDeque<>();
+            maxGlobalBuffers[i] = (int) Math.max(1,maxFreeBytes / classCount >> (minShift + i));
+        }
+    }
+
+    /**
+     * @param slabSize 每次向系统申请的直接内存大小，小于某一级的容量时该级每次只分配一个缓冲区。需在第一次acquire之前设置
+     */
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * @param localCacheSize 每个线程每一级最多缓存的缓冲区数，为0时不使用本地缓存。需在第一次acquire之前设置
+     */
+    public void setLocalCacheSize(int localCacheSize) {
+        this.localCacheSize = localCacheSize;
+    }
+
+    /**
+     * @param localCacheBytes 每个线程本地缓存的总字节数上限，平均分给各级，某一级分到的字节数不足一个缓冲区时该级不在本地缓存。
+     *                        需在第一次acquire之前设置
+     */
+    public void setLocalCacheBytes(long localCacheBytes) {
+        this.localCacheBytes = localCacheBytes;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @param size 需要的字节数
+     * @return position为0、limit为size的直接缓冲区，用完后调用release归还
+     */
+    public ByteBuffer acquire(int size){
+        if(size < 0){
+            throw new IllegalArgumentException("size不能为负数：" + size);
+        }
+        acquires.increment();
+        ByteBuffer buffer;
+        if(size > maxSize){
+            buffer = ByteBuffer.allocateDirect(size);
+            allocatedBytes.addAndGet(size);
+        }else{
+            buffer = take(sizeClass(size));
+        }
+        if(leakDetection){
+            pollLeaks();
+            ByteBuffer pooled = buffer;
+            buffer = pooled.duplicate();
+            Tracker tracker = new Tracker(buffer,pooled,new Throwable("分配位置"),collected);
+            outstanding.put(tracker,tracker);
+        }
+        buffer.clear().limit(size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * 归还acquire返回的缓冲区
+     * @param buffer
+     * @throws IllegalArgumentException 不是本池分配的缓冲区
+     * @throws IllegalStateException 开启泄漏检测时，重复归还
+     */
+    public void release(ByteBuffer buffer){
+        if(buffer.isDirect() && (leakDetection || !outstanding.isEmpty())){
+            Tracker tracker = outstanding.remove(new Tracker(buffer,null,null,null));
+            if(tracker != null){
+                tracker.clear();
+                buffer = tracker.pooled;
+            }else if(leakDetection){
+                throw new IllegalStateException("缓冲区已归还或不是本池分配的");
+            }
+            pollLeaks();
+        }
+        int capacity = buffer.capacity();
+        if(!buffer.isDirect() || (capacity <= maxSize && (Integer.bitCount(capacity) != 1 || capacity < (1 << minShift)))){
+            throw new IllegalArgumentException("不是本池分配的缓冲区，capacity=" + capacity);
+        }
+        releases.increment();
+        if(capacity > maxSize){
+            allocatedBytes.addAndGet(-capacity);
+            DirectBuffers.release(buffer);
+            return;
+        }
+        give(Integer.numberOfTrailingZeros(capacity) - minShift,buffer);
+    }
+
+    /**
+     * 本地缓存各级的容量：不超过localCacheSize个，且不超过该级分到的localCacheBytes
+     */
+    private int[] localCapacities(){
+        int[] capacities = new int[classCount];
+        long bytesPerClass = localCacheBytes / classCount;
+        for(int i = 0;i < classCount;i++){
+            capacities[i] = (int) Math.min(localCacheSize,bytesPerClass >> (minShift + i));
+        }
+        return capacities;
+    }
+
+    private int sizeClass(int size){
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size,1) - 1);
+        return Math.max(0,shift - minShift);
+    }
+
+    private ByteBuffer take(int sizeClass){
+        LocalCache cache = localCacheSize > 0 ? locals.get() : null;
+        ByteBuffer[] local = cache != null && cache.stacks[sizeClass].length > 0 ? cache.stacks[sizeClass] : null;
+        int[] sizes = cache != null ? cache.sizes : null;
+        if(local != null && sizes[sizeClass] > 0){
+            ByteBuffer buffer = local[--sizes[sizeClass]];
+            local[sizes[sizeClass]] = null;
+            return buffer;
+        }
+        ArrayDeque<ByteBuffer> global = globals[sizeClass];
+        synchronized (global){
+            ByteBuffer buffer = global.poll();
+            if(buffer != null){
+                /**
+                 顺便取回最多半个本地缓存，之后的acquire不再访问全局列表
+                 */
+                int batch = local != null ? Math.min(global.size(),local.length / 2) : 0;
+                for(int i = 0;i < batch;i++){
+                    local[sizes[sizeClass]++] = global.poll();
+                }
+                globalHits.increment();
+                return buffer;
+            }
+        }
+        return allocateSlab(sizeClass,local,sizes);
+    }
+
+    /**
+     * 分配一个slab并切分成该级的缓冲区，第一个返回，其余放入本地缓存，放不下的放入全局列表
+     */
+    private ByteBuffer allocateSlab(int sizeClass,ByteBuffer[] local,int[] sizes){
+        int bufferSize = 1 << (minShift + sizeClass);
+        int count = Math.max(1,slabSize / bufferSize);
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+        slabs.increment();
+        allocatedBytes.addAndGet((long) bufferSize * count);
+        ByteBuffer first = null;
+        List<ByteBuffer> overflow = new ArrayList<>();
+        for(int i = 0;i < count;i++){
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            ByteBuffer buffer = slab.slice();
+            if(first == null){
+                first = buffer;
+            }else if(local != null && sizes[sizeClass] < local.length){
+                local[sizes[sizeClass]++] = buffer;
+            }else{
+                overflow.add(buffer);
+            }
+        }
+        if(!overflow.isEmpty()){
+            ArrayDeque<ByteBuffer> global = globals[sizeClass];
+            synchronized (global){
+                for(ByteBuffer buffer : overflow){
+                    if(global.size() >= maxGlobalBuffers[sizeClass]){
+                        break;
+                    }
+                    global.add(buffer);
+                }
+            }
+        }
+        return first;
+    }
+
+    private void give(int sizeClass,ByteBuffer buffer){
+        LocalCache cache = localCacheSize > 0 ? locals.get() : null;
+        ByteBuffer[] local = cache != null ? cache.stacks[sizeClass] : null;
+        if(local != null && local.length > 0){
+            int[] sizes = cache.sizes;
+            if(sizes[sizeClass] < local.length){
+                local[sizes[sizeClass]++] = buffer;
+                return;
+            }
+            /**
+             本地缓存已满：连同刚归还的，把一半转移到全局列表
+             */
+            ArrayDeque<ByteBuffer> global = globals[sizeClass];
+            int keep = local.length / 2;
+            synchronized (global){
+                if(global.size() < maxGlobalBuffers[sizeClass]){
+                    global.add(buffer);
+                }
+                while(sizes[sizeClass] > keep){
+                    ByteBuffer moved = local[--sizes[sizeClass]];
+                    local[sizes[sizeClass]] = null;
+                    if(global.size() < maxGlobalBuffers[sizeClass]){
+                        global.add(moved);
+                    }
+                }
+            }
+            return;
+        }
+        ArrayDeque<ByteBuffer> global = globals[sizeClass];
+        synchronized (global){
+            if(global.size() < maxGlobalBuffers[sizeClass]){
+                global.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * 处理已被GC回收但没有归还的缓冲区
+     */
+    private void pollLeaks(){
+        Tracker tracker;
+        while((tracker = (Tracker) collected.poll()) != null){
+            if(outstanding.remove(tracker) != null){
+                leaks.incrementAndGet();
+                LOGGER.log(Level.WARNING,"直接缓冲区在归还前被回收，capacity=" + tracker.pooled.capacity(),tracker.allocation);
+            }
+        }
+    }
+
+    /**
+     * @return 开启泄漏检测后发现的泄漏数，调用时先处理已被回收的缓冲区
+     */
+    public long getLeaks(){
+        pollLeaks();
+        return leaks.get();
+    }
+
+    /**
+     * @return 已取出还没有归还的缓冲区数
+     */
+    public long getOutstanding(){
+        return acquires.sum() - releases.sum() - leaks.get();
+    }
+
+    public long getAcquires(){
+        return acquires.sum();
+    }
+
+    public long getGlobalHits(){
+        return globalHits.sum();
+    }
+
+    public long getSlabs(){
+        return slabs.sum();
+    }
+
+    /**
+     * @return 向系统申请的直接内存字节数，包括仍在使用的单独分配的缓冲区
+     */
+    public long getAllocatedBytes(){
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "acquires=" + getAcquires() + ", globalHits=" + getGlobalHits() + ", slabs=" + getSlabs()
+                + ", allocatedBytes=" + getAllocatedBytes() + ", outstanding=" + getOutstanding() + ", leaks=" + leaks.get();
+    }
+
+    public static void main(String[] args) throws Exception{
+        benchmark(4,1000 * 1000,16 * 1024);
+        leakDemo();
+    }
+
+    /**
+     * threads个线程各执行operations次：取一个size字节的缓冲区，写入64字节后读一个值，归还；
+     * 比较池、每次allocateDirect和每次allocate(堆缓冲区)
+     * @param threads
+     * @param operations 每个线程的操作数
+     * @param size
+     * @throws InterruptedException
+     */
+    public static void benchmark(int threads,final int operations,final int size) throws InterruptedException{
+        final DirectBufferPool pool = new DirectBufferPool();
+        run("DirectBufferPool",threads,operations,new Allocator() {
+            @Override
+            public ByteBuffer acquire() {
+                return pool.acquire(size);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+        });
+        System.out.println("    " + pool);
+        /**
+         allocateDirect很慢且内存要等GC回收Cleaner后才释放，操作数减少到1/10
+         */
+        run("allocateDirect",threads,operations / 10,new Allocator() {
+            @Override
+            public ByteBuffer acquire() {
+                return ByteBuffer.allocateDirect(size);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+            }
+        });
+        run("allocate",threads,operations,new Allocator() {
+            @Override
+            public ByteBuffer acquire() {
+                return ByteBuffer.allocate(size);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+            }
+        });
+    }
+
+    private interface Allocator{
+        ByteBuffer acquire();
+
+        void release(ByteBuffer buffer);
+    }
+
+    private static void run(String name,int threads,final int operations,final Allocator allocator) throws InterruptedException{
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong checksum = new AtomicLong();
+        long begin = System.nanoTime();
+        for(int t = 0;t < threads;t++){
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long sum = 0;
+                    for(int i = 0;i < operations;i++){
+                        ByteBuffer buffer = allocator.acquire();
+                        for(int j = 0;j < 8;j++){
+                            buffer.putLong(i);
+                        }
+                        sum += buffer.getLong(0);
+                        allocator.release(buffer);
+                    }
+                    checksum.addAndGet(sum);
+                    done.countDown();
+                }
+            },"buffer-pool-" + t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(String.format("%s ===> %.0f ns/operation (checksum %d)",
+                name,(double) elapsed / ((long) threads * operations),checksum.get()));
+    }
+
+    /**
+     * 开启泄漏检测，取出一个缓冲区后丢弃，GC之后报告泄漏
+     * @throws InterruptedException
+     */
+    public static void leakDemo() throws InterruptedException{
+        DirectBufferPool pool = new DirectBufferPool();
+        pool.setLeakDetection(true);
+        pool.release(pool.acquire(1000));
+        pool.acquire(5000);
+        for(int i = 0;i < 10 && pool.getLeaks() == 0;i++){
+            System.gc();
+            Thread.sleep(100);
+        }
+        System.out.println("leak detection ===> " + pool);
+    }
+}
@@ -0,0 +1,80 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * 立即释放直接缓冲区和MappedByteBuffer的内存。JDK没有公开的释放方法，通常要等GC回收缓冲区对象：
+ * 大量映射时虚拟地址空间和文件句柄会长时间占用，直接内存可能先于堆耗尽。
+ *
+ * JDK9及以上使用sun.misc.Unsafe.invokeCleaner，JDK8调用缓冲区的cleaner().clean()，都不可用时什么也不做，仍由GC回收。
+ * 释放后不能再访问该缓冲区及其视图，否则JVM会崩溃。
+ */
+final class DirectBuffers {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final boolean JDK8_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        boolean jdk8Cleaner = false;
+        try{
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner",ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        }catch (ReflectiveOperationException | RuntimeException e){
+            invokeCleaner = null;
+            try{
+                Method cleaner = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                jdk8Cleaner = true;
+            }catch (ReflectiveOperationException | RuntimeException ignored){
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        JDK8_CLEANER = jdk8Cleaner;
+    }
+
+    private DirectBuffers(){
+    }
+
+    /**
+     * @return 能否立即释放，为false时release什么也不做
+     */
+    static boolean canRelease(){
+        return INVOKE_CLEANER != null || JDK8_CLEANER;
+    }
+
+    /**
+     * 释放直接缓冲区，buffer必须是allocateDirect或map返回的缓冲区本身，不能是slice、duplicate等视图
+     * @return 是否已释放
+     */
+    static boolean release(ByteBuffer buffer){
+        if(buffer == null || !buffer.isDirect()){
+            return false;
+        }
+        try{
+            if(INVOKE_CLEANER != null){
+                INVOKE_CLEANER.invoke(UNSAFE,buffer);
+                return true;
+            }
+            if(JDK8_CLEANER){
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if(cleaner != null){
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    return true;
+                }
+            }
+        }catch (ReflectiveOperationException | RuntimeException ignored){
+        }
+        return false;
+    }
+}
@@ -0,0 +1,655 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 递归监控一个目录树中普通文件的变化。
+ * AboutNio2Files.calculate只注册当前目录，每个事件立即调用Files.size，文件可能还没写完。
+ *
+ * 启动时注册所有子目录并记录每个文件的大小和修改时间(快照)，之后新建的子目录自动注册，并补上注册之前就已在其中创建的文件。
+ * 同一文件在短时间内的多个事件合并为一个变化(例如创建后多次修改仍是CREATED，创建后删除则没有变化)，
+ * 文件安静quietMillis之后才交付，持续写入的文件最迟maxDelayMillis后交付；交付前读取文件属性，与快照相同的修改被忽略。
+ * 事件队列溢出(OVERFLOW)时重新扫描整个目录树，与快照比较得出遗漏的变化。
+ * 变化按批交付给监听器，监听器在监控线程上调用，处理得慢时事件在WatchService中积压，溢出后由重新扫描补上。
+ */
+public class DirectoryWatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    public enum Kind{
+        CREATED,
+        MODIFIED,
+        DELETED
+    }
+
+    /**
+     * 一个文件合并后的变化，DELETED时size为-1
+     */
+    public static final class Change{
+        private final Kind kind;
+        private final Path path;
+        private final long size;
+
+        Change(Kind kind,Path path,long size){
+            this.kind = kind;
+            this.path = path;
+            this.size = size;
+        }
+
+        public Kind getKind(){
+            return kind;
+        }
+
+        public Path getPath(){
+            return path;
+        }
+
+        public long getSize(){
+            return size;
+        }
+
+        @Override
+        public String toString(){
+            return kind + " " + path + (kind == Kind.DELETED ? "" : " ===> " + size);
+        }
+    }
+
+    public interface Listener{
+        /**
+         * @param changes 一批变化，每个文件最多出现一次
+         */
+        void onChanges(List<Change> changes);
+    }
+
+    private static final class FileState{
+        private final long size;
+        private final long modified;
+
+        FileState(BasicFileAttributes attributes){
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean sameAs(FileState other){
+            return other != null && size == other.size && modified == other.modified;
+        }
+    }
+
+    private static final class Pending{
+        private Kind kind;
+        private final long firstNanos;
+        private long lastNanos;
+
+        Pending(Kind kind,long nanos){
+            this.kind = kind;
+            this.firstNanos = nanos;
+            this.lastNanos = nanos;
+        }
+    }
+
+    private final Path root;
+    private final Listener listener;
+    private long quietMillis = 200;
+    private long maxDelayMillis = 2000;
+    private int maxBatchSize = 1000;
+
+    private WatchService service;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * 以下状态只由监控线程访问(start中的初始扫描在线程启动之前)
+     */
+    private final Map<WatchKey,Path> keys = new HashMap<>();
+    private final Map<Path,WatchKey> directories = new HashMap<>();
+    private final Map<Path,FileState> snapshot = new HashMap<>();
+    private final LinkedHashMap<Path,Pending> pending = new LinkedHashMap<>();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile int watchedDirectories;
+    private volatile int knownFiles;
+
+    public DirectoryWatcher(Path root,Listener listener){
+        this.root = root.toAbsolutePath().normalize();
+        this.listener = listener;
+    }
+
+    /**
+     * @param quietMillis 文件在这段时间内没有新的事件才交付
+     */
+    public void setQuietMillis(long quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    /**
+     * @param maxDelayMillis 从第一个事件起最多等待的时间，持续变化的文件也会交付
+     */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * 注册目录树并记录快照，然后启动监控线程；已存在的文件不会作为变化交付
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException{
+        if(thread != null){
+            throw new IllegalStateException("已经启动");
+        }
+        service = root.getFileSystem().newWatchService();
+        scan(root,false);
+        thread = new Thread(this::run,"directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run(){
+        try{
+            while(!closed){
+                long timeoutNanos = settle(System.nanoTime());
+                WatchKey key = timeoutNanos < 0 ? service.take() : service.poll(timeoutNanos,TimeUnit.NANOSECONDS);
+                while(key != null){
+                    process(key);
+                    key = service.poll();
+                }
+            }
+        }catch (ClosedWatchServiceException | InterruptedException e){
+            /**
+             close
+             */
+        }catch (RuntimeException e){
+            LOGGER.log(Level.SEVERE,"目录监控线程异常退出",e);
+        }
+    }
+
+    private void process(WatchKey key){
+        Path directory = keys.get(key);
+        for(WatchEvent<?> event : key.pollEvents()){
+            events.incrementAndGet();
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                overflows.incrementAndGet();
+                rescan();
+                continue;
+            }
+            if(directory == null){
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+                if(directories.containsKey(path)){
+                    directoryDeleted(path);
+                }else{
+                    record(path,Kind.DELETED);
+                }
+            }else if(Files.isDirectory(path,LinkOption.NOFOLLOW_LINKS)){
+                WatchKey previous = directories.get(path);
+                /**
+                 已注册过的路径重新注册一次：仍是原来的目录时得到同一个key，不必再遍历；否则目录已被替换，register换成新的key
+                 */
+                if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && (previous == null || (register(path) && directories.get(path) != previous))){
+                    try{
+                        scan(path,true);
+                    }catch (IOException e){
+                        LOGGER.log(Level.WARNING,"注册目录失败：" + path,e);
+                    }
+                }
+            }else{
+                record(path,snapshot.containsKey(path) ? Kind.MODIFIED : Kind.CREATED);
+            }
+        }
+        if(!key.reset()){
+            Path removed = keys.remove(key);
+            if(removed != null && directories.get(removed) == key){
+                directoryDeleted(removed);
+            }
+        }
+    }
+
+    /**
+     * 注册directory及其所有子目录，某个子目录注册失败时跳过它的子树，不影响其他目录
+     * @param report 为true时把快照中没有的文件记为CREATED，用于新建的目录：注册之前在其中创建的文件不会产生事件
+     */
+    private void scan(Path directory,final boolean report) throws IOException{
+        Files.walkFileTree(directory,new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return register(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(!attrs.isRegularFile()){
+                    return FileVisitResult.CONTINUE;
+                }
+                if(report){
+                    if(!snapshot.containsKey(file)){
+                        record(file,Kind.CREATED);
+                    }
+                }else{
+                    snapshot.put(file,new FileState(attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        watchedDirectories = directories.size();
+        knownFiles = snapshot.size();
+    }
+
+    /**
+     * 注册一个目录。同一个目录重复注册得到同一个key；路径上已注册的key不同时，原来的目录已被删除后重建或被另一个目录替换
+     * (rename覆盖时父目录只有创建事件，旧目录失效的key可能还没有处理)，按directoryReplaced处理
+     * @return 目录在遍历过程中被删除(事件积压时很常见)或无法注册时返回false，调用方跳过它的子树
+     */
+    private boolean register(Path dir){
+        try{
+            WatchKey key = dir.register(service,StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,StandardWatchEventKinds.ENTRY_DELETE);
+            WatchKey previous = directories.get(dir);
+            if(key == previous){
+                return true;
+            }
+            if(previous != null){
+                directoryReplaced(dir);
+            }
+            keys.put(key,dir);
+            directories.put(dir,key);
+            return true;
+        }catch (IOException e){
+            LOGGER.log(e instanceof NoSuchFileException ? Level.FINE : Level.WARNING,"注册目录失败：" + dir,e);
+            return false;
+        }
+    }
+
+    /**
+     * 事件丢失后重新扫描整个目录树，与快照比较。
+     * 没有完整遍历的目录(注册或读取失败)下的文件不会因为没有看到而记为DELETED，
+     * 目录确实被删除时由它失效的WatchKey通过directoryDeleted处理；遍历中途终止时不比较删除的文件。
+     */
+    private void rescan(){
+        final Set<Path> seen = new HashSet<>();
+        final List<Path> incomplete = new ArrayList<>();
+        try{
+            Files.walkFileTree(root,new SimpleFileVisitor<Path>(){
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if(register(dir)){
+                        return FileVisitResult.CONTINUE;
+                    }
+                    incomplete.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile()){
+                        seen.add(file);
+                        FileState known = snapshot.get(file);
+                        if(known == null){
+                            record(file,Kind.CREATED);
+                        }else if(!known.sameAs(new FileState(attrs))){
+                            record(file,Kind.MODIFIED);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    incomplete.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    if(exc != null){
+                        incomplete.add(dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }catch (IOException e){
+            LOGGER.log(Level.WARNING,"重新扫描失败：" + root,e);
+            watchedDirectories = directories.size();
+            return;
+        }
+        for(Path path : snapshot.keySet()){
+            if(!seen.contains(path) && !isUnder(path,incomplete)){
+                record(path,Kind.DELETED);
+            }
+        }
+        watchedDirectories = directories.size();
+    }
+
+    private static boolean isUnder(Path path,List<Path> directories){
+        for(Path directory : directories){
+            if(path.startsWith(directory)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 目录被删除：取消它和子目录的注册，快照中其下的文件记为DELETED
+     */
+    private void directoryDeleted(Path directory){
+        unregister(directory);
+        for(Path path : snapshot.keySet()){
+            if(path.startsWith(directory)){
+                record(path,Kind.DELETED);
+            }
+        }
+        watchedDirectories = directories.size();
+    }
+
+    /**
+     * 路径上换成了另一个目录：取消旧目录和子目录的注册，快照中其下的文件记为MODIFIED，
+     * 交付时按文件的当前状态确定是修改、删除还是没有变化；新目录由调用方注册和遍历
+     */
+    private void directoryReplaced(Path directory){
+        unregister(directory);
+        for(Path path : snapshot.keySet()){
+            if(path.startsWith(directory)){
+                record(path,Kind.MODIFIED);
+            }
+        }
+    }
+
+    private void unregister(Path directory){
+        Iterator<Map.Entry<Path,WatchKey>> iterator = directories.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<Path,WatchKey> entry = iterator.next();
+            if(entry.getKey().startsWith(directory)){
+                entry.getValue().cancel();
+                keys.remove(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 与同一文件尚未交付的变化合并
+     */
+    private void record(Path path,Kind kind){
+        long now = System.nanoTime();
+        Pending current = pending.get(path);
+        if(current == null){
+            pending.put(path,new Pending(kind,now));
+            return;
+        }
+        current.lastNanos = now;
+        switch (current.kind){
+            case CREATED:
+                if(kind == Kind.DELETED){
+                    pending.remove(path);
+                }
+                break;
+            case MODIFIED:
+                current.kind = kind == Kind.DELETED ? Kind.DELETED : Kind.MODIFIED;
+                break;
+            default:
+                /**
+                 删除后又创建：对监听器来说是内容被替换
+                 */
+                current.kind = kind == Kind.DELETED ? Kind.DELETED : Kind.MODIFIED;
+                break;
+        }
+    }
+
+    /**
+     * 交付已经安静下来的变化
+     * @return 距下一个变化到期的纳秒数，没有待交付的变化时返回-1
+     */
+    private long settle(long now){
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        long next = Long.MAX_VALUE;
+        List<Change> changes = new ArrayList<>();
+        Iterator<Map.Entry<Path,Pending>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<Path,Pending> entry = iterator.next();
+            Pending change = entry.getValue();
+            long due = Math.min(change.lastNanos + quietNanos,change.firstNanos + maxDelayNanos);
+            if(due - now > 0){
+                next = Math.min(next,due - now);
+                continue;
+            }
+            iterator.remove();
+            Change resolved = resolve(entry.getKey(),change.kind);
+            if(resolved != null){
+                changes.add(resolved);
+            }
+        }
+        knownFiles = snapshot.size();
+        for(int from = 0;from < changes.size();from += maxBatchSize){
+            List<Change> batch = changes.subList(from,Math.min(changes.size(),from + maxBatchSize));
+            batches.incrementAndGet();
+            delivered.addAndGet(batch.size());
+            try{
+                listener.onChanges(new ArrayList<>(batch));
+            }catch (RuntimeException e){
+                LOGGER.log(Level.WARNING,"监听器出错",e);
+            }
+        }
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    /**
+     * 读取文件的当前属性确定最终的变化并更新快照
+     * @return 对监听器没有意义的变化(创建后又删除、属性没有变化)返回null
+     */
+    private Change resolve(Path path,Kind kind){
+        FileState known = snapshot.get(path);
+        if(kind != Kind.DELETED){
+            try{
+                BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class,LinkOption.NOFOLLOW_LINKS);
+                if(attributes.isRegularFile()){
+                    FileState state = new FileState(attributes);
+                    if(state.sameAs(known)){
+                        return null;
+                    }
+                    snapshot.put(path,state);
+                    return new Change(known == null ? Kind.CREATED : Kind.MODIFIED,path,state.size);
+                }
+            }catch (NoSuchFileException e){
+                /**
+                 交付前已被删除
+                 */
+            }catch (IOException e){
+                LOGGER.log(Level.FINE,"读取文件属性失败：" + path,e);
+                return null;
+            }
+        }
+        if(snapshot.remove(path) == null){
+            return null;
+        }
+        return new Change(Kind.DELETED,path,-1);
+    }
+
+    public long getEvents(){
+        return events.get();
+    }
+
+    public long getOverflows(){
+        return overflows.get();
+    }
+
+    public long getBatches(){
+        return batches.get();
+    }
+
+    public long getDelivered(){
+        return delivered.get();
+    }
+
+    public int getWatchedDirectories(){
+        return watchedDirectories;
+    }
+
+    /**
+     * @return 快照中的文件数，即已交付的状态下存在的文件数
+     */
+    public int getKnownFiles(){
+        return knownFiles;
+    }
+
+    /**
+     * 停止监控，尚未交付的变化被丢弃；等待监控线程退出时被中断则恢复中断标记并提前返回
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        Thread watcher;
+        synchronized (this){
+            if(closed){
+                return;
+            }
+            closed = true;
+            watcher = thread;
+        }
+        if(service != null){
+            service.close();
+        }
+        if(watcher == null || watcher == Thread.currentThread()){
+            return;
+        }
+        try{
+            watcher.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "events=" + getEvents() + ", overflows=" + getOverflows() + ", batches=" + getBatches()
+                + ", delivered=" + getDelivered() + ", watchedDirectories=" + getWatchedDirectories() + ", knownFiles=" + getKnownFiles();
+    }
+
+    public static void main(String[] args) throws Exception{
+        ingestDemo(Files.createTempDirectory("watch"),20,500,4);
+    }
+
+    /**
+     * 在监控的目录中新建directories个子目录(每个带一层嵌套)，每个目录写入filesPerDirectory个文件，
+     * 每个文件分chunks次写入，再删除一半的子目录；等到变化交付完，比较交付的变化数与事件数，并检查快照与磁盘一致
+     * @param root 结束后删除
+     * @param directories
+     * @param filesPerDirectory
+     * @param chunks
+     * @throws Exception
+     */
+    public static void ingestDemo(Path root,int directories,int filesPerDirectory,int chunks) throws Exception{
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong modified = new AtomicLong();
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong partial = new AtomicLong();
+        final long expectedSize = 1024L * chunks;
+        DirectoryWatcher watcher = new DirectoryWatcher(root,new Listener() {
+            @Override
+            public void onChanges(List<Change> changes) {
+                for(Change change : changes){
+                    switch (change.getKind()){
+                        case CREATED:
+                            created.incrementAndGet();
+                            if(change.getSize() != expectedSize){
+                                partial.incrementAndGet();
+                            }
+                            break;
+                        case MODIFIED:
+                            modified.incrementAndGet();
+                            break;
+                        default:
+                            deleted.incrementAndGet();
+                    }
+                }
+            }
+        });
+        watcher.start();
+        try{
+            byte[] chunk = new byte[1024];
+            long begin = System.nanoTime();
+            for(int d = 0;d < directories;d++){
+                Path directory = Files.createDirectories(root.resolve("d" + d).resolve("nested"));
+                for(int f = 0;f < filesPerDirectory;f++){
+                    Path file = directory.resolve("f" + f);
+                    Files.write(file,chunk);
+                    for(int c = 1;c < chunks;c++){
+                        Files.write(file,chunk,StandardOpenOption.APPEND);
+                    }
+                }
+            }
+            for(int d = 0;d < directories;d += 2){
+                deleteTree(root.resolve("d" + d));
+            }
+            long written = System.nanoTime() - begin;
+            long expectedFiles = (long) (directories / 2) * filesPerDirectory;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while(watcher.getKnownFiles() != expectedFiles && System.nanoTime() < deadline){
+                Thread.sleep(50);
+            }
+            Thread.sleep(watcher.quietMillis * 2);
+            System.out.println(String.format("wrote %d files in %d chunks each, deleted %d, in %.1f ms",
+                    (long) directories * filesPerDirectory,chunks,(long) ((directories + 1) / 2) * filesPerDirectory,written / 1e6));
+            System.out.println(String.format("delivered created=%d (partial %d), modified=%d, deleted=%d; files on disk %d",
+                    created.get(),partial.get(),modified.get(),deleted.get(),expectedFiles));
+            System.out.println(watcher);
+        }finally {
+            watcher.close();
+            deleteTree(root);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException{
+        Files.walkFileTree(root,new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
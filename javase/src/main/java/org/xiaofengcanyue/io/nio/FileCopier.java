@@ -0,0 +1,392 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文件复制：按文件大小选择复制方式，大文件切分成若干区间，用位置读写并行复制。
+ *
+ * 每个区间使用各自打开的通道：transferTo写入目标通道的当前位置，共享一个目标通道无法并行。
+ * transferTo一次可能只传输一部分(Linux上sendfile单次最多约2GB)，因此循环直到区间复制完。
+ */
+public class FileCopier implements AutoCloseable {
+
+    public enum Strategy{
+        /**
+         * 按文件大小自动选择，见select
+         */
+        AUTO,
+        /**
+         * 堆缓冲区读写，JDK内部还要经过一次临时直接缓冲区
+         */
+        HEAP_BUFFER,
+        /**
+         * 直接缓冲区读写，少一次复制，缓冲区从DirectBufferPool中取用
+         */
+        DIRECT_BUFFER,
+        /**
+         * transferTo，Linux上为sendfile，数据不经过用户空间
+         */
+        TRANSFER,
+        /**
+         * 两端都映射到内存，按窗口逐段复制
+         */
+        MAPPED
+    }
+
+    private Strategy strategy = Strategy.AUTO;
+    private int parallelism = Math.max(2,Math.min(8,Runtime.getRuntime().availableProcessors()));
+    private long chunkSize = 64L * 1024 * 1024;
+    private long parallelThreshold = 256L * 1024 * 1024;
+    private long smallFileThreshold = 64 * 1024;
+    private int bufferSize = 256 * 1024;
+    private boolean force;
+    private DirectBufferPool bufferPool = new DirectBufferPool();
+
+    private ExecutorService executor;
+
+    private static final int MAX_COPIES = 2000;
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param parallelism 并行复制一个文件的最大线程数，为1时不并行
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param chunkSize 并行复制时每个区间的大小，也是MAPPED方式每次映射的窗口大小
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param parallelThreshold 不小于该大小的文件才并行复制
+     */
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param smallFileThreshold AUTO时小于该大小的文件用堆缓冲区一次读写
+     */
+    public void setSmallFileThreshold(long smallFileThreshold) {
+        this.smallFileThreshold = smallFileThreshold;
+    }
+
+    /**
+     * @param bufferSize HEAP_BUFFER和DIRECT_BUFFER方式的缓冲区大小
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param bufferPool DIRECT_BUFFER方式从中取缓冲区，多个FileCopier可以共用一个池
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @param force 复制完成后是否force目标文件，备份需要落盘时设为true
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * AUTO时的选择：小文件的系统调用次数少，堆缓冲区最简单；其余用transferTo，不经过用户空间。
+     * MAPPED在页缓存命中时与TRANSFER相近，但映射和缺页的开销在小文件上占比大，且映射在GC前不会释放，不自动选择。
+     * @param size 文件大小
+     * @return 实际使用的复制方式
+     */
+    public Strategy select(long size){
+        if(strategy != Strategy.AUTO){
+            return strategy;
+        }
+        return size < smallFileThreshold ? Strategy.HEAP_BUFFER : Strategy.TRANSFER;
+    }
+
+    /**
+     * 复制文件，目标文件已存在时被覆盖；目标与源是同一个文件(包括硬链接)时拒绝，
+     * 否则以TRUNCATE_EXISTING打开目标会先把源清空
+     * @param src
+     * @param dest
+     * @return 复制的字节数
+     * @throws IOException 复制过程中源文件变短时抛出EOFException
+     */
+    public long copy(Path src,Path dest) throws IOException{
+        if(Files.exists(dest) && Files.isSameFile(src,dest)){
+            throw new IOException("源文件与目标文件相同：" + src + " -> " + dest);
+        }
+        long size = Files.size(src);
+        Strategy selected = select(size);
+        try(FileChannel out = FileChannel.open(dest,StandardOpenOption.WRITE,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)){
+            if(size >= parallelThreshold && parallelism > 1 && size > chunkSize){
+                copyParallel(src,dest,size,selected);
+            }else{
+                try(FileChannel in = FileChannel.open(src,StandardOpenOption.READ)){
+                    copyRange(in,dest,out,0,size,selected);
+                }
+            }
+            if(force){
+                out.force(true);
+            }
+        }
+        return size;
+    }
+
+    private void copyParallel(final Path src,final Path dest,long size,final Strategy selected) throws IOException{
+        ExecutorService executor = executor();
+        List<Future<?>> futures = new ArrayList<>();
+        for(long position = 0;position < size;position += chunkSize){
+            final long start = position;
+            final long count = Math.min(chunkSize,size - position);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try(FileChannel in = FileChannel.open(src,StandardOpenOption.READ);
+                        FileChannel out = FileChannel.open(dest,StandardOpenOption.WRITE)){
+                        copyRange(in,dest,out,start,count,selected);
+                    }
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        for(Future<?> future : futures){
+            try{
+                if(failure != null){
+                    future.cancel(false);
+                }else{
+                    future.get();
+                }
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("复制被中断");
+            }catch (ExecutionException e){
+                Throwable cause = e.getCause();
+                failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    private synchronized ExecutorService executor(){
+        if(executor == null){
+            final AtomicInteger index = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelism,new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,"file-copy-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * 把in的[start,start+count)复制到out的相同位置
+     */
+    private void copyRange(FileChannel in,Path dest,FileChannel out,long start,long count,Strategy selected) throws IOException{
+        switch (selected){
+            case HEAP_BUFFER:
+                copyUseBuffer(in,out,start,count,ByteBuffer.allocate((int) Math.min(bufferSize,Math.max(count,1))));
+                break;
+            case DIRECT_BUFFER:
+                ByteBuffer buffer = bufferPool.acquire((int) Math.min(bufferSize,Math.max(count,1)));
+                try{
+                    copyUseBuffer(in,out,start,count,buffer);
+                }finally {
+                    bufferPool.release(buffer);
+                }
+                break;
+            case MAPPED:
+                copyUseMap(in,dest,start,count);
+                break;
+            default:
+                transfer(in,out,start,count);
+        }
+    }
+
+    private static void copyUseBuffer(FileChannel in,FileChannel out,long start,long count,ByteBuffer buffer) throws IOException{
+        long position = start;
+        long end = start + count;
+        while(position < end){
+            buffer.clear();
+            if(end - position < buffer.capacity()){
+                buffer.limit((int) (end - position));
+            }
+            int read = in.read(buffer,position);
+            if(read < 0){
+                throw new EOFException("源文件在复制过程中变短：" + position);
+            }
+            buffer.flip();
+            long writePosition = position;
+            while(buffer.hasRemaining()){
+                writePosition += out.write(buffer,writePosition);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * 循环transferTo直到复制完count个字节
+     */
+    static void transfer(FileChannel in,FileChannel out,long start,long count) throws IOException{
+        long position = start;
+        long end = start + count;
+        out.position(start);
+        while(position < end){
+            long transferred = in.transferTo(position,end - position,out);
+            if(transferred <= 0 && position >= in.size()){
+                throw new EOFException("源文件在复制过程中变短：" + position);
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * 目标端单独以READ_WRITE打开用于映射，映射在GC回收MappedByteBuffer前不会释放，窗口不宜过大
+     */
+    private void copyUseMap(FileChannel in,Path dest,long start,long count) throws IOException{
+        if(count == 0){
+            return;
+        }
+        try(FileChannel out = FileChannel.open(dest,StandardOpenOption.READ,StandardOpenOption.WRITE)){
+            long window = Math.min(chunkSize,Integer.MAX_VALUE);
+            for(long position = start;position < start + count;position += window){
+                long size = Math.min(window,start + count - position);
+                if(position + size > in.size()){
+                    throw new EOFException("源文件在复制过程中变短：" + position);
+                }
+                MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY,position,size);
+                MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE,position,size);
+                target.put(source);
+            }
+        }
+    }
+
+    /**
+     * 关闭并行复制使用的线程池
+     */
+    @Override
+    public synchronized void close(){
+        if(executor != null){
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        benchmark(Paths.get("copy-benchmark"),new long[]{4 * 1024,1024 * 1024,64L * 1024 * 1024,1024L * 1024 * 1024},512L * 1024 * 1024);
+    }
+
+    /**
+     * 对每种大小的文件比较AboutFileChannel中的两种复制方式、各复制方式单线程以及AUTO(大文件并行)的吞吐量。
+     * 源文件刚写入，位于页缓存中，测得的是复制本身的开销而不是磁盘速度；目标文件不force。
+     * @param directory 存放测试文件的目录，结束后删除
+     * @param sizes 文件大小
+     * @param bytesPerRun 每种方式对每种大小复制的总字节数，小文件据此重复多次，但最多MAX_COPIES次
+     * @throws IOException
+     */
+    public static void benchmark(Path directory,long[] sizes,long bytesPerRun) throws IOException{
+        Files.createDirectories(directory);
+        Path dest = directory.resolve("dest");
+        try(FileCopier copier = new FileCopier()){
+            for(long size : sizes){
+                Path src = directory.resolve("src-" + size);
+                createFile(src,size);
+                int times = (int) Math.max(1,Math.min(MAX_COPIES,bytesPerRun / size));
+                System.out.println("size=" + size + ", copies=" + times);
+
+                long begin = System.nanoTime();
+                for(int i = 0;i < times;i++){
+                    AboutFileChannel.copyUseByteBuffer(src.toString(),dest.toString());
+                }
+                print("copyUseByteBuffer",size,times,System.nanoTime() - begin);
+                begin = System.nanoTime();
+                for(int i = 0;i < times;i++){
+                    AboutFileChannel.copyUseChannelTransfer(src.toString(),dest.toString());
+                }
+                print("copyUseChannelTransfer",size,times,System.nanoTime() - begin);
+
+                copier.setParallelism(1);
+                for(Strategy strategy : Strategy.values()){
+                    copier.setStrategy(strategy);
+                    copy(copier,src,dest,size,times,strategy.toString());
+                }
+                copier.setStrategy(Strategy.AUTO);
+                copier.setParallelism(4);
+                copier.setParallelThreshold(0);
+                copier.setChunkSize(Math.max(size / 4,1));
+                copy(copier,src,dest,size,times,"AUTO x4");
+                copier.setParallelThreshold(256L * 1024 * 1024);
+                copier.setChunkSize(64L * 1024 * 1024);
+
+                Files.delete(src);
+            }
+        }finally {
+            Files.deleteIfExists(dest);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static void copy(FileCopier copier,Path src,Path dest,long size,int times,String name) throws IOException{
+        long begin = System.nanoTime();
+        for(int i = 0;i < times;i++){
+            copier.copy(src,dest);
+        }
+        print(name,size,times,System.nanoTime() - begin);
+        if(Files.size(dest) != size){
+            throw new IOException(name + "复制的大小不一致");
+        }
+    }
+
+    private static void createFile(Path path,long size) throws IOException{
+        Random random = new Random(size);
+        byte[] data = new byte[1024 * 1024];
+        random.nextBytes(data);
+        try(FileChannel channel = FileChannel.open(path,StandardOpenOption.WRITE,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)){
+            for(long position = 0;position < size;position += data.length){
+                ByteBuffer buffer = ByteBuffer.wrap(data,0,(int) Math.min(data.length,size - position));
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static void print(String name,long size,int times,long elapsedNanos){
+        System.out.println(String.format("    %-24s %8.1f MB/s %10.1f us/copy",
+                name,size * (double) times / (1 << 20) / (elapsedNanos / 1e9),elapsedNanos / 1e3 / times));
+    }
+}
@@ -0,0 +1,122 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个文件版本的元数据，由FileMetadataCache为每个(路径,最后修改时间,大小)计算一次。
+ * 强ETag由文件内容的CRC32得出，内容相同则ETag相同；弱ETag只由大小和最后修改时间得出，以W/开头。
+ */
+public final class FileMetadata {
+
+    private final String contentType;
+    private final long size;
+    private final FileTime lastModified;
+    private final String httpDate;
+    private final String etag;
+
+    FileMetadata(String contentType,long size,FileTime lastModified,String etag){
+        this.contentType = contentType;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.httpDate = formatHttpDate(lastModified);
+        this.etag = etag;
+    }
+
+    public String contentType(){
+        return contentType;
+    }
+
+    public long size(){
+        return size;
+    }
+
+    public FileTime lastModified(){
+        return lastModified;
+    }
+
+    /**
+     * @return Last-Modified响应头的值
+     */
+    public String httpDate(){
+        return httpDate;
+    }
+
+    public String etag(){
+        return etag;
+    }
+
+    public boolean isStrongEtag(){
+        return !etag.startsWith("W/");
+    }
+
+    /**
+     * If-None-Match使用弱比较，忽略W/前缀；值可以是逗号分隔的多个ETag或*。
+     * @param ifNoneMatch
+     * @return
+     */
+    public boolean matchesIfNoneMatch(String ifNoneMatch){
+        String opaque = opaqueTag(etag);
+        for(String candidate : ifNoneMatch.split(",")){
+            candidate = candidate.trim();
+            if("*".equals(candidate) || opaque.equals(opaqueTag(candidate))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If-Range中的ETag使用强比较，日期必须与Last-Modified完全一致。
+     * @param ifRange
+     * @return
+     */
+    public boolean matchesIfRange(String ifRange){
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return isStrongEtag() && etag.equals(ifRange);
+        }
+        return httpDate.equals(ifRange);
+    }
+
+    /**
+     * @param ifModifiedSince
+     * @return 文件在该时间之后没有修改过
+     */
+    public boolean notModifiedSince(String ifModifiedSince){
+        if(httpDate.equals(ifModifiedSince)){
+            return true;
+        }
+        long since = parseHttpDate(ifModifiedSince);
+        return since != -1 && lastModified.to(TimeUnit.SECONDS) <= since;
+    }
+
+    private static String opaqueTag(String tag){
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * RFC 1123格式的HTTP日期，精确到秒
+     * @param time
+     * @return
+     */
+    static String formatHttpDate(FileTime time){
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochSecond(time.to(TimeUnit.SECONDS)),ZoneOffset.UTC));
+    }
+
+    /**
+     * @param date
+     * @return 距1970年的秒数，格式错误时返回-1
+     */
+    static long parseHttpDate(String date){
+        try{
+            return ZonedDateTime.parse(date,DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        }catch (DateTimeParseException e){
+            return -1;
+        }
+    }
+}
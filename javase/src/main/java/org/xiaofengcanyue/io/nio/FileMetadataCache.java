@@ -0,0 +1,117 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 按路径缓存FileMetadata。每次查询只读取一次文件属性(类似AboutNio2Files.checkUpdateRequired)，
+ * 最后修改时间和大小都没有变化时直接返回已有的元数据，不再探测Content-Type，也不再读取文件内容计算ETag。
+ */
+public class FileMetadataCache {
+
+    private final int maxEntries;
+    private final long strongEtagMaxSize;
+    private final Map<Path,FileMetadata> entries;
+
+    public FileMetadataCache(){
+        this(10000,1024 * 1024);
+    }
+
+    /**
+     * @param maxEntries 最多缓存的文件数，超出时淘汰最久未访问的
+     * @param strongEtagMaxSize 不超过该大小的文件读取一次内容计算强ETag，更大的文件使用弱ETag
+     */
+    public FileMetadataCache(final int maxEntries,long strongEtagMaxSize){
+        this.maxEntries = maxEntries;
+        this.strongEtagMaxSize = strongEtagMaxSize;
+        this.entries = new LinkedHashMap<Path,FileMetadata>(16,0.75f,true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileMetadata> eldest) {
+                return size() > FileMetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    public FileMetadata get(Path filePath) throws IOException{
+        BasicFileAttributes attributes = Files.readAttributes(filePath,BasicFileAttributes.class);
+        return get(filePath,attributes.size(),attributes.lastModifiedTime());
+    }
+
+    /**
+     * @param filePath
+     * @param size 调用方已经读取到的文件大小
+     * @param lastModified 调用方已经读取到的最后修改时间
+     * @return
+     * @throws IOException
+     */
+    public FileMetadata get(Path filePath,long size,FileTime lastModified) throws IOException{
+        Path key = filePath.toAbsolutePath().normalize();
+        FileMetadata metadata;
+        synchronized (entries){
+            metadata = entries.get(key);
+        }
+        if(metadata != null && metadata.size() == size && metadata.lastModified().equals(lastModified)){
+            return metadata;
+        }
+        String contentType = StaticFileHttpServer.getContentType(key);
+        String etag = computeEtag(key,size,lastModified);
+        if(etag == null){
+            /**
+             文件在读取属性之后被替换或修改，内容与size和lastModified对不上，不能用强ETag，也不缓存
+             */
+            return new FileMetadata(contentType,size,lastModified,weakEtag(size,lastModified));
+        }
+        metadata = new FileMetadata(contentType,size,lastModified,etag);
+        synchronized (entries){
+            entries.put(key,metadata);
+        }
+        return metadata;
+    }
+
+    public void invalidate(Path filePath){
+        synchronized (entries){
+            entries.remove(filePath.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * 只打开一次文件，大小和最后修改时间在读取内容之后仍与调用方读到的相同时才计算强ETag
+     * @return 文件已经变化时返回null
+     */
+    private String computeEtag(Path filePath,long size,FileTime lastModified) throws IOException{
+        if(size > strongEtagMaxSize){
+            return weakEtag(size,lastModified);
+        }
+        CRC32 crc = new CRC32();
+        try(FileChannel channel = FileChannel.open(filePath,StandardOpenOption.READ)){
+            if(channel.size() != size){
+                return null;
+            }
+            MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+            try{
+                crc.update(content);
+            }finally {
+                DirectBuffers.release(content);
+            }
+            if(channel.size() != size || !Files.getLastModifiedTime(filePath).equals(lastModified)){
+                return null;
+            }
+        }
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    private static String weakEtag(long size,FileTime lastModified){
+        return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified.toMillis()) + "\"";
+    }
+}
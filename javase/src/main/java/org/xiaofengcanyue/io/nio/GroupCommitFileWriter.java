@@ -0,0 +1,544 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 组提交(group commit)的异步文件写入：多个线程追加记录，记录先复制到当前批次的直接缓冲区，
+ * 同一时刻只有一个批次在AsynchronousFileChannel上写入(和force)，这期间到达的记录攒成下一批，
+ * 写得越慢批次越大，一次系统调用(一次fsync)覆盖多条记录。
+ * 每条记录返回一个CompletableFuture，按FsyncPolicy在记录写入或落盘后以记录在文件中的偏移量完成。
+ *
+ * future在I/O线程上完成，其回调中不应执行耗时操作，需要时使用thenXxxAsync。
+ * 未写入的数据超过上限时，append会阻塞直到写入跟上。
+ */
+public class GroupCommitFileWriter implements AutoCloseable {
+
+    public enum FsyncPolicy{
+        /**
+         * 写入操作系统后完成，只在关闭时force
+         */
+        NONE,
+        /**
+         * 每个批次写入后force，之后完成该批次的记录
+         */
+        BATCH,
+        /**
+         * 两次force之间至少间隔intervalMillis，记录在覆盖它的那次force之后完成，
+         * 以略高的延迟换取更少的force
+         */
+        INTERVAL
+    }
+
+    private static final int BUFFER_POOL_SIZE = 4;
+
+    private final AsynchronousFileChannel channel;
+    private final ExecutorService ioExecutor;
+    private final ScheduledExecutorService timer;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+    private final int batchSize;
+    private final long maxPendingBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final ArrayDeque<Batch> queued = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private Batch current;
+    private long nextOffset;
+    private long pendingBytes;
+    /**
+     * 是否有线程正在执行写入或force，同一时刻只有一个
+     */
+    private boolean busy;
+    private boolean forceScheduled;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * 已写入但还没有force的批次，只由持有busy的线程访问
+     */
+    private final List<Batch> unsynced = new ArrayList<>();
+    private long lastForceNanos = System.nanoTime();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+
+    private final CompletionHandler<Integer,Batch> writeHandler = new CompletionHandler<Integer, Batch>() {
+        @Override
+        public void completed(Integer result, Batch batch) {
+            if(batch.buffer.hasRemaining()){
+                channel.write(batch.buffer,batch.position + batch.buffer.position(),batch,this);
+                return;
+            }
+            batches.incrementAndGet();
+            records.addAndGet(batch.count);
+            try{
+                switch (policy){
+                    case NONE:
+                        batch.complete();
+                        break;
+                    case BATCH:
+                        channel.force(false);
+                        forces.incrementAndGet();
+                        lastForceNanos = System.nanoTime();
+                        batch.complete();
+                        break;
+                    default:
+                        unsynced.add(batch);
+                        if(System.nanoTime() - lastForceNanos >= intervalNanos){
+                            forceUnsynced();
+                        }
+                        break;
+                }
+            }catch (IOException e){
+                fail(e,batch);
+                return;
+            }
+            release(batch);
+        }
+
+        @Override
+        public void failed(Throwable exc, Batch batch) {
+            fail(exc instanceof IOException ? (IOException) exc : new IOException(exc),batch);
+        }
+    };
+
+    /**
+     * 一批连续的记录，position为第一条记录在文件中的偏移量
+     */
+    private static final class Batch{
+        private final long position;
+        private ByteBuffer buffer;
+        private int length;
+        private int count;
+        private CompletableFuture<?>[] futures = new CompletableFuture<?>[16];
+        private long[] offsets = new long[16];
+
+        Batch(long position,ByteBuffer buffer){
+            this.position = position;
+            this.buffer = buffer;
+        }
+
+        void add(CompletableFuture<Long> future,long offset,ByteBuffer record){
+            if(count == futures.length){
+                futures = Arrays.copyOf(futures,count * 2);
+                offsets = Arrays.copyOf(offsets,count * 2);
+            }
+            futures[count] = future;
+            offsets[count++] = offset;
+            length += record.remaining();
+            buffer.put(record);
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(){
+            for(int i = 0;i < count;i++){
+                ((CompletableFuture<Long>) futures[i]).complete(offsets[i]);
+            }
+        }
+
+        void completeExceptionally(Throwable e){
+            for(int i = 0;i < count;i++){
+                futures[i].completeExceptionally(e);
+            }
+        }
+    }
+
+    public GroupCommitFileWriter(Path file,FsyncPolicy policy) throws IOException{
+        this(file,policy,10,256 * 1024,16L * 1024 * 1024);
+    }
+
+    /**
+     * @param file 不存在时创建，存在时从末尾追加
+     * @param policy
+     * @param intervalMillis INTERVAL策略下两次force的最小间隔
+     * @param batchSize 批次缓冲区的大小，大于它的记录单独成为一批
+     * @param maxPendingBytes 尚未写入的字节数上限
+     * @throws IOException
+     */
+    public GroupCommitFileWriter(Path file,FsyncPolicy policy,long intervalMillis,int batchSize,long maxPendingBytes) throws IOException{
+        this.policy = policy;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.batchSize = batchSize;
+        this.maxPendingBytes = maxPendingBytes;
+        /**
+         同一时刻只有一个I/O操作，一个线程足够，force也在这个线程上阻塞执行
+         */
+        this.ioExecutor = Executors.newSingleThreadExecutor(daemonThreadFactory("group-commit-io"));
+        try{
+            this.channel = AsynchronousFileChannel.open(file,EnumSet.of(StandardOpenOption.CREATE,StandardOpenOption.WRITE),ioExecutor);
+            this.nextOffset = channel.size();
+        }catch (IOException e){
+            ioExecutor.shutdown();
+            throw e;
+        }
+        this.timer = policy == FsyncPolicy.INTERVAL ? Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("group-commit-timer")) : null;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public CompletableFuture<Long> append(byte[] record){
+        return append(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 追加一条记录，record中剩余的字节在返回前已被复制
+     * @param record
+     * @return 以记录在文件中的偏移量完成；写入失败或已关闭时异常完成
+     */
+    public CompletableFuture<Long> append(ByteBuffer record){
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        int length = record.remaining();
+        Batch toWrite = null;
+        lock.lock();
+        try{
+            while(!closed && failure == null && pendingBytes >= maxPendingBytes){
+                notFull.awaitUninterruptibly();
+            }
+            if(closed || failure != null){
+                future.completeExceptionally(closed ? new ClosedChannelException() : failure);
+                return future;
+            }
+            if(current == null || current.buffer.remaining() < length){
+                if(current != null){
+                    queued.add(current);
+                }
+                current = new Batch(nextOffset,takeBuffer(length));
+            }
+            current.add(future,nextOffset,record);
+            nextOffset += length;
+            pendingBytes += length;
+            if(!busy){
+                busy = true;
+                toWrite = nextBatch();
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(toWrite != null){
+            write(toWrite);
+        }
+        return future;
+    }
+
+    /**
+     * 调用时需持有lock
+     */
+    private Batch nextBatch(){
+        Batch batch = queued.poll();
+        if(batch == null){
+            batch = current;
+            current = null;
+        }
+        return batch;
+    }
+
+    /**
+     * 调用时需持有lock
+     */
+    private ByteBuffer takeBuffer(int length){
+        if(length > batchSize){
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(batchSize);
+    }
+
+    private void write(Batch batch){
+        batch.buffer.flip();
+        channel.write(batch.buffer,batch.position,batch,writeHandler);
+    }
+
+    private void forceUnsynced() throws IOException{
+        if(unsynced.isEmpty()){
+            return;
+        }
+        channel.force(false);
+        forces.incrementAndGet();
+        lastForceNanos = System.nanoTime();
+        for(Batch batch : unsynced){
+            batch.complete();
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * 批次写完后归还缓冲区，并开始写下一批；没有下一批时放弃busy
+     * @param written 为null时表示刚完成的是定时force
+     */
+    private void release(Batch written){
+        Batch next;
+        lock.lock();
+        try{
+            if(written != null){
+                ByteBuffer buffer = written.buffer;
+                written.buffer = null;
+                if(buffer.capacity() == batchSize && freeBuffers.size() < BUFFER_POOL_SIZE){
+                    buffer.clear();
+                    freeBuffers.add(buffer);
+                }
+                pendingBytes -= written.length;
+                notFull.signalAll();
+            }
+            next = nextBatch();
+            if(next == null){
+                busy = false;
+                if(!unsynced.isEmpty() && !forceScheduled && timer != null && !closed){
+                    forceScheduled = true;
+                    long delay = Math.max(0,intervalNanos - (System.nanoTime() - lastForceNanos));
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            scheduledForce();
+                        }
+                    },delay,TimeUnit.NANOSECONDS);
+                }
+                idle.signalAll();
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(next != null){
+            write(next);
+        }
+    }
+
+    /**
+     * INTERVAL策略下，写入停止后仍未force的记录由定时任务force。
+     * 正在写入时不做处理，写入结束后会重新安排。
+     */
+    private void scheduledForce(){
+        lock.lock();
+        try{
+            forceScheduled = false;
+            if(busy || failure != null){
+                return;
+            }
+            busy = true;
+        }finally {
+            lock.unlock();
+        }
+        try{
+            forceUnsynced();
+        }catch (IOException e){
+            fail(e,null);
+            return;
+        }
+        release(null);
+    }
+
+    /**
+     * 写入或force失败后，所有未完成的记录都以同一个异常结束，之后的append立即失败
+     */
+    private void fail(IOException e,Batch batch){
+        List<Batch> failed = new ArrayList<>(unsynced);
+        unsynced.clear();
+        if(batch != null){
+            failed.add(batch);
+        }
+        lock.lock();
+        try{
+            failure = e;
+            failed.addAll(queued);
+            queued.clear();
+            if(current != null){
+                failed.add(current);
+                current = null;
+            }
+            pendingBytes = 0;
+            busy = false;
+            notFull.signalAll();
+            idle.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        for(Batch each : failed){
+            each.completeExceptionally(e);
+        }
+    }
+
+    public long getBatches(){
+        return batches.get();
+    }
+
+    public long getRecords(){
+        return records.get();
+    }
+
+    public long getForces(){
+        return forces.get();
+    }
+
+    /**
+     * 等待已追加的记录全部写入并force后关闭文件
+     * @throws IOException 之前的写入失败过，或关闭时force失败
+     */
+    @Override
+    public void close() throws IOException{
+        lock.lock();
+        try{
+            if(closed){
+                return;
+            }
+            closed = true;
+            notFull.signalAll();
+            while(busy){
+                idle.awaitUninterruptibly();
+            }
+            busy = true;
+        }finally {
+            lock.unlock();
+        }
+        try{
+            if(failure == null){
+                channel.force(true);
+                for(Batch batch : unsynced){
+                    batch.complete();
+                }
+                unsynced.clear();
+            }
+        }finally {
+            channel.close();
+            ioExecutor.shutdown();
+            if(timer != null){
+                timer.shutdownNow();
+            }
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        Path directory = Files.createTempDirectory("group-commit");
+        benchmark(directory,8,100 * 1000,20 * 1000,128);
+    }
+
+    /**
+     * 多线程追加相同大小的记录，比较每条记录一次FileChannel.write(及force)与组提交：
+     * 不要求落盘时线程只追加不等待，要求落盘时每个线程等自己的记录落盘后才追加下一条(相当于逐条提交的审计日志)。
+     * INTERVAL下逐条等待时每条记录至少等待一个间隔，因此只追加不等待，观察force的次数。
+     * @param directory 测试文件所在目录
+     * @param threads
+     * @param records 不等待落盘时每个线程的记录数
+     * @param durableRecords 逐条等待落盘时每个线程的记录数
+     * @param recordSize
+     * @throws Exception
+     */
+    public static void benchmark(Path directory,int threads,int records,int durableRecords,int recordSize) throws Exception{
+        final byte[] record = new byte[recordSize];
+        Arrays.fill(record,(byte) 'a');
+        record[recordSize - 1] = '\n';
+
+        runDirect("FileChannel.write per record",directory.resolve("direct.log"),threads,records,record,false);
+        runGroupCommit("GroupCommit NONE",directory.resolve("none.log"),FsyncPolicy.NONE,threads,records,record,false);
+        runDirect("FileChannel.write+force per record",directory.resolve("direct-force.log"),threads,durableRecords,record,true);
+        runGroupCommit("GroupCommit BATCH",directory.resolve("batch.log"),FsyncPolicy.BATCH,threads,durableRecords,record,true);
+        runGroupCommit("GroupCommit INTERVAL",directory.resolve("interval.log"),FsyncPolicy.INTERVAL,threads,records,record,false);
+    }
+
+    private static void runDirect(String name,Path file,int threads,final int records,final byte[] record,final boolean force) throws Exception{
+        try(final FileChannel channel = FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)){
+            long elapsed = runThreads(threads,new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        for(int i = 0;i < records;i++){
+                            synchronized (channel){
+                                channel.write(ByteBuffer.wrap(record));
+                                if(force){
+                                    channel.force(false);
+                                }
+                            }
+                        }
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+            print(name,threads * (long) records,elapsed,"");
+        }
+    }
+
+    private static void runGroupCommit(String name,Path file,FsyncPolicy policy,int threads,final int records,final byte[] record,final boolean waitEach) throws Exception{
+        Files.deleteIfExists(file);
+        final GroupCommitFileWriter writer = new GroupCommitFileWriter(file,policy);
+        long elapsed;
+        try{
+            elapsed = runThreads(threads,new Runnable() {
+                @Override
+                public void run() {
+                    CompletableFuture<Long> last = null;
+                    for(int i = 0;i < records;i++){
+                        last = writer.append(record);
+                        if(waitEach){
+                            last.join();
+                        }
+                    }
+                    last.join();
+                }
+            });
+        }finally {
+            writer.close();
+        }
+        print(name,writer.getRecords(),elapsed,String.format(", batches=%d, %.1f records/batch, forces=%d, file=%d bytes",
+                writer.getBatches(),writer.getRecords() / (double) Math.max(1,writer.getBatches()),writer.getForces(),Files.size(file)));
+    }
+
+    private static long runThreads(int threads,final Runnable task) throws InterruptedException{
+        final CountDownLatch done = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for(int i = 0;i < threads;i++){
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        task.run();
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            },"group-commit-benchmark-" + i).start();
+        }
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private static void print(String name,long records,long elapsedNanos,String detail){
+        System.out.println(name + " ===> " + records + " records, " + String.format("%.0f records/s",records / (elapsedNanos / 1e9)) + detail);
+    }
+}
@@ -0,0 +1,297 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * StaticFileHttpServer的gzip压缩版本。
+ * 文件旁边有同名的.gz文件时直接发送该文件；否则对文本类文件在后台线程中压缩一次，压缩结果按总字节数限制、按LRU淘汰。
+ * 压缩完成之前的请求仍然返回未压缩的内容，请求线程不会等待压缩。
+ * 缓存项记录了压缩时原文件的ETag、大小和最后修改时间，文件修改后下一次请求会重新压缩，因此每个文件版本只压缩一次；
+ * .gz文件的版本还记录了.gz文件的大小和最后修改时间，每次使用前检查，原文件或.gz文件被替换后重新读取。
+ */
+public class GzipVariantCache implements AutoCloseable{
+
+    private static final Logger LOGGER = Logger.getLogger(GzipVariantCache.class.getName());
+    private static final int MAX_ENTRIES = 10000;
+
+    private final long maxBytes;
+    private final long minFileSize;
+    private final long maxFileSize;
+    private final LinkedHashMap<Path,Variant> variants = new LinkedHashMap<>(16,0.75f,true);
+    private long usedBytes;
+    private final Map<Path,Boolean> pending = new ConcurrentHashMap<>();
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r,"gzip-variant-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder compressions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public GzipVariantCache(){
+        this(32L * 1024 * 1024,256,8L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxBytes 压缩结果占用直接缓冲区的总字节数上限
+     * @param minFileSize 小于该大小的文件不压缩
+     * @param maxFileSize 大于该大小的文件不在内存中压缩，只使用预先生成的.gz文件
+     */
+    public GzipVariantCache(long maxBytes,long minFileSize,long maxFileSize){
+        this.maxBytes = maxBytes;
+        this.minFileSize = minFileSize;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * 一个文件的gzip版本。metadata为null表示该文件没有可用的gzip版本(不适合压缩或压缩后没有变小)。
+     * body与file有且只有一个不为null。
+     */
+    public static final class Variant{
+        private final String sourceEtag;
+        private final long sourceSize;
+        private final FileTime sourceModified;
+        private final FileMetadata metadata;
+        private final ByteBuffer body;
+        private final Path file;
+        private final long fileSize;
+        private final FileTime fileModified;
+
+        private Variant(FileMetadata source,FileMetadata metadata,ByteBuffer body,Path file,BasicFileAttributes fileAttributes){
+            this.sourceEtag = source.etag();
+            this.sourceSize = source.size();
+            this.sourceModified = source.lastModified();
+            this.metadata = metadata;
+            this.body = body;
+            this.file = file;
+            this.fileSize = fileAttributes == null ? -1 : fileAttributes.size();
+            this.fileModified = fileAttributes == null ? null : fileAttributes.lastModifiedTime();
+        }
+
+        private boolean matchesSource(FileMetadata source){
+            return sourceEtag.equals(source.etag()) && sourceSize == source.size() && sourceModified.equals(source.lastModified());
+        }
+
+        private boolean matchesFile(BasicFileAttributes attributes){
+            return attributes != null && attributes.isRegularFile()
+                    && fileSize == attributes.size() && fileModified.equals(attributes.lastModifiedTime());
+        }
+
+        public FileMetadata metadata(){
+            return metadata;
+        }
+
+        public ByteBuffer body(){
+            return body == null ? null : body.duplicate();
+        }
+
+        public Path file(){
+            return file;
+        }
+
+        private long weight(){
+            return body == null ? 0 : body.capacity();
+        }
+    }
+
+    /**
+     * 明确列出的gzip优先于*，例如"*;q=0, gzip"接受gzip，"gzip;q=0, *"不接受
+     * @param acceptEncoding Accept-Encoding请求头的值
+     * @return 客户端接受gzip编码
+     */
+    public static boolean acceptsGzip(String acceptEncoding){
+        Boolean gzip = null;
+        Boolean any = null;
+        for(String coding : acceptEncoding.split(",")){
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if("gzip".equalsIgnoreCase(name)){
+                gzip = !isRejected(params);
+            }else if("*".equals(name)){
+                any = !isRejected(params);
+            }
+        }
+        return gzip != null ? gzip : any != null && any;
+    }
+
+    /**
+     * @return q=0或q的值不合法
+     */
+    private static boolean isRejected(String[] params){
+        for(int i = 1;i < params.length;i++){
+            String param = params[i].trim();
+            if(param.startsWith("q=")){
+                try{
+                    return Double.parseDouble(param.substring(2).trim()) == 0;
+                }catch (NumberFormatException e){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param filePath
+     * @param metadata 原文件当前版本的元数据
+     * @return 可以直接发送的gzip版本，没有或尚未压缩完成时返回null
+     */
+    public Variant get(Path filePath,FileMetadata metadata){
+        if(!isCompressible(metadata)){
+            return null;
+        }
+        Path key = filePath.toAbsolutePath().normalize();
+        Variant variant;
+        synchronized (variants){
+            variant = variants.get(key);
+        }
+        if(variant != null && variant.matchesSource(metadata)){
+            if(variant.file == null){
+                return variant.metadata == null ? null : variant;
+            }
+            if(variant.matchesFile(readAttributes(variant.file))){
+                return variant;
+            }
+        }
+        Path sibling = key.resolveSibling(key.getFileName() + ".gz");
+        BasicFileAttributes siblingAttributes = readAttributes(sibling);
+        if(siblingAttributes != null && siblingAttributes.isRegularFile()){
+            return put(key,precompressed(sibling,siblingAttributes,metadata));
+        }
+        if(metadata.size() <= maxFileSize && pending.putIfAbsent(key,Boolean.TRUE) == null){
+            try{
+                compressor.execute(() -> compress(key,metadata));
+            }catch (RejectedExecutionException e){
+                pending.remove(key);
+            }
+        }
+        return null;
+    }
+
+    private boolean isCompressible(FileMetadata metadata){
+        String contentType = metadata.contentType();
+        if(contentType == null || metadata.size() < minFileSize){
+            return false;
+        }
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * @return 文件不存在或无法读取时返回null
+     */
+    private static BasicFileAttributes readAttributes(Path path){
+        try{
+            return Files.readAttributes(path,BasicFileAttributes.class);
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * .gz文件可以独立于原文件被替换，它的大小和最后修改时间也要体现在ETag和Last-Modified中
+     */
+    private Variant precompressed(Path sibling,BasicFileAttributes attributes,FileMetadata source){
+        FileTime lastModified = attributes.lastModifiedTime().compareTo(source.lastModified()) > 0 ? attributes.lastModifiedTime() : source.lastModified();
+        String etag = gzipEtag(source.etag(),"-" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis()));
+        FileMetadata metadata = new FileMetadata(source.contentType(),attributes.size(),lastModified,etag);
+        return new Variant(source,metadata,null,sibling,attributes);
+    }
+
+    private void compress(Path key,FileMetadata source){
+        try{
+            byte[] content = Files.readAllBytes(key);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 3 + 64);
+            try(GZIPOutputStream gzip = new GZIPOutputStream(output)){
+                gzip.write(content);
+            }
+            compressions.increment();
+            if(output.size() >= content.length){
+                put(key,new Variant(source,null,null,null,null));
+                return;
+            }
+            ByteBuffer body = ByteBuffer.allocateDirect(output.size());
+            body.put(output.toByteArray()).flip();
+            FileMetadata metadata = new FileMetadata(source.contentType(),body.capacity(),source.lastModified(),gzipEtag(source.etag(),""));
+            put(key,new Variant(source,metadata,body,null,null));
+        }catch (IOException e){
+            LOGGER.log(Level.WARNING,e.getMessage(),e);
+        }finally {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * 同一资源的不同编码必须使用不同的强ETag
+     * @param suffix 附加在"-gzip"之后
+     */
+    private static String gzipEtag(String etag,String suffix){
+        return etag.substring(0,etag.length() - 1) + "-gzip" + suffix + "\"";
+    }
+
+    private Variant put(Path key,Variant variant){
+        synchronized (variants){
+            if(variant.weight() > maxBytes){
+                return null;
+            }
+            Variant previous = variants.remove(key);
+            if(previous != null){
+                usedBytes -= previous.weight();
+            }
+            Iterator<Variant> iterator = variants.values().iterator();
+            while((usedBytes + variant.weight() > maxBytes || variants.size() >= MAX_ENTRIES) && iterator.hasNext()){
+                usedBytes -= iterator.next().weight();
+                iterator.remove();
+                evictions.increment();
+            }
+            variants.put(key,variant);
+            usedBytes += variant.weight();
+        }
+        return variant.metadata == null ? null : variant;
+    }
+
+    public long getCompressions(){
+        return compressions.sum();
+    }
+
+    public long getEvictions(){
+        return evictions.sum();
+    }
+
+    public long getCachedBytes(){
+        synchronized (variants){
+            return usedBytes;
+        }
+    }
+
+    @Override
+    public void close(){
+        compressor.shutdownNow();
+    }
+
+    @Override
+    public String toString(){
+        return "compressions=" + getCompressions() + ", evictions=" + getEvictions() + ", cachedBytes=" + getCachedBytes();
+    }
+}
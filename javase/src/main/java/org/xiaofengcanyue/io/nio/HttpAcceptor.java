@@ -0,0 +1,165 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StaticFileHttpServer的accept循环，同时保存所有连接共享的状态。
+ * 打开的连接数未达到上限时，每接受一个连接立即发起下一次accept；达到上限时暂停accept，
+ * 由关闭连接的HttpConnection通过connectionClosed()恢复。
+ */
+class HttpAcceptor implements CompletionHandler<AsynchronousSocketChannel,Void> {
+
+    private static final Logger LOGGER = Logger.getLogger(HttpAcceptor.class.getName());
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    /**
+     * accept失败而又没有连接可以在关闭时恢复accept时，由它延迟重试
+     */
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r,"http-accept-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final ServerConfig config;
+    final Path root;
+    final StaticFileHttpServer.CopyStrategy copyStrategy;
+    final StaticFileCache cache;
+    final FileMetadataCache metadataCache;
+    final GzipVariantCache gzipVariants;
+    final AccessLog accessLog;
+    final ServerStats stats;
+    private final AsynchronousServerSocketChannel serverChannel;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final LongAdder acceptPauses = new LongAdder();
+    /**
+     * 连续accept失败的次数。同一时刻只有一个accept，completed和failed不会并发执行
+     */
+    private int acceptFailures;
+
+    HttpAcceptor(AsynchronousServerSocketChannel serverChannel,ServerConfig config,Path root,StaticFileHttpServer.CopyStrategy copyStrategy,
+                 StaticFileCache cache,AccessLog accessLog){
+        this.serverChannel = serverChannel;
+        this.config = config;
+        this.root = root;
+        this.copyStrategy = copyStrategy;
+        this.cache = cache;
+        this.metadataCache = cache != null ? cache.metadata() : new FileMetadataCache();
+        this.gzipVariants = new GzipVariantCache();
+        this.accessLog = accessLog;
+        this.stats = new ServerStats(activeConnections::get);
+    }
+
+    void start(){
+        serverChannel.accept(null,this);
+    }
+
+    @Override
+    public void completed(AsynchronousSocketChannel result, Void attachment) {
+        acceptFailures = 0;
+        if(activeConnections.incrementAndGet() < config.getMaxConnections()){
+            serverChannel.accept(null,this);
+        }else{
+            pause(config.getMaxConnections());
+        }
+        try{
+            result.setOption(StandardSocketOptions.TCP_NODELAY,config.isTcpNoDelay());
+            if(config.getSendBufferSize() > 0){
+                result.setOption(StandardSocketOptions.SO_SNDBUF,config.getSendBufferSize());
+            }
+        }catch (IOException e){
+            LOGGER.log(Level.WARNING,e.getMessage(),e);
+        }
+        new HttpConnection(result,this).start();
+    }
+
+    /**
+     * 服务器关闭时忽略；其他错误(例如文件描述符耗尽)在还有连接打开时暂停accept，等连接关闭后再重试，
+     * 没有连接时在ACCEPT_RETRY_MILLIS之后重试，避免立即重试形成忙循环。连续失败只有第一次记录SEVERE。
+     */
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        if(exc instanceof AsynchronousCloseException || !serverChannel.isOpen()){
+            return;
+        }
+        LOGGER.log(acceptFailures++ == 0 ? Level.SEVERE : Level.FINE,"accept失败：" + exc,exc);
+        if(activeConnections.get() > 0){
+            pause(1);
+            return;
+        }
+        acceptPauses.increment();
+        RETRY_TIMER.schedule(() -> {
+            if(serverChannel.isOpen()){
+                serverChannel.accept(null,this);
+            }
+        },ACCEPT_RETRY_MILLIS,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置暂停标志后再检查一次连接数，防止在设置标志之前关闭的连接错过恢复accept。
+     * @param threshold 连接数低于该值时立即恢复
+     */
+    private void pause(int threshold){
+        paused.set(true);
+        acceptPauses.increment();
+        if(activeConnections.get() < threshold){
+            resume();
+        }
+    }
+
+    private void resume(){
+        if(paused.compareAndSet(true,false) && serverChannel.isOpen()){
+            serverChannel.accept(null,this);
+        }
+    }
+
+    /**
+     * 每个连接关闭时调用一次
+     */
+    void connectionClosed(){
+        activeConnections.decrementAndGet();
+        if(paused.get()){
+            resume();
+        }
+    }
+
+    /**
+     * 通道组关闭之后调用：注销MBean，关闭gzip压缩线程、缓存和访问日志
+     * @throws IOException 关闭缓存或访问日志失败
+     */
+    void close() throws IOException{
+        stats.unregister();
+        gzipVariants.close();
+        try{
+            if(cache != null){
+                cache.close();
+            }
+        }finally {
+            if(accessLog != null){
+                accessLog.close();
+            }
+        }
+    }
+
+    int getActiveConnections(){
+        return activeConnections.get();
+    }
+
+    long getAcceptPauses(){
+        return acceptPauses.sum();
+    }
+}
@@ -0,0 +1,607 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StaticFileHttpServer中一个连接的状态。
+ * 读请求、写响应头、写响应体分别由READ_HANDLER、HEADER_HANDLER、BODY_HANDLER完成，每个handler只发起下一步的异步操作后立即返回，
+ * 不会调用Future.get()阻塞通道组中的线程，因此能同时服务的连接数只受socket数量限制，而不是线程数。
+ * handler本身无状态，连接状态通过attachment传递，每次异步操作不需要新建handler对象。
+ */
+class HttpConnection {
+
+    private static final Logger LOGGER = Logger.getLogger(HttpConnection.class.getName());
+    private static final int STREAM_CHUNK_SIZE = 32 * 1024;
+    /**
+     * 保留的统计路径，不对应文件
+     */
+    private static final String STATS_PATH = "_stats";
+
+    private final AsynchronousSocketChannel channel;
+    private final HttpAcceptor server;
+    private final long readTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final Path root;
+    private final StaticFileHttpServer.CopyStrategy copyStrategy;
+    private final StaticFileCache cache;
+    private final FileMetadataCache metadataCache;
+    private final GzipVariantCache gzipVariants;
+    private final AccessLog accessLog;
+    /**
+     * 写模式，可能积压了多个流水线请求；请求头超过容量时成倍扩大，直到HttpRequestParser.MAX_REQUEST_SIZE
+     */
+    private ByteBuffer requestBuffer = ByteBuffer.allocate(StaticFileHttpServer.REQUEST_BUFFER_SIZE);
+    private final HttpRequestParser parser = new HttpRequestParser();
+    /**
+     * 上一个请求还没有丢弃的请求体字节数
+     */
+    private long bodyRemaining;
+    private boolean keepAlive;
+    private boolean headOnly;
+    private String range;
+    private String ifRange;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private boolean acceptsGzip;
+    private ByteBuffer header;
+    private FileChannel file;
+    /**
+     * 响应体由若干文件区间组成，完整响应只有一个区间，multipart/byteranges响应每个区间前还有一段分隔头
+     */
+    private List<BodyPart> parts;
+    private int partIndex;
+    private ByteBuffer trailer;
+    private long position;
+    private long end;
+    private ByteBuffer body;
+    private ByteBuffer streamBuffer;
+    private ByteBuffer[] cachedResponse;
+    /**
+     * 访问日志需要的当前请求信息，requestStartNanos为0表示没有正在处理的请求
+     */
+    private HttpRequestParser.Method requestMethod;
+    private String requestPath;
+    private long requestStartNanos;
+    private int status;
+    /**
+     * 200响应的处理方式，其他状态码的路由由状态码决定
+     */
+    private ServerStats.Route route;
+    private long bytesWritten;
+
+    /**
+     * 文件中[start,end)区间，prefix为区间之前需要写出的内容，可以为null
+     */
+    private static final class BodyPart{
+        private final ByteBuffer prefix;
+        private final long start;
+        private final long end;
+
+        BodyPart(ByteBuffer prefix,long start,long end){
+            this.prefix = prefix;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private boolean closed;
+
+    HttpConnection(AsynchronousSocketChannel channel,HttpAcceptor server){
+        this.channel = channel;
+        this.server = server;
+        this.readTimeoutMillis = server.config.getReadTimeoutMillis();
+        this.writeTimeoutMillis = server.config.getWriteTimeoutMillis();
+        this.root = server.root;
+        this.copyStrategy = server.copyStrategy;
+        this.cache = server.cache;
+        this.metadataCache = server.metadataCache;
+        this.gzipVariants = server.gzipVariants;
+        this.accessLog = server.accessLog;
+    }
+
+    void start(){
+        processRequests();
+    }
+
+    private static final CompletionHandler<Integer,HttpConnection> READ_HANDLER = new CompletionHandler<Integer, HttpConnection>() {
+        @Override
+        public void completed(Integer result, HttpConnection connection) {
+            if(result == -1){
+                connection.close();
+                return;
+            }
+            connection.processRequests();
+        }
+
+        @Override
+        public void failed(Throwable exc, HttpConnection connection) {
+            logFailure(exc);
+            connection.close();
+        }
+    };
+
+    /**
+     * 超时和连接被关闭是正常情况，不需要记录异常栈
+     */
+    private static void logFailure(Throwable exc){
+        if(exc instanceof InterruptedByTimeoutException || exc instanceof AsynchronousCloseException){
+            LOGGER.log(Level.FINE,"连接关闭：{0}",exc.toString());
+        }else{
+            LOGGER.log(Level.WARNING,exc.getMessage(),exc);
+        }
+    }
+
+    private static final CompletionHandler<Integer,HttpConnection> HEADER_HANDLER = new CompletionHandler<Integer, HttpConnection>() {
+        @Override
+        public void completed(Integer result, HttpConnection connection) {
+            connection.bytesWritten += result;
+            if(connection.header.hasRemaining()){
+                connection.write(connection.header,this);
+                return;
+            }
+            connection.writeBody();
+        }
+
+        @Override
+        public void failed(Throwable exc, HttpConnection connection) {
+            logFailure(exc);
+            connection.close();
+        }
+    };
+
+    private static final CompletionHandler<Integer,HttpConnection> BODY_HANDLER = new CompletionHandler<Integer, HttpConnection>() {
+        @Override
+        public void completed(Integer result, HttpConnection connection) {
+            connection.bytesWritten += result;
+            connection.writeBody();
+        }
+
+        @Override
+        public void failed(Throwable exc, HttpConnection connection) {
+            logFailure(exc);
+            connection.close();
+        }
+    };
+
+    /**
+     * 缓存命中时响应头、Connection头和响应体(或其中的若干区间)通过一次gathering write写出。
+     */
+    private static final CompletionHandler<Long,HttpConnection> CACHED_RESPONSE_HANDLER = new CompletionHandler<Long, HttpConnection>() {
+        @Override
+        public void completed(Long result, HttpConnection connection) {
+            connection.bytesWritten += result;
+            ByteBuffer[] buffers = connection.cachedResponse;
+            for(int i = 0;i < buffers.length;i++){
+                if(buffers[i].hasRemaining()){
+                    connection.channel.write(buffers,i,buffers.length - i,connection.writeTimeoutMillis,TimeUnit.MILLISECONDS,connection,this);
+                    return;
+                }
+            }
+            connection.cachedResponse = null;
+            connection.finishResponse();
+        }
+
+        @Override
+        public void failed(Throwable exc, HttpConnection connection) {
+            logFailure(exc);
+            connection.close();
+        }
+    };
+
+    /**
+     * 先丢弃上一个请求剩余的请求体；缓冲区中已有完整请求头则直接处理，否则发起一次带空闲超时的异步读取。
+     * 处理请求之前先取出需要的字段并compact缓冲区，因为响应的写操作可能在其他线程上完成并再次进入本方法。
+     */
+    private void processRequests(){
+        try{
+            if(bodyRemaining > 0 && !discardBody()){
+                channel.read(requestBuffer,readTimeoutMillis,TimeUnit.MILLISECONDS,this,READ_HANDLER);
+                return;
+            }
+            if(!parser.parse(requestBuffer)){
+                if(!requestBuffer.hasRemaining()){
+                    growRequestBuffer();
+                }
+                channel.read(requestBuffer,readTimeoutMillis,TimeUnit.MILLISECONDS,this,READ_HANDLER);
+                return;
+            }
+            requestStartNanos = System.nanoTime();
+            requestMethod = parser.method();
+            keepAlive = parser.isKeepAlive();
+            long contentLength = parser.contentLength();
+            if(contentLength > StaticFileHttpServer.MAX_DISCARDED_BODY_SIZE){
+                keepAlive = false;
+            }
+            requestPath = parser.path();
+            int index = parser.findHeader("Range");
+            range = index == -1 ? null : parser.headerValue(index);
+            index = parser.findHeader("If-Range");
+            ifRange = index == -1 ? null : parser.headerValue(index);
+            index = parser.findHeader("If-None-Match");
+            ifNoneMatch = index == -1 ? null : parser.headerValue(index);
+            index = parser.findHeader("If-Modified-Since");
+            ifModifiedSince = index == -1 ? null : parser.headerValue(index);
+            index = parser.findHeader("Accept-Encoding");
+            acceptsGzip = index != -1 && GzipVariantCache.acceptsGzip(parser.headerValue(index));
+            requestBuffer.flip();
+            requestBuffer.position(parser.requestLength());
+            requestBuffer.compact();
+            parser.reset();
+            bodyRemaining = keepAlive ? contentLength : 0;
+        }catch (HttpRequestParser.BadRequestException e){
+            LOGGER.log(Level.FINE,"请求格式错误：{0}",e.getMessage());
+            requestStartNanos = System.nanoTime();
+            requestMethod = null;
+            requestPath = null;
+            respondError(e.getStatusCode(),e.getMessage());
+            return;
+        }
+        handle(requestMethod,requestPath);
+    }
+
+    /**
+     * 请求体之后可能紧跟着下一个流水线请求，只丢弃请求体的字节
+     * @return 请求体已经全部丢弃
+     */
+    private boolean discardBody(){
+        int skip = (int) Math.min(bodyRemaining,requestBuffer.position());
+        requestBuffer.flip();
+        requestBuffer.position(skip);
+        requestBuffer.compact();
+        bodyRemaining -= skip;
+        return bodyRemaining == 0;
+    }
+
+    private void growRequestBuffer(){
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(requestBuffer.capacity() * 2,HttpRequestParser.MAX_REQUEST_SIZE));
+        requestBuffer.flip();
+        larger.put(requestBuffer);
+        requestBuffer = larger;
+    }
+
+    private void handle(HttpRequestParser.Method method,String requestPath){
+        try{
+            if(method == HttpRequestParser.Method.OTHER){
+                writeHeader(501,StaticFileHttpServer.generateErrorResponse(501,"Not Implemented",keepAlive));
+                return;
+            }
+            headOnly = method == HttpRequestParser.Method.HEAD;
+            if(STATS_PATH.equals(requestPath)){
+                route = ServerStats.Route.STATS;
+                writeHeader(200,StaticFileHttpServer.generateStatsResponse(server.stats.toJson(),keepAlive,headOnly));
+                return;
+            }
+            Path filePath = StaticFileHttpServer.getFilePath(root,requestPath);
+            if(filePath == null){
+                writeHeader(403,StaticFileHttpServer.generateErrorResponse(403,"Forbidden",keepAlive));
+                return;
+            }
+            StaticFileCache.Entry entry = cache == null ? null : cache.get(filePath);
+            FileMetadata metadata;
+            if(entry != null){
+                metadata = entry.metadata();
+            }else{
+                BasicFileAttributes attributes = StaticFileHttpServer.readRegularFileAttributes(filePath);
+                if(attributes == null){
+                    writeHeader(404,StaticFileHttpServer.generateErrorResponse(404,"Not Found",keepAlive));
+                    return;
+                }
+                metadata = metadataCache.get(filePath,attributes.size(),attributes.lastModifiedTime());
+            }
+            /**
+             gzip版本不支持Range，请求部分内容时返回未压缩的文件
+             */
+            GzipVariantCache.Variant variant = null;
+            if(acceptsGzip && range == null && gzipVariants != null){
+                variant = gzipVariants.get(filePath,metadata);
+            }
+            if(variant != null){
+                metadata = variant.metadata();
+            }
+            if(isNotModified(metadata)){
+                writeHeader(304,StaticFileHttpServer.generateNotModifiedResponse(metadata,keepAlive));
+                return;
+            }
+            if(variant != null){
+                respondGzip(variant);
+                return;
+            }
+
+            long size = metadata.size();
+            List<long[]> ranges = selectRanges(metadata);
+            if(ranges != null && ranges.isEmpty()){
+                writeHeader(416,StaticFileHttpServer.generateRangeNotSatisfiableResponse(size,keepAlive));
+                return;
+            }
+            String responseHeader = null;
+            int statusCode = ranges == null ? 200 : 206;
+            parts = new ArrayList<>();
+            partIndex = 0;
+            trailer = null;
+            if(ranges == null){
+                parts.add(new BodyPart(null,0,size));
+                if(entry == null){
+                    responseHeader = StaticFileHttpServer.generateFileContentResponseHeader(metadata,keepAlive);
+                }
+            }else if(ranges.size() == 1){
+                long[] range = ranges.get(0);
+                parts.add(new BodyPart(null,range[0],range[1]));
+                responseHeader = StaticFileHttpServer.generatePartialContentHeader(metadata,range[0],range[1],keepAlive);
+            }else{
+                long contentLength = 0;
+                for(long[] range : ranges){
+                    ByteBuffer prefix = ByteBuffer.wrap(StaticFileHttpServer.generatePartHeader(metadata,range[0],range[1]).getBytes());
+                    parts.add(new BodyPart(prefix,range[0],range[1]));
+                    contentLength += prefix.remaining() + range[1] - range[0];
+                }
+                trailer = StaticFileHttpServer.multipartTrailerBuffer();
+                contentLength += trailer.remaining();
+                responseHeader = StaticFileHttpServer.generateMultipartHeader(metadata,contentLength,keepAlive);
+            }
+            if(headOnly){
+                parts.clear();
+                trailer = null;
+            }
+            route = entry != null ? ServerStats.Route.CACHED : ServerStats.Route.FILE;
+            if(entry != null){
+                writeFromMemory(statusCode,entry.body(),responseHeader == null ? entry.header() : null,responseHeader);
+                return;
+            }
+            if(!parts.isEmpty()){
+                file = FileChannel.open(filePath,StandardOpenOption.READ);
+            }
+            writeHeader(statusCode,responseHeader);
+        }catch (Exception e){
+            LOGGER.log(Level.SEVERE,e.getMessage(),e);
+            respondError(500,"Internal Server Error");
+        }
+    }
+
+    /**
+     * 发送gzip版本：后台压缩的结果在内存中，预先生成的.gz文件按普通文件发送。
+     * @param variant
+     * @throws IOException
+     */
+    private void respondGzip(GzipVariantCache.Variant variant) throws IOException{
+        String responseHeader = StaticFileHttpServer.generateGzipResponseHeader(variant.metadata(),keepAlive);
+        route = ServerStats.Route.GZIP;
+        parts = new ArrayList<>();
+        partIndex = 0;
+        trailer = null;
+        if(!headOnly){
+            parts.add(new BodyPart(null,0,variant.metadata().size()));
+        }
+        ByteBuffer body = variant.body();
+        if(body != null){
+            writeFromMemory(200,body,null,responseHeader);
+            return;
+        }
+        if(!parts.isEmpty()){
+            file = FileChannel.open(variant.file(),StandardOpenOption.READ);
+        }
+        writeHeader(200,responseHeader);
+    }
+
+    /**
+     * 有If-None-Match时只按ETag判断，忽略If-Modified-Since。
+     * @param metadata
+     * @return 客户端缓存的版本仍然有效，可以返回304
+     */
+    private boolean isNotModified(FileMetadata metadata){
+        if(ifNoneMatch != null){
+            return metadata.matchesIfNoneMatch(ifNoneMatch);
+        }
+        return ifModifiedSince != null && metadata.notModifiedSince(ifModifiedSince);
+    }
+
+    /**
+     * If-Range与文件当前的ETag或Last-Modified不一致时说明客户端已有的部分内容过期，忽略Range返回完整文件。
+     * @return null表示返回完整文件，空列表表示返回416
+     */
+    private List<long[]> selectRanges(FileMetadata metadata){
+        if(range == null){
+            return null;
+        }
+        if(ifRange != null && !metadata.matchesIfRange(ifRange)){
+            return null;
+        }
+        return ByteRanges.parse(range,metadata.size());
+    }
+
+    private void respondError(int statusCode,String message){
+        keepAlive = false;
+        closeFile();
+        parts = null;
+        trailer = null;
+        writeHeader(statusCode,StaticFileHttpServer.generateErrorResponse(statusCode,message,false));
+    }
+
+    /**
+     * 内容已经在直接缓冲区或映射区域中，各个区间通过duplicate得到的视图写出，不复制数据。
+     * @param statusCode
+     * @param body
+     * @param cachedHeader 预先生成的、不含Connection头的响应头，为null时使用responseHeader
+     * @param responseHeader
+     */
+    private void writeFromMemory(int statusCode,ByteBuffer body,ByteBuffer cachedHeader,String responseHeader){
+        status = statusCode;
+        List<ByteBuffer> buffers = new ArrayList<>(parts.size() * 2 + 3);
+        if(cachedHeader != null){
+            buffers.add(cachedHeader);
+            buffers.add(StaticFileHttpServer.connectionHeaderBuffer(keepAlive));
+        }else{
+            buffers.add(ByteBuffer.wrap(responseHeader.getBytes()));
+        }
+        for(BodyPart part : parts){
+            if(part.prefix != null){
+                buffers.add(part.prefix);
+            }
+            ByteBuffer slice = body.duplicate();
+            slice.limit((int) part.end).position((int) part.start);
+            buffers.add(slice);
+        }
+        if(trailer != null){
+            buffers.add(trailer);
+        }
+        parts = null;
+        trailer = null;
+        cachedResponse = buffers.toArray(new ByteBuffer[buffers.size()]);
+        channel.write(cachedResponse,0,cachedResponse.length,writeTimeoutMillis,TimeUnit.MILLISECONDS,this,CACHED_RESPONSE_HANDLER);
+    }
+
+    private void write(ByteBuffer buffer,CompletionHandler<Integer,HttpConnection> handler){
+        channel.write(buffer,writeTimeoutMillis,TimeUnit.MILLISECONDS,this,handler);
+    }
+
+    private void writeHeader(int statusCode,String response){
+        status = statusCode;
+        header = ByteBuffer.wrap(response.getBytes());
+        write(header,HEADER_HANDLER);
+    }
+
+    /**
+     * 当前块写完后再准备下一块；当前区间写完后写下一个区间的分隔头和内容；全部写完后写multipart结尾，然后结束本次响应。
+     */
+    private void writeBody(){
+        if(body != null && body.hasRemaining()){
+            write(body,BODY_HANDLER);
+            return;
+        }
+        while(position >= end){
+            if(parts == null || partIndex >= parts.size()){
+                if(trailer != null && trailer.hasRemaining()){
+                    body = trailer;
+                    write(body,BODY_HANDLER);
+                    return;
+                }
+                finishResponse();
+                return;
+            }
+            BodyPart part = parts.get(partIndex++);
+            position = part.start;
+            end = part.end;
+            if(part.prefix != null){
+                body = part.prefix;
+                write(body,BODY_HANDLER);
+                return;
+            }
+        }
+        try{
+            body = nextChunk();
+        }catch (IOException e){
+            LOGGER.log(Level.SEVERE,e.getMessage(),e);
+            close();
+            return;
+        }
+        write(body,BODY_HANDLER);
+    }
+
+    /**
+     * MAPPED：逐段映射文件，单个MappedByteBuffer不能超过Integer.MAX_VALUE。
+     * STREAM：将文件读入复用的堆缓冲区后再写出。
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer nextChunk() throws IOException{
+        switch (copyStrategy){
+            case MAPPED:
+                long regionSize = Math.min(StaticFileHttpServer.MAPPED_REGION_SIZE,end - position);
+                ByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY,position,regionSize);
+                position += regionSize;
+                return region;
+            default:
+                if(streamBuffer == null){
+                    streamBuffer = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+                }
+                streamBuffer.clear();
+                if(end - position < streamBuffer.capacity()){
+                    streamBuffer.limit((int) (end - position));
+                }
+                int len = file.read(streamBuffer,position);
+                if(len == -1){
+                    throw new EOFException("文件在发送过程中被截断");
+                }
+                position += len;
+                streamBuffer.flip();
+                return streamBuffer;
+        }
+    }
+
+    private void finishResponse(){
+        logAccess();
+        closeFile();
+        body = null;
+        parts = null;
+        trailer = null;
+        position = 0;
+        end = 0;
+        if(keepAlive){
+            processRequests();
+        }else{
+            close();
+        }
+    }
+
+    private void closeFile(){
+        if(file != null){
+            try{
+                file.close();
+            }catch (IOException e){
+                LOGGER.log(Level.WARNING,e.getMessage(),e);
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * 响应写完或连接中途关闭时记录一次访问
+     */
+    private void logAccess(){
+        if(requestStartNanos == 0){
+            return;
+        }
+        long latencyNanos = System.nanoTime() - requestStartNanos;
+        ServerStats.Route statsRoute = status >= 400 ? ServerStats.Route.ERROR
+                : status == 304 ? ServerStats.Route.NOT_MODIFIED
+                : status == 206 ? ServerStats.Route.PARTIAL
+                : route;
+        server.stats.record(statsRoute == null ? ServerStats.Route.ERROR : statsRoute,status,bytesWritten,latencyNanos);
+        if(accessLog != null){
+            accessLog.record(requestMethod,requestPath,status,bytesWritten,latencyNanos / 1000);
+        }
+        route = null;
+        requestStartNanos = 0;
+        requestPath = null;
+        bytesWritten = 0;
+    }
+
+    void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        logAccess();
+        closeFile();
+        try{
+            channel.close();
+        }catch (IOException e){
+            LOGGER.log(Level.WARNING,e.getMessage(),e);
+        }
+        server.connectionClosed();
+    }
+}
@@ -0,0 +1,477 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 通过回环地址对本包中的服务器施加负载，统计吞吐量和延迟分布(p50/p99/p999)。
+ * 每个连接由一个线程以阻塞方式依次发送请求，收到完整响应后才发送下一个请求(闭环负载)，
+ * 延迟从发送请求(不使用持久连接时从建立连接)开始，到读完响应为止。
+ * 预热阶段的请求不计入结果。
+ *
+ * HTTP：按权重从请求组合中选择路径，根据Content-Length读取响应，持久连接可以开关。
+ * RAW：用于AboutSocketChannel.startSimpleServer这类建立连接后直接返回内容并关闭的服务器，每次请求新建连接并读到EOF。
+ */
+public class HttpLoadGenerator {
+
+    public enum Protocol{
+        HTTP,
+        RAW
+    }
+
+    private static final byte[] HEADER_END = {'\r','\n','\r','\n'};
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private String host = "localhost";
+    private int port = ServerConfig.DEFAULT_PORT;
+    private Protocol protocol = Protocol.HTTP;
+    private int connections = 8;
+    private long warmupMillis = 1000;
+    private long durationMillis = 5000;
+    private boolean keepAlive = true;
+    private final List<String> paths = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public void setWarmupMillis(long warmupMillis) {
+        this.warmupMillis = warmupMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * 向请求组合中加入一个路径
+     * @param path 以/开头
+     * @param weight 被选中的相对权重
+     */
+    public void addRequest(String path,int weight){
+        if(weight <= 0){
+            throw new IllegalArgumentException("weight必须大于0：" + weight);
+        }
+        paths.add(path);
+        weights.add(weight);
+    }
+
+    public void clearRequests(){
+        paths.clear();
+        weights.clear();
+    }
+
+    /**
+     * 一次压测的结果
+     */
+    public static class Result{
+        private final String name;
+        private final long requests;
+        private final long errors;
+        private final long bytes;
+        private final long elapsedNanos;
+        private final LatencyHistogram latency;
+
+        Result(String name,long requests,long errors,long bytes,long elapsedNanos,LatencyHistogram latency){
+            this.name = name;
+            this.requests = requests;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public long getRequests(){
+            return requests;
+        }
+
+        public long getErrors(){
+            return errors;
+        }
+
+        public double getRequestsPerSecond(){
+            return requests / (elapsedNanos / 1e9);
+        }
+
+        public double getMegabytesPerSecond(){
+            return bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+
+        public LatencyHistogram getLatency(){
+            return latency;
+        }
+
+        @Override
+        public String toString(){
+            return name + " ===> " + requests + " requests, " + String.format("%.0f req/s, %.2f MB/s",getRequestsPerSecond(),getMegabytesPerSecond())
+                    + ", errors=" + errors + ", " + latency;
+        }
+    }
+
+    /**
+     * 各连接线程独立计数，结束后合并，记录时没有线程间竞争
+     */
+    private static final class WorkerStats{
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long requests;
+        private long errors;
+        private long bytes;
+    }
+
+    public Result run(String name) throws InterruptedException{
+        if(protocol == Protocol.HTTP && paths.isEmpty()){
+            throw new IllegalStateException("请求组合为空");
+        }
+        final byte[][] requests = new byte[paths.size()][];
+        final int[] cumulativeWeights = new int[paths.size()];
+        int totalWeight = 0;
+        for(int i = 0;i < paths.size();i++){
+            String request = "GET " + paths.get(i) + " HTTP/1.1\r\nHost: " + host + "\r\n" + (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+            requests[i] = request.getBytes(StandardCharsets.UTF_8);
+            totalWeight += weights.get(i);
+            cumulativeWeights[i] = totalWeight;
+        }
+        final InetSocketAddress address = new InetSocketAddress(host,port);
+        final long begin = System.nanoTime();
+        final long measureFrom = begin + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        final long measureTo = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final List<WorkerStats> stats = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(connections);
+        for(int i = 0;i < connections;i++){
+            final WorkerStats workerStats = new WorkerStats();
+            stats.add(workerStats);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        runWorker(address,requests,cumulativeWeights,measureFrom,measureTo,workerStats);
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            },"load-generator-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        LatencyHistogram latency = new LatencyHistogram();
+        long requestCount = 0;
+        long errorCount = 0;
+        long byteCount = 0;
+        for(WorkerStats workerStats : stats){
+            latency.add(workerStats.latency);
+            requestCount += workerStats.requests;
+            errorCount += workerStats.errors;
+            byteCount += workerStats.bytes;
+        }
+        return new Result(name,requestCount,errorCount,byteCount,measureTo - measureFrom,latency);
+    }
+
+    private void runWorker(InetSocketAddress address,byte[][] requests,int[] cumulativeWeights,long measureFrom,long measureTo,WorkerStats stats){
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        SocketChannel channel = null;
+        long now;
+        while((now = System.nanoTime()) < measureTo){
+            boolean measured = now >= measureFrom;
+            long bytes;
+            try{
+                if(channel == null){
+                    channel = SocketChannel.open(address);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY,true);
+                    buffer.clear();
+                }
+                if(protocol == Protocol.HTTP){
+                    int index = requests.length == 1 ? 0 : pick(cumulativeWeights);
+                    bytes = exchange(channel,buffer,requests[index]);
+                }else{
+                    bytes = readToEnd(channel,buffer);
+                }
+                if(!keepAlive || protocol == Protocol.RAW || bytes < 0){
+                    channel.close();
+                    channel = null;
+                }
+                if(measured){
+                    stats.latency.record(System.nanoTime() - now);
+                    stats.requests++;
+                    stats.bytes += Math.abs(bytes);
+                }
+            }catch (IOException e){
+                if(measured){
+                    stats.errors++;
+                }
+                closeQuietly(channel);
+                channel = null;
+            }
+        }
+        closeQuietly(channel);
+    }
+
+    private static int pick(int[] cumulativeWeights){
+        int value = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for(int i = 0;i < cumulativeWeights.length;i++){
+            if(value < cumulativeWeights[i]){
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * 发送一个请求并读完响应。buffer为写模式，其中可能残留上一次读取的多余字节。
+     * @return 响应的字节数；响应中没有Content-Length(需要读到EOF)时返回负数，连接不能继续使用
+     * @throws IOException 非2xx/304响应或连接意外关闭
+     */
+    private static long exchange(SocketChannel channel,ByteBuffer buffer,byte[] request) throws IOException{
+        ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        while(requestBuffer.hasRemaining()){
+            channel.write(requestBuffer);
+        }
+        int headerEnd;
+        while((headerEnd = indexOf(buffer.array(),HEADER_END,0,buffer.position())) == -1){
+            if(!buffer.hasRemaining()){
+                throw new IOException("响应头过大");
+            }
+            if(channel.read(buffer) == -1){
+                throw new EOFException("读取响应头时连接已关闭");
+            }
+        }
+        byte[] array = buffer.array();
+        int headerLength = headerEnd + HEADER_END.length;
+        int status = (array[9] - '0') * 100 + (array[10] - '0') * 10 + (array[11] - '0');
+        if(status >= 400 || status < 200){
+            throw new IOException("响应状态：" + status);
+        }
+        long contentLength = parseContentLength(array,headerLength);
+        if(contentLength < 0){
+            return -(headerLength + readToEnd(channel,buffer));
+        }
+        long remaining = headerLength + contentLength;
+        buffer.flip();
+        while(true){
+            int skip = (int) Math.min(remaining,buffer.remaining());
+            buffer.position(buffer.position() + skip);
+            remaining -= skip;
+            if(remaining == 0){
+                break;
+            }
+            buffer.clear();
+            if(channel.read(buffer) == -1){
+                throw new EOFException("读取响应体时连接已关闭");
+            }
+            buffer.flip();
+        }
+        buffer.compact();
+        return headerLength + contentLength;
+    }
+
+    private static long readToEnd(SocketChannel channel,ByteBuffer buffer) throws IOException{
+        long total = buffer.position();
+        buffer.clear();
+        int len;
+        while((len = channel.read(buffer)) != -1){
+            total += len;
+            buffer.clear();
+        }
+        return total;
+    }
+
+    private static long parseContentLength(byte[] array,int headerLength){
+        int index = indexOfIgnoreCase(array,CONTENT_LENGTH,headerLength);
+        if(index == -1){
+            return -1;
+        }
+        int i = index + CONTENT_LENGTH.length;
+        while(array[i] == ' '){
+            i++;
+        }
+        long value = 0;
+        while(array[i] >= '0' && array[i] <= '9'){
+            value = value * 10 + array[i++] - '0';
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] array,byte[] target,int from,int to){
+        outer:
+        for(int i = from;i + target.length <= to;i++){
+            for(int j = 0;j < target.length;j++){
+                if(array[i + j] != target[j]){
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * target为小写
+     */
+    private static int indexOfIgnoreCase(byte[] array,byte[] target,int to){
+        outer:
+        for(int i = 0;i + target.length <= to;i++){
+            for(int j = 0;j < target.length;j++){
+                byte b = array[i + j];
+                if(b >= 'A' && b <= 'Z'){
+                    b += 'a' - 'A';
+                }
+                if(b != target[j]){
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        if(channel != null){
+            try{
+                channel.close();
+            }catch (IOException ignored){
+            }
+        }
+    }
+
+    /**
+     * 在root下生成指定大小的测试文件，文件名为size-<字节数>.bin
+     * @param root
+     * @param sizes
+     * @return 各文件的请求路径
+     * @throws IOException
+     */
+    public static List<String> createFiles(Path root,long... sizes) throws IOException{
+        List<String> requestPaths = new ArrayList<>();
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        ThreadLocalRandom.current().nextBytes(chunk.array());
+        for(long size : sizes){
+            String name = "size-" + size + ".bin";
+            Path file = root.resolve(name);
+            if(!Files.exists(file) || Files.size(file) != size){
+                try(FileChannel channel = FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)){
+                    for(long written = 0;written < size;){
+                        chunk.clear();
+                        chunk.limit((int) Math.min(chunk.capacity(),size - written));
+                        written += channel.write(chunk);
+                    }
+                }
+            }
+            requestPaths.add("/" + name);
+        }
+        return requestPaths;
+    }
+
+    public static void main(String[] args) throws Exception{
+        Path root = Files.createTempDirectory("load");
+        compareServers(root,8,5000);
+    }
+
+    /**
+     * 依次启动各个服务器并施加相同的负载：
+     * StaticFileHttpServer的持久连接与短连接、有无缓存、两种发送方式，以及两个返回固定字符串的示例服务器。
+     * AboutSocketChannel.startSimpleServer无法停止，放在最后以守护线程运行。
+     * @param root 测试文件所在目录
+     * @param connections 并发连接数
+     * @param durationMillis 每种模式的测量时间
+     * @throws Exception
+     */
+    public static void compareServers(Path root,int connections,long durationMillis) throws Exception{
+        Logger.getLogger("org.xiaofengcanyue.io.nio").setLevel(Level.WARNING);
+        List<String> files = createFiles(root,1024,64 * 1024,1024 * 1024);
+        HttpLoadGenerator generator = new HttpLoadGenerator();
+        generator.setConnections(connections);
+        generator.setDurationMillis(durationMillis);
+        /**
+         小文件为主、偶尔请求大文件的请求组合
+         */
+        generator.addRequest(files.get(0),80);
+        generator.addRequest(files.get(1),15);
+        generator.addRequest(files.get(2),5);
+
+        for(boolean keepAlive : new boolean[]{true,false}){
+            generator.setKeepAlive(keepAlive);
+            StaticFileHttpServer server = StaticFileHttpServer.open(root,new ServerConfig(),StaticFileHttpServer.CopyStrategy.MAPPED,new StaticFileCache(),null);
+            try{
+                System.out.println(generator.run("StaticFileHttpServer cache " + (keepAlive ? "keep-alive" : "close")));
+            }finally {
+                server.close();
+            }
+        }
+        generator.setKeepAlive(true);
+        for(StaticFileHttpServer.CopyStrategy copyStrategy : StaticFileHttpServer.CopyStrategy.values()){
+            StaticFileHttpServer server = StaticFileHttpServer.open(root,new ServerConfig(),copyStrategy,null,null);
+            try{
+                System.out.println(generator.run("StaticFileHttpServer " + copyStrategy + " keep-alive"));
+            }finally {
+                server.close();
+            }
+        }
+
+        generator.setProtocol(Protocol.RAW);
+        AsynchronousChannelGroup group = AboutNio2AsynchronousIOChannel.startAsyncSimpleServer();
+        try{
+            System.out.println(generator.run("startAsyncSimpleServer"));
+        }finally {
+            shutdown(group);
+        }
+
+        Thread blockingServer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    AboutSocketChannel.startSimpleServer();
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        },"simple-server");
+        blockingServer.setDaemon(true);
+        blockingServer.start();
+        generator.setPort(10800);
+        Thread.sleep(200);
+        System.out.println(generator.run("startSimpleServer"));
+    }
+
+    private static void shutdown(AsynchronousChannelGroup group) throws InterruptedException{
+        try{
+            group.shutdownNow();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+        group.awaitTermination(5,TimeUnit.SECONDS);
+    }
+}
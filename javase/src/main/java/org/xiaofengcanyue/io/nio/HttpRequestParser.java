@@ -0,0 +1,529 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 直接在ByteBuffer上逐字节解析HTTP/1.x请求行和请求头的增量解析器。
+ * 缓冲区处于写模式，[0,position)为已经收到的字节，请求从下标0开始。一次parse没有收到完整请求头时记住扫描位置，
+ * 下次读取更多字节后从该位置继续，因此请求可以被拆分到任意多次读取中。
+ * 解析过程只记录各部分在缓冲区中的下标，不创建String或其他对象，只有调用path()、headerValue()时才会创建字符串。
+ * 调用方在请求处理完之前不能compact缓冲区，否则记录的下标失效。
+ */
+public class HttpRequestParser {
+
+    public static void main(String[] args) throws Exception{
+        benchmark(1000000);
+    }
+
+    /**
+     * 请求行加请求头的最大长度
+     */
+    public static final int MAX_REQUEST_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS = 64;
+
+    private static final int METHOD = 0;
+    private static final int TARGET = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_START = 3;
+    private static final int HEADER_NAME = 4;
+    private static final int HEADER_VALUE_START = 5;
+    private static final int HEADER_VALUE = 6;
+    private static final int DONE = 7;
+
+    public enum Method{
+        GET,
+        HEAD,
+        OTHER
+    }
+
+    /**
+     * 请求格式错误，statusCode为应当返回给客户端的状态码。
+     */
+    public static class BadRequestException extends IOException{
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+
+        public BadRequestException(int statusCode,String message){
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode(){
+            return statusCode;
+        }
+    }
+
+    private ByteBuffer buffer;
+    private byte[] array;
+    private int arrayOffset;
+    private int state;
+    private int cursor;
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int queryStart;
+    private int versionStart;
+    private int versionEnd;
+    private int requestLength;
+    private Method method;
+    private boolean http10;
+    /**
+     * 每个请求头占4个int：名称起止、值起止
+     */
+    private final int[] headers = new int[MAX_HEADERS * 4];
+    private int headerCount;
+
+    public HttpRequestParser(){
+        reset();
+    }
+
+    public void reset(){
+        state = METHOD;
+        cursor = 0;
+        methodStart = 0;
+        methodEnd = -1;
+        targetStart = -1;
+        targetEnd = -1;
+        queryStart = -1;
+        versionStart = -1;
+        versionEnd = -1;
+        requestLength = -1;
+        method = null;
+        http10 = false;
+        headerCount = 0;
+    }
+
+    /**
+     * 从上次停止的位置继续扫描。
+     * @param buffer 写模式的缓冲区，请求从下标0开始
+     * @return 请求头已完整时返回true，此时requestLength()为请求头占用的字节数
+     * @throws BadRequestException 请求格式错误或超过MAX_REQUEST_SIZE
+     */
+    public boolean parse(ByteBuffer buffer) throws BadRequestException{
+        bind(buffer);
+        int limit = buffer.position();
+        while(cursor < limit){
+            byte b = at(cursor);
+            switch (state){
+                case METHOD:
+                    if(b == ' '){
+                        if(cursor == methodStart){
+                            throw new BadRequestException(400,"Bad Request");
+                        }
+                        methodEnd = cursor;
+                        method = matchMethod();
+                        targetStart = cursor + 1;
+                        state = TARGET;
+                    }else if(b == '\r' || b == '\n'){
+                        /**
+                         流水线请求之间可能有多余的空行
+                         */
+                        if(cursor != methodStart){
+                            throw new BadRequestException(400,"Bad Request");
+                        }
+                        methodStart = cursor + 1;
+                    }else if(b <= ' ' || b >= 127){
+                        throw new BadRequestException(400,"Bad Request");
+                    }
+                    break;
+                case TARGET:
+                    if(b == ' '){
+                        if(cursor == targetStart){
+                            throw new BadRequestException(400,"Bad Request");
+                        }
+                        targetEnd = cursor;
+                        versionStart = cursor + 1;
+                        state = VERSION;
+                    }else if(b == '?'){
+                        if(queryStart == -1){
+                            queryStart = cursor;
+                        }
+                    }else if(b == '\r' || b == '\n'){
+                        throw new BadRequestException(400,"Bad Request");
+                    }
+                    break;
+                case VERSION:
+                    if(b == '\r'){
+                        if(versionEnd == -1){
+                            versionEnd = cursor;
+                        }
+                    }else if(b == '\n'){
+                        if(versionEnd == -1){
+                            versionEnd = cursor;
+                        }
+                        matchVersion();
+                        state = HEADER_START;
+                    }
+                    break;
+                case HEADER_START:
+                    if(b == '\r'){
+                        break;
+                    }
+                    if(b == '\n'){
+                        state = DONE;
+                        requestLength = cursor + 1;
+                        cursor++;
+                        return true;
+                    }
+                    if(headerCount == MAX_HEADERS){
+                        throw new BadRequestException(431,"Request Header Fields Too Large");
+                    }
+                    headers[headerCount * 4] = cursor;
+                    state = HEADER_NAME;
+                    break;
+                case HEADER_NAME:
+                    if(b == ':'){
+                        headers[headerCount * 4 + 1] = cursor;
+                        state = HEADER_VALUE_START;
+                    }else if(b <= ' '){
+                        throw new BadRequestException(400,"Bad Request");
+                    }
+                    break;
+                case HEADER_VALUE_START:
+                    if(b == ' ' || b == '\t'){
+                        break;
+                    }
+                    headers[headerCount * 4 + 2] = cursor;
+                    state = HEADER_VALUE;
+                    if(b == '\n'){
+                        finishHeader();
+                    }
+                    break;
+                case HEADER_VALUE:
+                    if(b != '\n'){
+                        /**
+                         请求头的值占了请求的大部分字节，直接找到行尾，不再逐字节经过状态判断
+                         */
+                        cursor = indexOfLineFeed(cursor + 1,limit);
+                        continue;
+                    }
+                    finishHeader();
+                    break;
+                default:
+                    return true;
+            }
+            cursor++;
+        }
+        if(state == DONE){
+            return true;
+        }
+        if(limit >= MAX_REQUEST_SIZE){
+            throw new BadRequestException(431,"Request Header Fields Too Large");
+        }
+        return false;
+    }
+
+    private void bind(ByteBuffer buffer){
+        if(this.buffer != buffer){
+            this.buffer = buffer;
+            this.array = buffer.hasArray() ? buffer.array() : null;
+            this.arrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+        }
+    }
+
+    /**
+     * 堆缓冲区直接访问底层数组，避免每个字节都经过ByteBuffer.get的边界检查
+     */
+    private byte at(int index){
+        return array != null ? array[arrayOffset + index] : buffer.get(index);
+    }
+
+    /**
+     * @return 第一个'\n'的下标，没有时返回limit
+     */
+    private int indexOfLineFeed(int from,int limit){
+        if(array != null){
+            for(int i = from;i < limit;i++){
+                if(array[arrayOffset + i] == '\n'){
+                    return i;
+                }
+            }
+            return limit;
+        }
+        for(int i = from;i < limit;i++){
+            if(buffer.get(i) == '\n'){
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * 去掉值末尾的\r和空白
+     */
+    private void finishHeader(){
+        int valueStart = headers[headerCount * 4 + 2];
+        int valueEnd = cursor;
+        while(valueEnd > valueStart){
+            byte b = at(valueEnd - 1);
+            if(b != '\r' && b != ' ' && b != '\t'){
+                break;
+            }
+            valueEnd--;
+        }
+        headers[headerCount * 4 + 3] = valueEnd;
+        headerCount++;
+        state = HEADER_START;
+    }
+
+    private Method matchMethod(){
+        if(regionEquals(methodStart,methodEnd,"GET",false)){
+            return Method.GET;
+        }
+        if(regionEquals(methodStart,methodEnd,"HEAD",false)){
+            return Method.HEAD;
+        }
+        return Method.OTHER;
+    }
+
+    private void matchVersion() throws BadRequestException{
+        if(regionEquals(versionStart,versionEnd,"HTTP/1.1",false)){
+            http10 = false;
+        }else if(regionEquals(versionStart,versionEnd,"HTTP/1.0",false)){
+            http10 = true;
+        }else{
+            throw new BadRequestException(505,"HTTP Version Not Supported");
+        }
+    }
+
+    private boolean regionEquals(int start,int end,String str,boolean ignoreCase){
+        if(end - start != str.length()){
+            return false;
+        }
+        for(int i = 0;i < str.length();i++){
+            int b = at(start + i);
+            int c = str.charAt(i);
+            if(b != c && !(ignoreCase && toLowerCase(b) == toLowerCase(c))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c){
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    public Method method(){
+        return method;
+    }
+
+    public boolean isHttp10(){
+        return http10;
+    }
+
+    public int requestLength(){
+        return requestLength;
+    }
+
+    public int headerCount(){
+        return headerCount;
+    }
+
+    /**
+     * @param name 请求头名称，不区分大小写
+     * @return 请求头的序号，不存在时返回-1
+     */
+    public int findHeader(String name){
+        for(int i = 0;i < headerCount;i++){
+            if(regionEquals(headers[i * 4],headers[i * 4 + 1],name,true)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean headerValueEqualsIgnoreCase(int index,String value){
+        return regionEquals(headers[index * 4 + 2],headers[index * 4 + 3],value,true);
+    }
+
+    public String headerValue(int index){
+        return decode(headers[index * 4 + 2],headers[index * 4 + 3],StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * HTTP/1.1默认使用持久连接，除非声明Connection: close；HTTP/1.0只有声明Connection: keep-alive时才保持连接。
+     * @return
+     */
+    public boolean isKeepAlive(){
+        int connection = findHeader("Connection");
+        if(http10){
+            return connection != -1 && headerValueEqualsIgnoreCase(connection,"keep-alive");
+        }
+        return connection == -1 || !headerValueEqualsIgnoreCase(connection,"close");
+    }
+
+    /**
+     * 请求体的长度，只支持Content-Length；多个Content-Length头的值必须相同。
+     * @return 没有请求体时返回0
+     * @throws BadRequestException Content-Length格式错误或不一致时为400，有Transfer-Encoding时为501
+     */
+    public long contentLength() throws BadRequestException{
+        if(findHeader("Transfer-Encoding") != -1){
+            throw new BadRequestException(501,"Not Implemented");
+        }
+        long length = -1;
+        for(int i = 0;i < headerCount;i++){
+            if(!regionEquals(headers[i * 4],headers[i * 4 + 1],"Content-Length",true)){
+                continue;
+            }
+            int start = headers[i * 4 + 2];
+            int end = headers[i * 4 + 3];
+            if(start == end || end - start > 18){
+                throw new BadRequestException(400,"Bad Request");
+            }
+            long value = 0;
+            for(int j = start;j < end;j++){
+                int b = at(j);
+                if(b < '0' || b > '9'){
+                    throw new BadRequestException(400,"Bad Request");
+                }
+                value = value * 10 + (b - '0');
+            }
+            if(length != -1 && length != value){
+                throw new BadRequestException(400,"Bad Request");
+            }
+            length = value;
+        }
+        return Math.max(length,0);
+    }
+
+    /**
+     * @return 请求路径，去掉开头的"/"和查询字符串，%XX已解码
+     * @throws BadRequestException %XX格式错误，或解码后包含NUL字节、".."路径段
+     */
+    public String path() throws BadRequestException{
+        int start = targetStart;
+        int end = queryStart == -1 ? targetEnd : queryStart;
+        while(start < end && at(start) == '/'){
+            start++;
+        }
+        byte[] bytes = new byte[end - start];
+        int length = 0;
+        for(int i = start;i < end;i++){
+            int b = at(i);
+            if(b == '%'){
+                int high = i + 2 < end ? hexValue(at(i + 1)) : -1;
+                int low = i + 2 < end ? hexValue(at(i + 2)) : -1;
+                if(high == -1 || low == -1){
+                    throw new BadRequestException(400,"Bad Request");
+                }
+                b = high << 4 | low;
+                i += 2;
+            }
+            if(b == 0){
+                throw new BadRequestException(400,"Bad Request");
+            }
+            bytes[length++] = (byte) b;
+        }
+        /**
+         反斜杠在Windows上也是路径分隔符
+         */
+        int segmentStart = 0;
+        for(int i = 0;i <= length;i++){
+            if(i == length || bytes[i] == '/' || bytes[i] == '\\'){
+                if(i - segmentStart == 2 && bytes[segmentStart] == '.' && bytes[segmentStart + 1] == '.'){
+                    throw new BadRequestException(400,"Bad Request");
+                }
+                segmentStart = i + 1;
+            }
+        }
+        return new String(bytes,0,length,StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(int c){
+        if(c >= '0' && c <= '9'){
+            return c - '0';
+        }
+        c = toLowerCase(c);
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    private String decode(int start,int end,Charset charset){
+        if(array != null){
+            return new String(array,arrayOffset + start,end - start,charset);
+        }
+        byte[] bytes = new byte[end - start];
+        for(int i = 0;i < bytes.length;i++){
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes,charset);
+    }
+
+    /**
+     * 比较逐字节解析与原先的方式(查找请求头结尾、new String、用正则提取路径和Connection头)解析一个典型浏览器请求的耗时，
+     * 并测试同一个请求被拆成三次读取时增量解析的耗时。
+     * @param iterations
+     * @throws Exception
+     */
+    public static void benchmark(int iterations) throws Exception{
+        byte[] request = ("GET /static/js/app.js?v=42 HTTP/1.1\r\n"
+                + "Host: localhost:10080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Accept-Language: zh-CN,zh;q=0.9,en;q=0.8\r\n"
+                + "Cache-Control: max-age=0\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        HttpRequestParser parser = new HttpRequestParser();
+        Pattern pathExtractor = Pattern.compile("GET (.*?) HTTP");
+        Pattern connectionExtractor = Pattern.compile("(?im)^Connection:\\s*(\\S+)");
+        int third = request.length / 3;
+        long sink = 0;
+        for(int round = 0;round < 3;round++){
+            long begin = System.nanoTime();
+            for(int i = 0;i < iterations;i++){
+                buffer.clear();
+                buffer.put(request);
+                parser.reset();
+                parser.parse(buffer);
+                sink += parser.isKeepAlive() ? parser.requestLength() : 0;
+            }
+            long parseNanos = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for(int i = 0;i < iterations;i++){
+                buffer.clear();
+                parser.reset();
+                buffer.put(request,0,third);
+                parser.parse(buffer);
+                buffer.put(request,third,third);
+                parser.parse(buffer);
+                buffer.put(request,third * 2,request.length - third * 2);
+                parser.parse(buffer);
+                sink += parser.requestLength();
+            }
+            long splitNanos = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for(int i = 0;i < iterations;i++){
+                int end = 0;
+                while(!(request[end] == '\r' && request[end + 1] == '\n' && request[end + 2] == '\r' && request[end + 3] == '\n')){
+                    end++;
+                }
+                String str = new String(request,0,end);
+                Matcher matcher = pathExtractor.matcher(str);
+                if(matcher.find()){
+                    sink += matcher.group(1).length();
+                }
+                matcher = connectionExtractor.matcher(str);
+                if(matcher.find()){
+                    sink += matcher.group(1).length();
+                }
+            }
+            long regexNanos = System.nanoTime() - begin;
+
+            System.out.println(String.format("round %d ===> parser: %.1f ns/req, split into 3 reads: %.1f ns/req, String + regex: %.1f ns/req",
+                    round,(double) parseNanos / iterations,(double) splitNanos / iterations,(double) regexNanos / iterations));
+        }
+        System.out.println(sink);
+    }
+}
@@ -0,0 +1,135 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录耗时(纳秒)的对数线性直方图，与HdrHistogram的分桶方式相同：
+ * 小于128的值每个值一个桶，之后每个2的幂区间等分为64个桶，相对误差不超过1/64。
+ * 桶数固定，记录时不分配内存，多个线程可以同时记录；读取百分位时是各个桶的近似快照。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * 超过2^40纳秒(约18分钟)的值记入最后一个桶
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos){
+        counts.incrementAndGet(indexOf(Math.max(0,nanos)));
+    }
+
+    /**
+     * 把另一个直方图的计数累加到本直方图，用于合并各线程分别记录的结果
+     * @param other
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0;i < BUCKETS;i++){
+            long count = other.counts.get(i);
+            if(count != 0){
+                counts.addAndGet(i,count);
+            }
+        }
+    }
+
+    public void reset(){
+        for(int i = 0;i < BUCKETS;i++){
+            counts.set(i,0);
+        }
+    }
+
+    private static int indexOf(long value){
+        if(value < 2 * SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent >= MAX_EXPONENT){
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param index
+     * @return 桶内取值范围的中点
+     */
+    private static long valueOf(int index){
+        if(index < 2 * SUB_BUCKETS){
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return (top << shift) + (1L << (shift - 1));
+    }
+
+    public long getCount(){
+        long total = 0;
+        for(int i = 0;i < BUCKETS;i++){
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile 0到100之间，例如99.9
+     * @return 纳秒，没有记录时返回0
+     */
+    public long getValueAtPercentile(double percentile){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0;i < BUCKETS;i++){
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1,(long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for(int i = 0;i < BUCKETS;i++){
+            seen += snapshot[i];
+            if(seen >= rank){
+                return valueOf(i);
+            }
+        }
+        return valueOf(BUCKETS - 1);
+    }
+
+    public long getMax(){
+        for(int i = BUCKETS - 1;i >= 0;i--){
+            if(counts.get(i) != 0){
+                return valueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    public double getMean(){
+        long total = 0;
+        double sum = 0;
+        for(int i = 0;i < BUCKETS;i++){
+            long count = counts.get(i);
+            total += count;
+            sum += (double) count * valueOf(i);
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @return 以微秒表示的p50/p99/p999/max
+     */
+    @Override
+    public String toString(){
+        return String.format("p50=%dus, p99=%dus, p999=%dus, max=%dus",
+                TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50)),
+                TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99.9)),
+                TimeUnit.NANOSECONDS.toMicros(getMax()));
+    }
+}
@@ -0,0 +1,574 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 多Reactor的非阻塞TCP服务器：一个acceptor线程只负责accept，连接按轮询方式分配给N个worker，
+ * 每个worker线程有自己的Selector，负责其上所有连接的读写，连接的状态只被一个线程访问，不需要加锁。
+ *
+ * 写操作先直接尝试gathering write，写不完的部分留在连接的发送队列中并注册OP_WRITE，
+ * socket可写时继续写，队列清空后取消OP_WRITE，避免Selector在socket一直可写时空转。
+ * 每个连接的读缓冲区从服务器的DirectBufferPool中取得，连接关闭后归还，直接缓冲区不会随连接反复分配；
+ * 池中空闲的缓冲区有上限，一阵突发的连接关闭之后多出的缓冲区交给GC回收，不会在worker的整个生命周期内占住直接内存。
+ *
+ * 协议由Handler实现，例如startSimpleServer中返回固定字符串的HelloHandler。
+ */
+public class MultiReactorServer implements AutoCloseable{
+
+    private static final Logger LOGGER = Logger.getLogger(MultiReactorServer.class.getName());
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /**
+     * 一次gathering write最多写出的缓冲区个数
+     */
+    private static final int MAX_GATHER = 64;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    /**
+     * 缓冲池中空闲读缓冲区的总字节数上限，不包括各worker线程的本地缓存
+     */
+    private static final long MAX_FREE_BUFFER_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * 连接上的协议处理，每个连接一个实例，只在所属worker线程中调用
+     */
+    public interface Handler{
+        /**
+         * 连接建立后调用一次
+         * @param connection
+         * @throws IOException
+         */
+        default void onOpen(Connection connection) throws IOException{
+        }
+
+        /**
+         * 读到数据后调用
+         * @param connection
+         * @param input 读模式，未处理完的字节应当保留在其中(position之后)，下次读取时追加在后面
+         * @throws IOException
+         */
+        void onRead(Connection connection,ByteBuffer input) throws IOException;
+    }
+
+    private final ServerConfig config;
+    private final Supplier<Handler> handlerFactory;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final SelectionKey acceptKey;
+    private final DirectBufferPool bufferPool = new DirectBufferPool(READ_BUFFER_SIZE,READ_BUFFER_SIZE,MAX_FREE_BUFFER_BYTES);
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private int nextWorker;
+    /**
+     * 连续accept失败的次数，只在acceptor线程中访问，只有第一次失败记录SEVERE
+     */
+    private int acceptFailures;
+    private volatile boolean closed;
+
+    /**
+     * @param config 使用其中的端口、backlog、连接数上限、socket选项和读超时
+     * @param workerCount worker线程数，通常等于CPU核数
+     * @param handlerFactory 为每个连接创建Handler
+     * @throws IOException
+     */
+    public MultiReactorServer(ServerConfig config,int workerCount,Supplier<Handler> handlerFactory) throws IOException{
+        this.config = config;
+        this.handlerFactory = handlerFactory;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+        serverChannel.bind(new InetSocketAddress(config.getPort()),config.getBacklog());
+        serverChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        this.acceptKey = serverChannel.register(acceptSelector,SelectionKey.OP_ACCEPT);
+        this.workers = new Worker[workerCount];
+        for(int i = 0;i < workerCount;i++){
+            workers[i] = new Worker(i);
+        }
+        this.acceptor = new Thread(this::acceptLoop,"reactor-acceptor");
+    }
+
+    public static MultiReactorServer start(ServerConfig config,Supplier<Handler> handlerFactory) throws IOException{
+        return start(config,Runtime.getRuntime().availableProcessors(),handlerFactory);
+    }
+
+    public static MultiReactorServer start(ServerConfig config,int workerCount,Supplier<Handler> handlerFactory) throws IOException{
+        MultiReactorServer server = new MultiReactorServer(config,workerCount,handlerFactory);
+        for(Worker worker : server.workers){
+            worker.thread.start();
+        }
+        server.acceptor.start();
+        LOGGER.log(Level.INFO,"服务器已经启动，worker数："+workerCount+"，"+config);
+        return server;
+    }
+
+    /**
+     * 连接数达到上限时取消OP_ACCEPT，新连接留在内核的accept队列中，acceptor阻塞在select上，
+     * 直到关闭连接的worker在连接数降到上限以下时通过connectionClosed唤醒它
+     */
+    private void acceptLoop(){
+        try{
+            while(!closed){
+                boolean full = activeConnections.get() >= config.getMaxConnections();
+                acceptKey.interestOps(full ? 0 : SelectionKey.OP_ACCEPT);
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                while(activeConnections.get() < config.getMaxConnections() && acceptOne()){
+                }
+            }
+        }catch (ClosedSelectorException | CancelledKeyException | InterruptedException e){
+            LOGGER.log(Level.FINE,"acceptor已停止");
+        }catch (IOException e){
+            if(!closed){
+                LOGGER.log(Level.SEVERE,e.getMessage(),e);
+            }
+        }
+    }
+
+    /**
+     * accept一个连接并分配给worker。错误只影响这一次accept，acceptor线程不会退出：
+     * accept本身失败(例如文件描述符耗尽，连接仍留在accept队列中)时等待ACCEPT_RETRY_MILLIS再重试，否则select会立即返回形成忙循环；
+     * 设置socket选项失败(例如对方已经重置了连接)时只关闭这个连接，它还没有计入activeConnections。
+     * @return 还可以继续accept；队列已空、需要等待重试或服务器已关闭时返回false
+     * @throws InterruptedException
+     */
+    private boolean acceptOne() throws InterruptedException{
+        SocketChannel channel;
+        try{
+            channel = serverChannel.accept();
+        }catch (IOException e){
+            if(closed){
+                return false;
+            }
+            acceptFailures++;
+            LOGGER.log(acceptFailures == 1 ? Level.SEVERE : Level.FINE,"accept失败，" + ACCEPT_RETRY_MILLIS + "ms后重试",e);
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+            return false;
+        }
+        if(channel == null){
+            return false;
+        }
+        acceptFailures = 0;
+        try{
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY,config.isTcpNoDelay());
+            if(config.getSendBufferSize() > 0){
+                channel.setOption(StandardSocketOptions.SO_SNDBUF,config.getSendBufferSize());
+            }
+        }catch (IOException e){
+            LOGGER.log(Level.FINE,"连接在分配之前关闭：{0}",e.toString());
+            try{
+                channel.close();
+            }catch (IOException ex){
+                LOGGER.log(Level.WARNING,ex.getMessage(),ex);
+            }
+            return true;
+        }
+        activeConnections.incrementAndGet();
+        workers[nextWorker].assign(channel);
+        nextWorker = (nextWorker + 1) % workers.length;
+        return true;
+    }
+
+    /**
+     * 每个计入activeConnections的连接关闭时调用一次。连接数从上限降下来时唤醒acceptor重新注册OP_ACCEPT；
+     * 唤醒发生在acceptor的select之前时，下一次select立即返回，不会错过
+     */
+    private void connectionClosed(){
+        if(activeConnections.decrementAndGet() == config.getMaxConnections() - 1){
+            acceptSelector.wakeup();
+        }
+    }
+
+    public int getActiveConnections(){
+        return activeConnections.get();
+    }
+
+    @Override
+    public void close() throws IOException{
+        closed = true;
+        acceptSelector.close();
+        serverChannel.close();
+        for(Worker worker : workers){
+            worker.selector.wakeup();
+        }
+        try{
+            acceptor.join(TimeUnit.SECONDS.toMillis(5));
+            for(Worker worker : workers){
+                worker.thread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 一个连接，只在所属worker线程中访问
+     */
+    public static final class Connection{
+        private final SocketChannel channel;
+        private final Worker worker;
+        private final Handler handler;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private boolean closeAfterWrite;
+        private long lastActivityNanos = System.nanoTime();
+
+        private Connection(SocketChannel channel,Worker worker,Handler handler){
+            this.channel = channel;
+            this.worker = worker;
+            this.handler = handler;
+        }
+
+        public SocketChannel channel(){
+            return channel;
+        }
+
+        /**
+         * 发送数据。发送队列为空时立即写出，写不完的部分排队等待OP_WRITE。
+         * 缓冲区在写完之前不能被调用方修改。
+         * @param buffers
+         * @throws IOException
+         */
+        public void write(ByteBuffer... buffers) throws IOException{
+            for(ByteBuffer buffer : buffers){
+                if(buffer.hasRemaining()){
+                    pending.add(buffer);
+                }
+            }
+            flush();
+        }
+
+        /**
+         * 发送队列中的数据全部写出后关闭连接
+         * @throws IOException
+         */
+        public void closeAfterWrite() throws IOException{
+            closeAfterWrite = true;
+            if(pending.isEmpty()){
+                close();
+            }
+        }
+
+        private void flush() throws IOException{
+            ByteBuffer[] gather = worker.gather;
+            while(!pending.isEmpty()){
+                int count = 0;
+                for(ByteBuffer buffer : pending){
+                    gather[count++] = buffer;
+                    if(count == MAX_GATHER){
+                        break;
+                    }
+                }
+                long written = channel.write(gather,0,count);
+                while(!pending.isEmpty() && !pending.peek().hasRemaining()){
+                    pending.poll();
+                }
+                for(int i = 0;i < count;i++){
+                    gather[i] = null;
+                }
+                if(written == 0){
+                    break;
+                }
+            }
+            if(!key.isValid()){
+                return;
+            }
+            if(pending.isEmpty()){
+                if((key.interestOps() & SelectionKey.OP_WRITE) != 0){
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if(closeAfterWrite){
+                    close();
+                }
+            }else if((key.interestOps() & SelectionKey.OP_WRITE) == 0){
+                /**
+                 发送缓冲区已满，等可写时再继续；在此期间不读取新请求，客户端只发不收时不会无限堆积响应
+                 */
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        public void close(){
+            if(readBuffer == null){
+                return;
+            }
+            key.cancel();
+            try{
+                channel.close();
+            }catch (IOException e){
+                LOGGER.log(Level.WARNING,e.getMessage(),e);
+            }
+            worker.server().bufferPool.release(readBuffer);
+            readBuffer = null;
+            pending.clear();
+            worker.server().connectionClosed();
+        }
+    }
+
+    /**
+     * 一个Selector及其线程。其他线程通过assign把新连接放入队列并唤醒Selector，由worker线程自己注册。
+     */
+    private final class Worker{
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> assigned = new ConcurrentLinkedQueue<>();
+        /**
+         * gathering write使用的数组，同一worker上的连接共用
+         */
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private long lastIdleCheckNanos = System.nanoTime();
+
+        Worker(int index) throws IOException{
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run,"reactor-worker-" + index);
+        }
+
+        MultiReactorServer server(){
+            return MultiReactorServer.this;
+        }
+
+        void assign(SocketChannel channel){
+            assigned.add(channel);
+            selector.wakeup();
+        }
+
+        private void run(){
+            try{
+                while(!closed){
+                    selector.select(SELECT_TIMEOUT_MILLIS);
+                    registerAssigned();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while(iterator.hasNext()){
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        process(key);
+                    }
+                    closeIdleConnections();
+                }
+            }catch (IOException e){
+                LOGGER.log(Level.SEVERE,e.getMessage(),e);
+            }finally {
+                for(SelectionKey key : selector.keys()){
+                    ((Connection) key.attachment()).close();
+                }
+                try{
+                    selector.close();
+                }catch (IOException e){
+                    LOGGER.log(Level.WARNING,e.getMessage(),e);
+                }
+            }
+        }
+
+        private void registerAssigned(){
+            SocketChannel channel;
+            while((channel = assigned.poll()) != null){
+                Connection connection = new Connection(channel,this,handlerFactory.get());
+                try{
+                    connection.key = channel.register(selector,SelectionKey.OP_READ,connection);
+                    connection.readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+                    connection.handler.onOpen(connection);
+                }catch (IOException e){
+                    LOGGER.log(Level.WARNING,e.getMessage(),e);
+                    if(connection.readBuffer != null){
+                        connection.close();
+                    }else{
+                        closeUnregistered(channel);
+                    }
+                }
+            }
+        }
+
+        private void closeUnregistered(SocketChannel channel){
+            try{
+                channel.close();
+            }catch (IOException e){
+                LOGGER.log(Level.WARNING,e.getMessage(),e);
+            }
+            connectionClosed();
+        }
+
+        private void process(SelectionKey key){
+            Connection connection = (Connection) key.attachment();
+            try{
+                if(key.isValid() && key.isWritable()){
+                    connection.flush();
+                }
+                if(key.isValid() && key.isReadable()){
+                    ByteBuffer buffer = connection.readBuffer;
+                    int len = connection.channel.read(buffer);
+                    if(len == -1){
+                        connection.close();
+                        return;
+                    }
+                    connection.lastActivityNanos = System.nanoTime();
+                    buffer.flip();
+                    connection.handler.onRead(connection,buffer);
+                    if(connection.readBuffer != null){
+                        buffer.compact();
+                        if(!buffer.hasRemaining()){
+                            throw new IOException("未处理的输入超过读缓冲区大小");
+                        }
+                    }
+                }
+            }catch (IOException e){
+                LOGGER.log(Level.FINE,"连接关闭：{0}",e.toString());
+                connection.close();
+            }
+        }
+
+        /**
+         * 每秒检查一次，关闭超过读超时没有收到数据、也没有待发送数据的连接
+         */
+        private void closeIdleConnections(){
+            long now = System.nanoTime();
+            if(now - lastIdleCheckNanos < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS)){
+                return;
+            }
+            lastIdleCheckNanos = now;
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getReadTimeoutMillis());
+            for(SelectionKey key : new ArrayList<>(selector.keys())){
+                Connection connection = (Connection) key.attachment();
+                if(key.isValid() && connection.pending.isEmpty() && now - connection.lastActivityNanos > timeoutNanos){
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 与AboutSocketChannel.startSimpleServer相同：连接建立后返回固定字符串并关闭
+     */
+    public static class HelloHandler implements Handler{
+        private static final ByteBuffer HELLO = ByteBuffer.wrap("Hello".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+        @Override
+        public void onOpen(Connection connection) throws IOException{
+            connection.write(HELLO.duplicate());
+            connection.closeAfterWrite();
+        }
+
+        @Override
+        public void onRead(Connection connection,ByteBuffer input){
+            input.position(input.limit());
+        }
+    }
+
+    /**
+     * 对每个以空行结尾的HTTP请求返回固定的响应，支持持久连接和流水线，用于测量服务器本身的开销。
+     * 响应头和响应体是两个缓冲区，通过一次gathering write写出。
+     */
+    public static class FixedHttpResponseHandler implements Handler{
+        private static final ByteBuffer BODY = ByteBuffer.wrap("Hello".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        private static final ByteBuffer HEADER = ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                + BODY.remaining() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        private int matched;
+
+        @Override
+        public void onRead(Connection connection,ByteBuffer input) throws IOException{
+            while(input.hasRemaining()){
+                byte b = input.get();
+                if(b == '\n'){
+                    matched = matched == 1 ? 2 : 1;
+                    if(matched == 2){
+                        matched = 0;
+                        connection.write(HEADER.duplicate(),BODY.duplicate());
+                    }
+                }else if(b != '\r'){
+                    matched = 0;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        compareWithSimpleServers(8,3000);
+    }
+
+    /**
+     * 用HttpLoadGenerator比较：返回固定字符串并关闭连接时，多Reactor服务器与startSimpleServer、startAsyncSimpleServer；
+     * 以及多Reactor服务器在持久连接上返回固定HTTP响应时的吞吐量和延迟。
+     * @param connections
+     * @param durationMillis
+     * @throws Exception
+     */
+    public static void compareWithSimpleServers(int connections,long durationMillis) throws Exception{
+        Logger.getLogger("org.xiaofengcanyue.io.nio").setLevel(Level.WARNING);
+        HttpLoadGenerator generator = new HttpLoadGenerator();
+        generator.setConnections(connections);
+        generator.setDurationMillis(durationMillis);
+        ServerConfig config = new ServerConfig();
+
+        generator.setProtocol(HttpLoadGenerator.Protocol.RAW);
+        MultiReactorServer server = start(config,HelloHandler::new);
+        try{
+            System.out.println(generator.run("MultiReactorServer hello"));
+        }finally {
+            server.close();
+        }
+        AsynchronousChannelGroup group = AboutNio2AsynchronousIOChannel.startAsyncSimpleServer();
+        try{
+            System.out.println(generator.run("startAsyncSimpleServer"));
+        }finally {
+            group.shutdownNow();
+            group.awaitTermination(5,TimeUnit.SECONDS);
+        }
+
+        generator.setProtocol(HttpLoadGenerator.Protocol.HTTP);
+        generator.addRequest("/",1);
+        server = start(config,FixedHttpResponseHandler::new);
+        try{
+            System.out.println(generator.run("MultiReactorServer fixed response keep-alive"));
+        }finally {
+            server.close();
+        }
+        Path root = Files.createTempDirectory("reactor");
+        Files.write(root.resolve("index.html"),"Hello".getBytes(StandardCharsets.UTF_8));
+        StaticFileHttpServer staticServer = StaticFileHttpServer.open(root,config,StaticFileHttpServer.CopyStrategy.MAPPED,new StaticFileCache(),null);
+        try{
+            System.out.println(generator.run("StaticFileHttpServer cached keep-alive"));
+        }finally {
+            staticServer.close();
+        }
+
+        Thread blockingServer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    AboutSocketChannel.startSimpleServer();
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        },"simple-server");
+        blockingServer.setDaemon(true);
+        blockingServer.start();
+        Thread.sleep(200);
+        generator.setProtocol(HttpLoadGenerator.Protocol.RAW);
+        generator.setPort(10800);
+        System.out.println(generator.run("startSimpleServer"));
+    }
+}
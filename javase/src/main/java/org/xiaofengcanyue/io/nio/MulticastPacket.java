@@ -0,0 +1,85 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
+/**
+ * MulticastPublisher与MulticastSubscriber之间的报文格式，所有字段为大端序：
+ * <pre>
+ * magic(4) type(1) 保留(1) count(2) session(8) sequence(8)
+ * DATA之后是count条消息，每条为 长度(2) 内容
+ * </pre>
+ * DATA：sequence为第一条消息的序号，count为消息条数，组播发送，也用于单播重传。
+ * HEARTBEAT：sequence为下一条消息的序号，发送端空闲时组播，接收端据此发现末尾的丢失。
+ * NACK：接收端单播给发送端，请求重传[sequence,sequence+count)。
+ * UNAVAILABLE：发送端的回应，请求的消息已不在重传缓冲区中，sequence为仍可重传的第一条。
+ * session在发送端启动时随机生成，接收端看到新的session时重新开始计数。
+ */
+final class MulticastPacket {
+
+    static final int MAGIC = 0x524D4331;
+    static final int HEADER_SIZE = 24;
+    static final int MESSAGE_HEADER_SIZE = 2;
+    static final int MAX_COUNT = 0xFFFF;
+
+    static final byte DATA = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte NACK = 3;
+    static final byte UNAVAILABLE = 4;
+
+    private MulticastPacket(){
+    }
+
+    /**
+     * 在buffer的index处写入报文头，不改变position
+     */
+    static void putHeader(ByteBuffer buffer,int index,byte type,int count,long session,long sequence){
+        buffer.putInt(index,MAGIC);
+        buffer.put(index + 4,type);
+        buffer.put(index + 5,(byte) 0);
+        buffer.putShort(index + 6,(short) count);
+        buffer.putLong(index + 8,session);
+        buffer.putLong(index + 16,sequence);
+    }
+
+    /**
+     * 校验从position开始的报文头
+     * @return 报文类型
+     * @throws IOException 长度不足或magic不符
+     */
+    static byte type(ByteBuffer buffer) throws IOException{
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt(buffer.position()) != MAGIC){
+            throw new IOException("无效的报文");
+        }
+        return buffer.get(buffer.position() + 4);
+    }
+
+    static int count(ByteBuffer buffer){
+        return buffer.getShort(buffer.position() + 6) & 0xFFFF;
+    }
+
+    static long session(ByteBuffer buffer){
+        return buffer.getLong(buffer.position() + 8);
+    }
+
+    static long sequence(ByteBuffer buffer){
+        return buffer.getLong(buffer.position() + 16);
+    }
+
+    /**
+     * 本地测试时使用的回环网卡，回环网卡一般不带MULTICAST标志，但Linux上仍可以在其上收发组播
+     */
+    static NetworkInterface loopbackInterface() throws SocketException{
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while(interfaces.hasMoreElements()){
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if(networkInterface.isLoopback() && networkInterface.isUp()){
+                return networkInterface;
+            }
+        }
+        throw new SocketException("没有可用的回环网卡");
+    }
+}
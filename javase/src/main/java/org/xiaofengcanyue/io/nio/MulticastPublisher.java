@@ -0,0 +1,440 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 可靠的有序组播发送端，在AboutMulticastChannel.serverStart的基础上增加：
+ * 每条消息有递增的序号；多条消息合并到一个不超过MTU的数据报中发送；
+ * 最近发送的数据报保存在重传缓冲区中，接收端发现缺失时通过单播NACK请求重传，发送端以单播回应；
+ * 空闲时定期组播心跳，接收端据此发现末尾的丢失。报文格式见MulticastPacket。
+ *
+ * 重传缓冲区是一整块直接内存，按数据报划分为槽位，消息直接写入当前槽位，
+ * 发送和重传都直接使用槽位的内容，发布消息时不分配内存。
+ * 消息合并期间不超过lingerMicros，也可以调用flush立即发送。
+ */
+public class MulticastPublisher implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MulticastPublisher.class.getName());
+    /**
+     * 以太网MTU 1500减去IP头和UDP头
+     */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+    /**
+     * 一次NACK最多重传的数据报数，其余的由接收端再次请求
+     */
+    private static final int MAX_RETRANSMIT_DATAGRAMS = 256;
+
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final long session = new Random().nextLong();
+    private int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+    private int retransmitCapacity = 8192;
+    private long lingerMicros = 1000;
+    private long heartbeatMillis = 100;
+    private int timeToLive = 1;
+
+    private DatagramChannel channel;
+    private ScheduledExecutorService timer;
+    private Thread nackReceiver;
+    private volatile boolean closed;
+
+    /**
+     * 以下字段由this保护。第n个数据报(从0开始)位于槽位n % retransmitCapacity，
+     * 正在合并的数据报位于槽位datagramsSent % retransmitCapacity
+     */
+    private ByteBuffer ring;
+    private ByteBuffer writeView;
+    private ByteBuffer sendView;
+    private long[] firstSequences;
+    private int[] lengths;
+    private final ByteBuffer control = ByteBuffer.allocateDirect(MulticastPacket.HEADER_SIZE);
+    private long datagramsSent;
+    private int slotPosition;
+    private int pendingCount;
+    private long pendingSinceNanos;
+    private long lastSendNanos;
+    private long nextSequence = 1;
+
+    private final AtomicLong nacksReceived = new AtomicLong();
+    private final AtomicLong retransmittedDatagrams = new AtomicLong();
+
+    /**
+     * @param group 组播地址和端口
+     * @param networkInterface 发送组播使用的网卡
+     */
+    public MulticastPublisher(InetSocketAddress group,NetworkInterface networkInterface){
+        this.group = group;
+        this.networkInterface = networkInterface;
+    }
+
+    /**
+     * @param maxDatagramSize 数据报(含报文头)的最大字节数，默认按以太网MTU
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if(maxDatagramSize <= MulticastPacket.HEADER_SIZE + MulticastPacket.MESSAGE_HEADER_SIZE || maxDatagramSize > 65507){
+            throw new IllegalArgumentException("无效的数据报大小：" + maxDatagramSize);
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * @param retransmitCapacity 重传缓冲区保存的数据报数
+     */
+    public void setRetransmitCapacity(int retransmitCapacity) {
+        if(retransmitCapacity < 2){
+            throw new IllegalArgumentException("retransmitCapacity至少为2：" + retransmitCapacity);
+        }
+        this.retransmitCapacity = retransmitCapacity;
+    }
+
+    public void setLingerMicros(long lingerMicros) {
+        this.lingerMicros = lingerMicros;
+    }
+
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * 打开通道，启动接收NACK的线程和定时发送合并中的消息及心跳的线程
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException{
+        if(channel != null){
+            throw new IllegalStateException("已经启动");
+        }
+        ring = ByteBuffer.allocateDirect(retransmitCapacity * maxDatagramSize);
+        writeView = ring.duplicate();
+        sendView = ring.duplicate();
+        firstSequences = new long[retransmitCapacity];
+        lengths = new int[retransmitCapacity];
+        channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF,networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_TTL,timeToLive)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP,true)
+                .bind(new InetSocketAddress(0));
+        lastSendNanos = System.nanoTime();
+        nackReceiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveNacks();
+            }
+        },"multicast-publisher-nack");
+        nackReceiver.setDaemon(true);
+        nackReceiver.start();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,"multicast-publisher-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long tickMicros = Math.max(100,Math.min(lingerMicros,TimeUnit.MILLISECONDS.toMicros(heartbeatMillis)));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        },tickMicros,tickMicros,TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * 发布一条消息
+     * @param message 剩余的字节在返回前已被复制
+     * @return 消息的序号，从1开始
+     * @throws IOException
+     */
+    public synchronized long publish(ByteBuffer message) throws IOException{
+        if(closed || channel == null){
+            throw new ClosedChannelException();
+        }
+        int length = message.remaining();
+        if(length > maxDatagramSize - MulticastPacket.HEADER_SIZE - MulticastPacket.MESSAGE_HEADER_SIZE){
+            throw new IllegalArgumentException("消息过大：" + length);
+        }
+        if(pendingCount > 0 && (slotPosition + MulticastPacket.MESSAGE_HEADER_SIZE + length > maxDatagramSize || pendingCount == MulticastPacket.MAX_COUNT)){
+            flushPending();
+        }
+        int slot = (int) (datagramsSent % retransmitCapacity);
+        int base = slot * maxDatagramSize;
+        if(pendingCount == 0){
+            slotPosition = MulticastPacket.HEADER_SIZE;
+            pendingSinceNanos = System.nanoTime();
+            firstSequences[slot] = nextSequence;
+        }
+        ring.putShort(base + slotPosition,(short) length);
+        int start = base + slotPosition + MulticastPacket.MESSAGE_HEADER_SIZE;
+        writeView.limit(start + length);
+        writeView.position(start);
+        writeView.put(message);
+        slotPosition += MulticastPacket.MESSAGE_HEADER_SIZE + length;
+        pendingCount++;
+        return nextSequence++;
+    }
+
+    /**
+     * 立即发送合并中的消息
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException{
+        flushPending();
+    }
+
+    private void flushPending() throws IOException{
+        if(pendingCount == 0){
+            return;
+        }
+        int slot = (int) (datagramsSent % retransmitCapacity);
+        int base = slot * maxDatagramSize;
+        MulticastPacket.putHeader(ring,base,MulticastPacket.DATA,pendingCount,session,firstSequences[slot]);
+        lengths[slot] = slotPosition;
+        sendView.limit(base + slotPosition);
+        sendView.position(base);
+        datagramsSent++;
+        pendingCount = 0;
+        lastSendNanos = System.nanoTime();
+        channel.send(sendView,group);
+    }
+
+    private synchronized void tick(){
+        if(closed){
+            return;
+        }
+        long now = System.nanoTime();
+        try{
+            if(pendingCount > 0){
+                if(now - pendingSinceNanos >= TimeUnit.MICROSECONDS.toNanos(lingerMicros)){
+                    flushPending();
+                }
+            }else if(now - lastSendNanos >= TimeUnit.MILLISECONDS.toNanos(heartbeatMillis)){
+                sendControl(MulticastPacket.HEARTBEAT,nextSequence,group);
+                lastSendNanos = now;
+            }
+        }catch (IOException e){
+            if(!closed){
+                LOGGER.log(Level.WARNING,"发送失败",e);
+            }
+        }
+    }
+
+    private void sendControl(byte type,long sequence,SocketAddress target) throws IOException{
+        MulticastPacket.putHeader(control,0,type,0,session,sequence);
+        control.clear();
+        channel.send(control,target);
+    }
+
+    private void receiveNacks(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MulticastPacket.HEADER_SIZE * 4);
+        while(!closed){
+            try{
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if(MulticastPacket.type(buffer) != MulticastPacket.NACK || MulticastPacket.session(buffer) != session){
+                    continue;
+                }
+                nacksReceived.incrementAndGet();
+                retransmit(MulticastPacket.sequence(buffer),MulticastPacket.count(buffer),from);
+            }catch (ClosedChannelException e){
+                return;
+            }catch (IOException e){
+                if(!closed){
+                    LOGGER.log(Level.FINE,"处理NACK失败",e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 以单播向target重传[from,from+count)所在的数据报；最早的部分已被覆盖时先回应UNAVAILABLE
+     */
+    private synchronized void retransmit(long from,int count,SocketAddress target) throws IOException{
+        long oldest = Math.max(0,datagramsSent - retransmitCapacity + 1);
+        if(oldest >= datagramsSent){
+            return;
+        }
+        long oldestSequence = firstSequence(oldest);
+        if(from < oldestSequence){
+            sendControl(MulticastPacket.UNAVAILABLE,oldestSequence,target);
+            from = oldestSequence;
+        }
+        long end = from + count;
+        /**
+         二分查找包含from的数据报
+         */
+        long low = oldest;
+        long high = datagramsSent - 1;
+        while(low < high){
+            long middle = (low + high + 1) >>> 1;
+            if(firstSequence(middle) <= from){
+                low = middle;
+            }else{
+                high = middle - 1;
+            }
+        }
+        for(long datagram = low,sent = 0;datagram < datagramsSent && firstSequence(datagram) < end && sent < MAX_RETRANSMIT_DATAGRAMS;datagram++,sent++){
+            int slot = (int) (datagram % retransmitCapacity);
+            int base = slot * maxDatagramSize;
+            sendView.limit(base + lengths[slot]);
+            sendView.position(base);
+            channel.send(sendView,target);
+            retransmittedDatagrams.incrementAndGet();
+        }
+    }
+
+    private long firstSequence(long datagram){
+        return firstSequences[(int) (datagram % retransmitCapacity)];
+    }
+
+    public synchronized long getPublished(){
+        return nextSequence - 1;
+    }
+
+    public synchronized long getDatagramsSent(){
+        return datagramsSent;
+    }
+
+    public long getNacksReceived(){
+        return nacksReceived.get();
+    }
+
+    public long getRetransmittedDatagrams(){
+        return retransmittedDatagrams.get();
+    }
+
+    /**
+     * 发送合并中的消息后关闭，之后无法再响应NACK
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        synchronized (this){
+            if(closed || channel == null){
+                closed = true;
+                return;
+            }
+            try{
+                flushPending();
+            }finally {
+                closed = true;
+            }
+        }
+        timer.shutdownNow();
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception{
+        loopbackBenchmark(3,1000 * 1000,64,100 * 1000,0.01);
+    }
+
+    /**
+     * 在回环网卡上由一个发送端向多个接收端组播，接收端按lossRate随机丢弃收到的组播数据报以触发NACK重传。
+     * 每条消息的前8个字节是它的序号，接收端检查消息是否按序、内容是否与序号一致。
+     * @param subscribers 接收端个数
+     * @param messages 消息条数
+     * @param messageSize 每条消息的字节数，至少为8
+     * @param messagesPerSecond 发送速率，接收端跟不上时(例如CPU核数少)会持续溢出接收缓冲区，超出重传缓冲区后只能报告丢失
+     * @param lossRate 模拟丢包率
+     * @throws Exception
+     */
+    public static void loopbackBenchmark(int subscribers,long messages,int messageSize,long messagesPerSecond,double lossRate) throws Exception{
+        NetworkInterface loopback = MulticastPacket.loopbackInterface();
+        InetSocketAddress group = new InetSocketAddress("239.255.0.1",5001);
+        List<MulticastSubscriber> receivers = new ArrayList<>();
+        final List<long[]> checks = new ArrayList<>();
+        for(int i = 0;i < subscribers;i++){
+            /**
+             下一条应收到的序号、顺序错误数、内容错误数、报告丢失的条数
+             */
+            final long[] check = new long[4];
+            checks.add(check);
+            MulticastSubscriber subscriber = new MulticastSubscriber(group,loopback,new MulticastSubscriber.Listener() {
+                @Override
+                public void onMessage(long sequence, ByteBuffer message) {
+                    if(check[0] != 0 && sequence != check[0]){
+                        check[1]++;
+                    }
+                    if(message.getLong(message.position()) != sequence){
+                        check[2]++;
+                    }
+                    check[0] = sequence + 1;
+                }
+
+                @Override
+                public void onLoss(long sequence, long count) {
+                    check[3] += count;
+                    check[0] = sequence + count;
+                }
+            });
+            subscriber.setSimulatedLossRate(lossRate);
+            subscriber.start();
+            receivers.add(subscriber);
+        }
+
+        try(MulticastPublisher publisher = new MulticastPublisher(group,loopback)){
+            publisher.setHeartbeatMillis(20);
+            publisher.start();
+            for(MulticastSubscriber subscriber : receivers){
+                while(subscriber.getExpectedSequence() == 0){
+                    Thread.sleep(10);
+                }
+            }
+            ByteBuffer message = ByteBuffer.allocate(messageSize);
+            long begin = System.nanoTime();
+            for(long sequence = 1;sequence <= messages;sequence++){
+                message.clear();
+                message.putLong(0,sequence);
+                publisher.publish(message);
+                if(sequence % 1000 == 0){
+                    long wait = begin + sequence * 1000000000L / messagesPerSecond - System.nanoTime();
+                    if(wait > 0){
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            }
+            publisher.flush();
+            long published = System.nanoTime() - begin;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            for(MulticastSubscriber subscriber : receivers){
+                while(subscriber.getExpectedSequence() <= messages && System.nanoTime() < deadline){
+                    Thread.sleep(1);
+                }
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.println(String.format("published %d messages of %d bytes in %d datagrams, %.0f messages/s, all received after %dms, nacks=%d, retransmitted=%d",
+                    messages,messageSize,publisher.getDatagramsSent(),messages / (published / 1e9),TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    publisher.getNacksReceived(),publisher.getRetransmittedDatagrams()));
+        }finally {
+            for(int i = 0;i < receivers.size();i++){
+                MulticastSubscriber subscriber = receivers.get(i);
+                subscriber.close();
+                long[] check = checks.get(i);
+                System.out.println("subscriber " + i + " ===> " + subscriber + ", order errors=" + check[1] + ", content errors=" + check[2] + ", reported lost=" + check[3]);
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 高速组播接收：一个线程、一个选择器接收多个组播组，数据报读入预先分配的缓冲区环，
+ * 以缓冲区本身(不复制、不创建视图对象)交给处理器，接收过程中不分配内存。
+ * 每个组统计数据报数、字节数，数据报中带有序号时(见setSequenceOffset)还统计丢失和乱序。
+ *
+ * 每个组一个通道并绑定到组地址：Linux上绑定到组地址的套接字只收到发往该组的数据报，
+ * 即使多个组使用同一端口，也能区分数据报属于哪个组。不支持绑定组地址的系统上退回绑定通配地址。
+ */
+public class MulticastReceiver implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MulticastReceiver.class.getName());
+
+    public interface Handler{
+        /**
+         * @param group 数据报所属的组
+         * @param datagram 缓冲区环中的一个槽位，内容在之后再收到ringSize个数据报前保持不变，
+         *                 需要更久保留时应复制。处理器可以改变其position和limit。
+         */
+        void onDatagram(Group group,ByteBuffer datagram);
+    }
+
+    /**
+     * 一个已加入的组及其统计，计数器只由接收线程更新
+     */
+    public static final class Group{
+        private final InetSocketAddress address;
+        private final DatagramChannel channel;
+        private long expected;
+        private volatile long datagrams;
+        private volatile long bytes;
+        private volatile long drops;
+        private volatile long outOfOrder;
+
+        Group(InetSocketAddress address,DatagramChannel channel){
+            this.address = address;
+            this.channel = channel;
+        }
+
+        public InetSocketAddress getAddress(){
+            return address;
+        }
+
+        public long getDatagrams(){
+            return datagrams;
+        }
+
+        public long getBytes(){
+            return bytes;
+        }
+
+        /**
+         * @return 按序号推算缺失的数据报数，之后迟到的数据报会从中扣除
+         */
+        public long getDrops(){
+            return drops;
+        }
+
+        /**
+         * @return 序号小于已收到的最大序号的数据报数(迟到或重复)
+         */
+        public long getOutOfOrder(){
+            return outOfOrder;
+        }
+
+        private void update(ByteBuffer datagram,int sequenceOffset){
+            datagrams++;
+            bytes += datagram.remaining();
+            if(sequenceOffset < 0 || datagram.remaining() < sequenceOffset + 8){
+                return;
+            }
+            long sequence = datagram.getLong(datagram.position() + sequenceOffset);
+            if(expected == 0 || sequence == expected){
+                expected = sequence + 1;
+            }else if(sequence > expected){
+                drops += sequence - expected;
+                expected = sequence + 1;
+            }else{
+                outOfOrder++;
+                if(drops > 0){
+                    drops--;
+                }
+            }
+        }
+
+        @Override
+        public String toString(){
+            return address + " ===> datagrams=" + datagrams + ", bytes=" + bytes + ", drops=" + drops + ", outOfOrder=" + outOfOrder;
+        }
+    }
+
+    private final NetworkInterface networkInterface;
+    private final Handler handler;
+    private int ringSize = 1024;
+    private int slotSize = 2048;
+    private int receiveBufferSize = 4 * 1024 * 1024;
+    private int sequenceOffset = -1;
+    /**
+     * 一个通道连续读取的最大数据报数，之后轮到其他组，避免一个高速组饿死其他组
+     */
+    private int readBudget = 64;
+
+    private final List<Group> groups = new ArrayList<>();
+    private Selector selector;
+    private Thread thread;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong truncated = new AtomicLong();
+
+    /**
+     * @param networkInterface 加入组播组使用的网卡，可以用defaultInterface()选择
+     * @param handler 在接收线程上调用
+     */
+    public MulticastReceiver(NetworkInterface networkInterface,Handler handler){
+        this.networkInterface = networkInterface;
+        this.handler = handler;
+    }
+
+    /**
+     * @param ringSize 缓冲区环的槽位数，向上取整为2的幂
+     */
+    public void setRingSize(int ringSize) {
+        this.ringSize = Integer.highestOneBit(Math.max(2,ringSize - 1)) << 1;
+    }
+
+    /**
+     * @param slotSize 每个槽位的字节数，超过它的数据报会被截断并计数
+     */
+    public void setSlotSize(int slotSize) {
+        this.slotSize = slotSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @param sequenceOffset 数据报中8字节大端序号的位置，为负数时不统计丢失和乱序
+     */
+    public void setSequenceOffset(int sequenceOffset) {
+        this.sequenceOffset = sequenceOffset;
+    }
+
+    public void setReadBudget(int readBudget) {
+        this.readBudget = readBudget;
+    }
+
+    /**
+     * 加入一个组，需在start之前调用
+     * @param address 组地址和端口
+     * @return
+     * @throws IOException
+     */
+    public synchronized Group join(InetSocketAddress address) throws IOException{
+        if(thread != null){
+            throw new IllegalStateException("接收已经开始");
+        }
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR,true)
+                .setOption(StandardSocketOptions.SO_RCVBUF,receiveBufferSize);
+        try{
+            try{
+                channel.bind(address);
+            }catch (IOException e){
+                channel.bind(new InetSocketAddress(address.getPort()));
+            }
+            channel.join(address.getAddress(),networkInterface);
+            channel.configureBlocking(false);
+        }catch (IOException e){
+            channel.close();
+            throw e;
+        }
+        Group group = new Group(address,channel);
+        groups.add(group);
+        return group;
+    }
+
+    public synchronized List<Group> getGroups(){
+        return Collections.unmodifiableList(new ArrayList<>(groups));
+    }
+
+    /**
+     * @return 超过槽位大小被截断的数据报数
+     */
+    public long getTruncated(){
+        return truncated.get();
+    }
+
+    /**
+     * 启动接收线程
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException{
+        if(thread != null){
+            throw new IllegalStateException("已经启动");
+        }
+        selector = Selector.open();
+        for(Group group : groups){
+            group.channel.register(selector,SelectionKey.OP_READ,group);
+        }
+        final ByteBuffer[] ring = new ByteBuffer[ringSize];
+        /**
+         * 每个槽位多留一个字节：收满slotSize + 1字节才说明数据报被截断，正好slotSize字节的数据报是完整的
+         */
+        int stride = slotSize + 1;
+        ByteBuffer memory = ByteBuffer.allocateDirect(ringSize * stride);
+        for(int i = 0;i < ringSize;i++){
+            memory.limit((i + 1) * stride);
+            memory.position(i * stride);
+            ring[i] = memory.slice();
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(ring);
+            }
+        },"multicast-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void receive(ByteBuffer[] ring){
+        int mask = ring.length - 1;
+        long next = 0;
+        try{
+            while(!closed.get()){
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()){
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Group group = (Group) key.attachment();
+                    for(int i = 0;i < readBudget;i++){
+                        ByteBuffer slot = ring[(int) (next & mask)];
+                        slot.clear();
+                        if(group.channel.receive(slot) == null){
+                            break;
+                        }
+                        next++;
+                        if(slot.position() > slotSize){
+                            truncated.incrementAndGet();
+                            slot.position(slotSize);
+                        }
+                        slot.flip();
+                        group.update(slot,sequenceOffset);
+                        try{
+                            handler.onDatagram(group,slot);
+                        }catch (RuntimeException e){
+                            LOGGER.log(Level.WARNING,"处理器出错",e);
+                        }
+                    }
+                }
+            }
+        }catch (IOException e){
+            if(!closed.get()){
+                LOGGER.log(Level.WARNING,"接收失败",e);
+            }
+        }finally {
+            for(Group group : groups){
+                try{
+                    group.channel.close();
+                }catch (IOException ignored){
+                }
+            }
+            try{
+                selector.close();
+            }catch (IOException ignored){
+            }
+        }
+    }
+
+    /**
+     * 停止接收线程并等待其退出，之后处理器不会再被调用；所有组的通道都会关闭。
+     * 等待期间被中断则恢复中断标记并提前返回，接收线程仍会自行退出并关闭通道
+     */
+    @Override
+    public void close(){
+        if(!closed.compareAndSet(false,true)){
+            return;
+        }
+        Thread receiver;
+        synchronized (this){
+            receiver = thread;
+            if(receiver == null){
+                for(Group group : groups){
+                    try{
+                        group.channel.close();
+                    }catch (IOException ignored){
+                    }
+                }
+                return;
+            }
+        }
+        selector.wakeup();
+        if(receiver == Thread.currentThread()){
+            return;
+        }
+        try{
+            receiver.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 选择组播网卡：系统属性multicast.interface指定的网卡，否则是第一个启用的、支持组播的非回环网卡，都没有时使用回环网卡
+     * @return
+     * @throws SocketException 找不到可用的网卡
+     */
+    public static NetworkInterface defaultInterface() throws SocketException{
+        String name = System.getProperty("multicast.interface");
+        if(name != null){
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if(networkInterface == null){
+                throw new SocketException("找不到网卡：" + name);
+            }
+            return networkInterface;
+        }
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while(interfaces.hasMoreElements()){
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if(networkInterface.isUp() && !networkInterface.isLoopback() && networkInterface.supportsMulticast()){
+                return networkInterface;
+            }
+        }
+        return MulticastPacket.loopbackInterface();
+    }
+
+    public static void main(String[] args) throws Exception{
+        compareWithAllocatingReceiver(4,2000 * 1000,64);
+    }
+
+    /**
+     * 在回环网卡上由一个线程轮流向groupCount个组发送带序号的数据报，
+     * 分别用MulticastReceiver和按AboutMulticastChannel.clientStart的方式(每个数据报新建ByteBuffer、byte[]和String)接收，
+     * 比较接收速率和丢失数。
+     * @param groupCount
+     * @param datagrams 每种方式发送的数据报总数
+     * @param datagramSize 至少为8，前8个字节为所在组内的序号
+     * @throws Exception
+     */
+    public static void compareWithAllocatingReceiver(int groupCount,long datagrams,int datagramSize) throws Exception{
+        NetworkInterface loopback = MulticastPacket.loopbackInterface();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for(int i = 0;i < groupCount;i++){
+            addresses.add(new InetSocketAddress(InetAddress.getByName("239.255.2." + (i + 1)),6000));
+        }
+
+        final AtomicLong received = new AtomicLong();
+        MulticastReceiver receiver = new MulticastReceiver(loopback,new Handler() {
+            private long count;
+
+            @Override
+            public void onDatagram(Group group, ByteBuffer datagram) {
+                received.lazySet(++count);
+            }
+        });
+        receiver.setSequenceOffset(0);
+        for(InetSocketAddress address : addresses){
+            receiver.join(address);
+        }
+        receiver.start();
+        long elapsed;
+        try{
+            elapsed = send(loopback,addresses,datagrams,datagramSize,received);
+        }finally {
+            receiver.close();
+        }
+        long drops = 0;
+        for(Group group : receiver.getGroups()){
+            drops += group.getDrops();
+            System.out.println("    " + group);
+        }
+        print("MulticastReceiver",datagrams,received.get(),drops,elapsed);
+
+        final List<DatagramChannel> channels = new ArrayList<>();
+        for(InetSocketAddress address : addresses){
+            DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR,true)
+                    .setOption(StandardSocketOptions.SO_RCVBUF,4 * 1024 * 1024)
+                    .bind(address);
+            channel.join(address.getAddress(),loopback);
+            channel.configureBlocking(false);
+            channels.add(channel);
+        }
+        final AtomicLong allocatingReceived = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread allocating = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long count = 0;
+                try(Selector selector = Selector.open()){
+                    for(DatagramChannel channel : channels){
+                        channel.register(selector,SelectionKey.OP_READ);
+                    }
+                    while(!stop.get()){
+                        selector.select(100);
+                        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                        while(iterator.hasNext()){
+                            DatagramChannel channel = (DatagramChannel) iterator.next().channel();
+                            iterator.remove();
+                            while(true){
+                                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                                if(channel.receive(buffer) == null){
+                                    break;
+                                }
+                                buffer.flip();
+                                byte[] data = new byte[buffer.limit()];
+                                buffer.get(data);
+                                String str = new String(data,StandardCharsets.ISO_8859_1);
+                                if(str.isEmpty()){
+                                    continue;
+                                }
+                                allocatingReceived.lazySet(++count);
+                            }
+                        }
+                    }
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        },"allocating-receiver");
+        allocating.start();
+        try{
+            elapsed = send(loopback,addresses,datagrams,datagramSize,allocatingReceived);
+        }finally {
+            stop.set(true);
+            allocating.join();
+            for(DatagramChannel channel : channels){
+                channel.close();
+            }
+        }
+        print("allocating receiver",datagrams,allocatingReceived.get(),datagrams - allocatingReceived.get(),elapsed);
+    }
+
+    /**
+     * 发送完后等待接收端不再有进展
+     * @return 从开始发送到接收停止的时间
+     */
+    private static long send(NetworkInterface networkInterface,List<InetSocketAddress> addresses,long datagrams,int datagramSize,AtomicLong received) throws Exception{
+        try(DatagramChannel sender = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF,networkInterface)
+                .setOption(StandardSocketOptions.SO_SNDBUF,4 * 1024 * 1024)
+                .bind(null)){
+            ByteBuffer datagram = ByteBuffer.allocateDirect(datagramSize);
+            long[] sequences = new long[addresses.size()];
+            long begin = System.nanoTime();
+            for(long i = 0;i < datagrams;i++){
+                int group = (int) (i % addresses.size());
+                datagram.clear();
+                datagram.putLong(0,++sequences[group]);
+                sender.send(datagram,addresses.get(group));
+            }
+            long last = -1;
+            long lastProgressNanos = System.nanoTime();
+            while(received.get() < datagrams && System.nanoTime() - lastProgressNanos < TimeUnit.MILLISECONDS.toNanos(200)){
+                long current = received.get();
+                if(current != last){
+                    last = current;
+                    lastProgressNanos = System.nanoTime();
+                }
+                Thread.sleep(1);
+            }
+            return lastProgressNanos - begin;
+        }
+    }
+
+    private static void print(String name,long sent,long received,long drops,long elapsedNanos){
+        System.out.println(String.format("%s ===> sent %d, received %d (%.0f datagrams/s), drops=%d",
+                name,sent,received,received / (elapsedNanos / 1e9),drops));
+    }
+}
@@ -0,0 +1,410 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MulticastPublisher的接收端：按序号顺序交付消息，发现缺失时向发送端单播NACK，
+ * 缺失期间收到的后续消息先复制保存，补齐后按顺序交付；发送端已无法重传的消息通过onLoss报告后跳过。
+ *
+ * 组播通道之外另开一个单播通道发送NACK、接收重传：同一台机器上的多个接收端共用组播端口(SO_REUSEADDR)，
+ * 发往这个端口的单播数据报只会交给其中一个，因此重传必须发往各自的端口。
+ * 两个通道注册在同一个选择器上，由一个线程处理，监听器也在这个线程上调用。
+ * 接收端从收到的第一个报文的序号开始计数，不请求加入之前的消息。
+ */
+public class MulticastSubscriber implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MulticastSubscriber.class.getName());
+    /**
+     * 每轮最多为多少个缺口发送NACK
+     */
+    private static final int MAX_NACKS_PER_ROUND = 16;
+
+    public interface Listener{
+        /**
+         * @param sequence
+         * @param message 只在调用期间有效，需要保留时应复制
+         */
+        void onMessage(long sequence,ByteBuffer message);
+
+        /**
+         * 发送端已无法重传[sequence,sequence+count)，这些消息被跳过
+         */
+        default void onLoss(long sequence,long count){
+        }
+    }
+
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final Listener listener;
+    private long nackIntervalMillis = 20;
+    private int maxBufferedMessages = 64 * 1024;
+    private int receiveBufferSize = 4 * 1024 * 1024;
+    private double simulatedLossRate;
+
+    private DatagramChannel multicastChannel;
+    private DatagramChannel unicastChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * 以下字段只由接收线程访问
+     */
+    private boolean synced;
+    private long session;
+    private SocketAddress publisher;
+    /**
+     * 已知存在的消息的上界(不含)，来自数据报和心跳
+     */
+    private long highest;
+    private final TreeMap<Long,ByteBuffer> outOfOrder = new TreeMap<>();
+    private final ByteBuffer nack = ByteBuffer.allocateDirect(MulticastPacket.HEADER_SIZE);
+    private long lastNackNanos;
+    /**
+     * 最近一次收到单播重传的时间，重传还在陆续到达时不重复发送NACK
+     */
+    private long lastRetransmitNanos;
+
+    private volatile long expected;
+    private volatile long delivered;
+    private volatile long datagrams;
+    private volatile long duplicates;
+    private volatile long nacksSent;
+    private volatile long lost;
+    private volatile long simulatedDrops;
+
+    public MulticastSubscriber(InetSocketAddress group,NetworkInterface networkInterface,Listener listener){
+        this.group = group;
+        this.networkInterface = networkInterface;
+        this.listener = listener;
+    }
+
+    /**
+     * @param nackIntervalMillis 两轮NACK之间的最小间隔，重传停止到达这么久之后才会再次请求
+     */
+    public void setNackIntervalMillis(long nackIntervalMillis) {
+        this.nackIntervalMillis = nackIntervalMillis;
+    }
+
+    /**
+     * @param maxBufferedMessages 等待补齐时最多保存的后续消息数，超过后丢弃，之后再通过NACK取回
+     */
+    public void setMaxBufferedMessages(int maxBufferedMessages) {
+        this.maxBufferedMessages = maxBufferedMessages;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * 用于测试：按这个概率丢弃收到的组播数据报(不包括单播重传)
+     */
+    public void setSimulatedLossRate(double simulatedLossRate) {
+        this.simulatedLossRate = simulatedLossRate;
+    }
+
+    /**
+     * 加入组播组并启动接收线程
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException{
+        if(thread != null){
+            throw new IllegalStateException("已经启动");
+        }
+        selector = Selector.open();
+        multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR,true)
+                .setOption(StandardSocketOptions.SO_RCVBUF,receiveBufferSize)
+                .bind(new InetSocketAddress(group.getPort()));
+        multicastChannel.join(group.getAddress(),networkInterface);
+        unicastChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_RCVBUF,receiveBufferSize)
+                .bind(new InetSocketAddress(0));
+        multicastChannel.configureBlocking(false);
+        unicastChannel.configureBlocking(false);
+        multicastChannel.register(selector,SelectionKey.OP_READ,Boolean.TRUE);
+        unicastChannel.register(selector,SelectionKey.OP_READ,Boolean.FALSE);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        },"multicast-subscriber-" + group.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void receive(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long nackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(nackIntervalMillis);
+        try{
+            while(!closed){
+                selector.select(Math.max(1,nackIntervalMillis));
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()){
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    boolean multicast = (Boolean) key.attachment();
+                    SocketAddress from;
+                    while((from = channel.receive(buffer)) != null){
+                        buffer.flip();
+                        try{
+                            handle(buffer,from,multicast);
+                        }catch (IOException e){
+                            LOGGER.log(Level.FINE,"忽略无效的报文",e);
+                        }
+                        buffer.clear();
+                    }
+                }
+                long now = System.nanoTime();
+                if(synced && expected < highest && now - lastNackNanos >= nackIntervalNanos && now - lastRetransmitNanos >= nackIntervalNanos){
+                    sendNacks();
+                    lastNackNanos = now;
+                }
+            }
+        }catch (IOException e){
+            if(!closed){
+                LOGGER.log(Level.WARNING,"接收失败",e);
+            }
+        }finally {
+            closeQuietly();
+        }
+    }
+
+    private void handle(ByteBuffer buffer,SocketAddress from,boolean multicast) throws IOException{
+        byte type = MulticastPacket.type(buffer);
+        if(multicast && simulatedLossRate > 0 && ThreadLocalRandom.current().nextDouble() < simulatedLossRate){
+            simulatedDrops++;
+            return;
+        }
+        long packetSession = MulticastPacket.session(buffer);
+        long sequence = MulticastPacket.sequence(buffer);
+        if(!synced || packetSession != session){
+            if(!multicast || (type != MulticastPacket.DATA && type != MulticastPacket.HEARTBEAT)){
+                return;
+            }
+            /**
+             第一次收到报文，或者发送端重启后换了session
+             */
+            synced = true;
+            session = packetSession;
+            outOfOrder.clear();
+            expected = sequence;
+            highest = sequence;
+        }
+        if(multicast){
+            publisher = from;
+        }
+        switch (type){
+            case MulticastPacket.DATA:
+                datagrams++;
+                if(!multicast){
+                    lastRetransmitNanos = System.nanoTime();
+                }
+                int count = MulticastPacket.count(buffer);
+                buffer.position(buffer.position() + MulticastPacket.HEADER_SIZE);
+                for(int i = 0;i < count;i++){
+                    if(buffer.remaining() < MulticastPacket.MESSAGE_HEADER_SIZE){
+                        throw new IOException("数据报不完整");
+                    }
+                    int length = buffer.getShort() & 0xFFFF;
+                    if(buffer.remaining() < length){
+                        throw new IOException("数据报不完整");
+                    }
+                    int limit = buffer.limit();
+                    int end = buffer.position() + length;
+                    buffer.limit(end);
+                    onData(sequence + i,buffer);
+                    buffer.limit(limit);
+                    buffer.position(end);
+                }
+                highest = Math.max(highest,sequence + count);
+                break;
+            case MulticastPacket.HEARTBEAT:
+                highest = Math.max(highest,sequence);
+                break;
+            case MulticastPacket.UNAVAILABLE:
+                skipTo(sequence);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onData(long sequence,ByteBuffer message){
+        if(sequence < expected || outOfOrder.containsKey(sequence)){
+            duplicates++;
+        }else if(sequence == expected){
+            deliver(sequence,message);
+            drain();
+        }else if(outOfOrder.size() < maxBufferedMessages){
+            ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+            copy.put(message.duplicate());
+            copy.flip();
+            outOfOrder.put(sequence,copy);
+        }
+    }
+
+    private void deliver(long sequence,ByteBuffer message){
+        expected = sequence + 1;
+        delivered++;
+        try{
+            listener.onMessage(sequence,message);
+        }catch (RuntimeException e){
+            LOGGER.log(Level.WARNING,"监听器出错",e);
+        }
+    }
+
+    /**
+     * 交付已经保存的、从expected开始连续的消息
+     */
+    private void drain(){
+        ByteBuffer message;
+        while(!outOfOrder.isEmpty() && (message = outOfOrder.remove(expected)) != null){
+            deliver(expected,message);
+        }
+    }
+
+    /**
+     * 发送端已无法重传sequence之前的消息：交付其中已保存的，其余报告丢失
+     */
+    private void skipTo(long sequence){
+        while(expected < sequence){
+            ByteBuffer message = outOfOrder.remove(expected);
+            if(message != null){
+                deliver(expected,message);
+                continue;
+            }
+            Long next = outOfOrder.ceilingKey(expected);
+            long end = next == null ? sequence : Math.min(next,sequence);
+            long count = end - expected;
+            lost += count;
+            long from = expected;
+            expected = end;
+            try{
+                listener.onLoss(from,count);
+            }catch (RuntimeException e){
+                LOGGER.log(Level.WARNING,"监听器出错",e);
+            }
+        }
+        highest = Math.max(highest,sequence);
+        drain();
+    }
+
+    /**
+     * 为[expected,highest)中的每个缺口发送一个NACK
+     */
+    private void sendNacks() throws IOException{
+        long from = expected;
+        int sent = 0;
+        for(Map.Entry<Long,ByteBuffer> entry : outOfOrder.tailMap(expected).entrySet()){
+            long key = entry.getKey();
+            if(key > from){
+                sendNack(from,key - from);
+                if(++sent == MAX_NACKS_PER_ROUND){
+                    return;
+                }
+            }
+            from = key + 1;
+        }
+        if(from < highest){
+            sendNack(from,highest - from);
+        }
+    }
+
+    private void sendNack(long from,long count) throws IOException{
+        MulticastPacket.putHeader(nack,0,MulticastPacket.NACK,(int) Math.min(count,MulticastPacket.MAX_COUNT),session,from);
+        nack.clear();
+        unicastChannel.send(nack,publisher);
+        nacksSent++;
+    }
+
+    /**
+     * @return 下一条要交付的消息序号，还没有收到任何报文时为0
+     */
+    public long getExpectedSequence(){
+        return expected;
+    }
+
+    public long getDelivered(){
+        return delivered;
+    }
+
+    public long getDatagrams(){
+        return datagrams;
+    }
+
+    public long getDuplicates(){
+        return duplicates;
+    }
+
+    public long getNacksSent(){
+        return nacksSent;
+    }
+
+    public long getLost(){
+        return lost;
+    }
+
+    public long getSimulatedDrops(){
+        return simulatedDrops;
+    }
+
+    /**
+     * 停止接收线程并等待其退出，返回后监听器不会再被调用；
+     * 等待期间被中断则恢复中断标记并提前返回，此时接收线程仍会自行退出
+     */
+    @Override
+    public void close(){
+        closed = true;
+        Thread receiver;
+        synchronized (this){
+            receiver = thread;
+        }
+        if(receiver == null){
+            return;
+        }
+        selector.wakeup();
+        if(receiver != Thread.currentThread()){
+            try{
+                receiver.join();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeQuietly(){
+        try{
+            multicastChannel.close();
+            unicastChannel.close();
+            selector.close();
+        }catch (IOException e){
+            LOGGER.log(Level.FINE,"关闭失败",e);
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "delivered=" + delivered + ", datagrams=" + datagrams + ", duplicates=" + duplicates + ", nacks=" + nacksSent
+                + ", lost=" + lost + ", simulatedDrops=" + simulatedDrops;
+    }
+}
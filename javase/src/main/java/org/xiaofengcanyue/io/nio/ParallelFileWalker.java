@@ -0,0 +1,445 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 并行遍历目录树：每个目录是一个ForkJoin任务，子目录各自fork；目录项很多时按batchSize分成几批并行处理，
+ * 避免一个大目录由一个线程处理。
+ * 打开的目录句柄数由信号量限制，句柄只在读取目录项时持有，处理子项之前就已关闭，不会随递归深度或并行度累积。
+ * 与Files.walkFileTree一样不跟随符号链接。
+ *
+ * 每个任务在自己的Stats中计数，join时向上合并，计数过程没有竞争。
+ * postVisitDirectory在目录的所有子项(包括子目录树)处理完之后调用，因此可以用来并行删除(见delete)。
+ * Visitor的方法会被多个线程同时调用，需要是线程安全的。
+ */
+public class ParallelFileWalker implements AutoCloseable {
+
+    public interface Visitor{
+        /**
+         * @return false时跳过该目录，不读取其子项，也不调用postVisitDirectory
+         */
+        default boolean preVisitDirectory(Path dir,BasicFileAttributes attrs) throws IOException{
+            return true;
+        }
+
+        void visitFile(Path file,BasicFileAttributes attrs) throws IOException;
+
+        /**
+         * 读取属性或列出目录失败时调用
+         */
+        default void visitFileFailed(Path file,IOException exc){
+        }
+
+        /**
+         * @param exc 列出目录失败时不为null
+         */
+        default void postVisitDirectory(Path dir,IOException exc) throws IOException{
+        }
+    }
+
+    /**
+     * 遍历的统计，按扩展名(小写，没有扩展名时为空字符串)统计文件数和字节数
+     */
+    public static final class Stats{
+        private long files;
+        private long directories;
+        private long bytes;
+        private long errors;
+        private IOException firstError;
+        private final Map<String,long[]> extensions = new HashMap<>();
+
+        void file(Path file,BasicFileAttributes attrs){
+            files++;
+            bytes += attrs.size();
+            long[] extension = extensions.get(extension(file));
+            if(extension == null){
+                extension = new long[2];
+                extensions.put(extension(file),extension);
+            }
+            extension[0]++;
+            extension[1] += attrs.size();
+        }
+
+        void error(IOException e){
+            errors++;
+            if(firstError == null){
+                firstError = e;
+            }
+        }
+
+        void merge(Stats other){
+            files += other.files;
+            directories += other.directories;
+            bytes += other.bytes;
+            errors += other.errors;
+            if(firstError == null){
+                firstError = other.firstError;
+            }
+            for(Map.Entry<String,long[]> entry : other.extensions.entrySet()){
+                long[] extension = extensions.get(entry.getKey());
+                if(extension == null){
+                    extensions.put(entry.getKey(),entry.getValue());
+                }else{
+                    extension[0] += entry.getValue()[0];
+                    extension[1] += entry.getValue()[1];
+                }
+            }
+        }
+
+        private static String extension(Path file){
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            return dot <= 0 || dot == name.length() - 1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        }
+
+        public long getFiles(){
+            return files;
+        }
+
+        public long getDirectories(){
+            return directories;
+        }
+
+        public long getBytes(){
+            return bytes;
+        }
+
+        public long getErrors(){
+            return errors;
+        }
+
+        /**
+         * @return 第一个错误，没有错误时为null
+         */
+        public IOException getFirstError(){
+            return firstError;
+        }
+
+        /**
+         * @return 扩展名到文件数
+         */
+        public Map<String,Long> getExtensionCounts(){
+            Map<String,Long> counts = new HashMap<>();
+            for(Map.Entry<String,long[]> entry : extensions.entrySet()){
+                counts.put(entry.getKey(),entry.getValue()[0]);
+            }
+            return counts;
+        }
+
+        /**
+         * @return 扩展名到字节数
+         */
+        public Map<String,Long> getExtensionBytes(){
+            Map<String,Long> counts = new HashMap<>();
+            for(Map.Entry<String,long[]> entry : extensions.entrySet()){
+                counts.put(entry.getKey(),entry.getValue()[1]);
+            }
+            return counts;
+        }
+
+        /**
+         * 字节数最多的前10个扩展名
+         */
+        @Override
+        public String toString(){
+            List<Map.Entry<String,long[]>> top = new ArrayList<>(extensions.entrySet());
+            Collections.sort(top,(a,b) -> Long.compare(b.getValue()[1],a.getValue()[1]));
+            StringBuilder builder = new StringBuilder();
+            builder.append("files=").append(files).append(", directories=").append(directories)
+                    .append(", bytes=").append(bytes).append(", errors=").append(errors).append(", extensions={");
+            for(int i = 0;i < Math.min(10,top.size());i++){
+                Map.Entry<String,long[]> entry = top.get(i);
+                builder.append(i == 0 ? "" : ", ").append(entry.getKey().isEmpty() ? "(none)" : entry.getKey())
+                        .append(':').append(entry.getValue()[0]).append('/').append(entry.getValue()[1]);
+            }
+            return builder.append(top.size() > 10 ? ", ...}" : "}").toString();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Semaphore openDirectories;
+    private int batchSize = 1024;
+
+    /**
+     * 并行度为处理器数的2倍(遍历时大部分时间在等待stat等系统调用)，最多同时打开64个目录
+     */
+    public ParallelFileWalker(){
+        this(Math.max(4,Runtime.getRuntime().availableProcessors() * 2),64);
+    }
+
+    /**
+     * @param parallelism ForkJoinPool的并行度
+     * @param maxOpenDirectories 同时打开的目录句柄数上限
+     */
+    public ParallelFileWalker(int parallelism,int maxOpenDirectories){
+        this.pool = new ForkJoinPool(parallelism);
+        this.openDirectories = new Semaphore(maxOpenDirectories);
+    }
+
+    /**
+     * @param batchSize 一个目录的子项超过它时分批并行处理
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1,batchSize);
+    }
+
+    /**
+     * 遍历以root为根的目录树，root是文件时只访问它本身
+     * @param root
+     * @param visitor
+     * @return 统计，访问过程中的IOException计入其中，不会中断遍历
+     * @throws IOException 无法读取root的属性
+     */
+    public Stats walk(Path root,Visitor visitor) throws IOException{
+        BasicFileAttributes attrs = Files.readAttributes(root,BasicFileAttributes.class,LinkOption.NOFOLLOW_LINKS);
+        if(!attrs.isDirectory()){
+            Stats stats = new Stats();
+            stats.file(root,attrs);
+            visitor.visitFile(root,attrs);
+            return stats;
+        }
+        return pool.invoke(new DirectoryTask(root,attrs,visitor));
+    }
+
+    /**
+     * 并行删除root及其下的所有文件和目录
+     * @param root
+     * @return 删除的文件和目录的统计，删除失败的计入errors
+     * @throws IOException 无法读取root的属性
+     */
+    public Stats delete(Path root) throws IOException{
+        return walk(root,new Visitor() {
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+            }
+
+            @Override
+            public void postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if(exc == null){
+                    Files.delete(dir);
+                }
+            }
+        });
+    }
+
+    private final class DirectoryTask extends RecursiveTask<Stats>{
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final Visitor visitor;
+
+        DirectoryTask(Path dir,BasicFileAttributes attrs,Visitor visitor){
+            this.dir = dir;
+            this.attrs = attrs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected Stats compute() {
+            Stats stats = new Stats();
+            try{
+                if(!visitor.preVisitDirectory(dir,attrs)){
+                    return stats;
+                }
+            }catch (IOException e){
+                stats.error(e);
+                return stats;
+            }
+            stats.directories++;
+            List<Path> entries = new ArrayList<>();
+            IOException listError = null;
+            openDirectories.acquireUninterruptibly();
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+                for(Path entry : stream){
+                    entries.add(entry);
+                }
+            }catch (IOException e){
+                listError = e;
+                stats.error(e);
+                visitor.visitFileFailed(dir,e);
+            }finally {
+                openDirectories.release();
+            }
+
+            if(entries.size() <= batchSize){
+                stats.merge(new BatchTask(entries,visitor).compute());
+            }else{
+                List<BatchTask> batches = new ArrayList<>();
+                for(int from = batchSize;from < entries.size();from += batchSize){
+                    BatchTask batch = new BatchTask(entries.subList(from,Math.min(entries.size(),from + batchSize)),visitor);
+                    batch.fork();
+                    batches.add(batch);
+                }
+                stats.merge(new BatchTask(entries.subList(0,batchSize),visitor).compute());
+                for(BatchTask batch : batches){
+                    stats.merge(batch.join());
+                }
+            }
+
+            try{
+                visitor.postVisitDirectory(dir,listError);
+            }catch (IOException e){
+                stats.error(e);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * 处理一个目录的一批子项：访问文件，fork子目录任务并等待它们完成
+     */
+    private final class BatchTask extends RecursiveTask<Stats>{
+        private static final long serialVersionUID = 1L;
+        private final List<Path> entries;
+        private final Visitor visitor;
+
+        BatchTask(List<Path> entries,Visitor visitor){
+            this.entries = entries;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected Stats compute() {
+            Stats stats = new Stats();
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for(Path entry : entries){
+                BasicFileAttributes attrs;
+                try{
+                    attrs = Files.readAttributes(entry,BasicFileAttributes.class,LinkOption.NOFOLLOW_LINKS);
+                }catch (IOException e){
+                    stats.error(e);
+                    visitor.visitFileFailed(entry,e);
+                    continue;
+                }
+                if(attrs.isDirectory()){
+                    DirectoryTask task = new DirectoryTask(entry,attrs,visitor);
+                    task.fork();
+                    subdirectories.add(task);
+                    continue;
+                }
+                try{
+                    visitor.visitFile(entry,attrs);
+                    stats.file(entry,attrs);
+                }catch (IOException e){
+                    stats.error(e);
+                }
+            }
+            for(int i = subdirectories.size() - 1;i >= 0;i--){
+                stats.merge(subdirectories.get(i).join());
+            }
+            return stats;
+        }
+    }
+
+    @Override
+    public void close(){
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception{
+        benchmark(Files.createTempDirectory("walk"),50,40,50);
+    }
+
+    /**
+     * 生成directories个一级目录，每个下有subdirectories个二级目录，每个二级目录有filesPerDirectory个小文件，
+     * 比较Files.walkFileTree与ParallelFileWalker统计大小和删除整棵树的耗时。
+     * 两种方式都在页缓存热的情况下测量(先各遍历一次)，删除时各自使用一棵新生成的树
+     * @param root 结束后删除
+     * @param directories
+     * @param subdirectories
+     * @param filesPerDirectory
+     * @throws IOException
+     */
+    public static void benchmark(Path root,int directories,int subdirectories,int filesPerDirectory) throws IOException{
+        String[] extensions = {"log","txt","json","gz","",".hidden"};
+        try(ParallelFileWalker walker = new ParallelFileWalker()){
+            for(String name : new String[]{"walkFileTree","ParallelFileWalker"}){
+                Path tree = root.resolve(name);
+                long begin = System.nanoTime();
+                for(int d = 0;d < directories;d++){
+                    for(int s = 0;s < subdirectories;s++){
+                        Path dir = Files.createDirectories(tree.resolve("d" + d).resolve("s" + s));
+                        for(int f = 0;f < filesPerDirectory;f++){
+                            String extension = extensions[f % extensions.length];
+                            Path file = dir.resolve(extension.startsWith(".") ? extension + f : extension.isEmpty() ? "f" + f : "f" + f + "." + extension);
+                            Files.write(file,new byte[f % 7 * 100]);
+                        }
+                    }
+                }
+                System.out.println(String.format("%s ===> created %d files in %.1f ms",
+                        name,(long) directories * subdirectories * filesPerDirectory,(System.nanoTime() - begin) / 1e6));
+
+                Visitor nothing = new Visitor() {
+                    @Override
+                    public void visitFile(Path file, BasicFileAttributes attrs) {
+                    }
+                };
+                Stats stats = null;
+                for(int round = 0;round < 2;round++){
+                    begin = System.nanoTime();
+                    stats = "walkFileTree".equals(name) ? walkFileTree(tree,false) : walker.walk(tree,nothing);
+                    System.out.println(String.format("    scan round %d: %.1f ms",round,(System.nanoTime() - begin) / 1e6));
+                }
+                System.out.println("    " + stats);
+
+                begin = System.nanoTime();
+                stats = "walkFileTree".equals(name) ? walkFileTree(tree,true) : walker.delete(tree);
+                System.out.println(String.format("    delete: %.1f ms, files=%d, directories=%d, errors=%d, exists=%b",
+                        (System.nanoTime() - begin) / 1e6,stats.getFiles(),stats.getDirectories(),stats.getErrors(),Files.exists(tree)));
+            }
+        }finally {
+            if(Files.exists(root)){
+                walkFileTree(root,true);
+            }
+        }
+    }
+
+    /**
+     * 单线程的对照：用Files.walkFileTree统计，delete为true时同时删除(与AboutNio2Files.SvnInfoCleanVisitor相同的方式)
+     */
+    private static Stats walkFileTree(Path root,final boolean delete) throws IOException{
+        final Stats stats = new Stats();
+        Files.walkFileTree(root,new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                stats.directories++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(delete){
+                    Files.delete(file);
+                }
+                stats.file(file,attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if(delete && exc == null){
+                    Files.delete(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return stats;
+    }
+}
@@ -0,0 +1,487 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 以long为地址的内存映射文件。AboutFileChannel.mapFile把整个文件映射为一个MappedByteBuffer，
+ * 位置是int，文件不能超过Integer.MAX_VALUE字节；这里把文件分成固定大小的段，访问到时才映射。
+ *
+ * 所有值按大端序读写，跨越两个段的值逐字节拼接。
+ * 读写模式下每个段按完整大小映射，文件会增长到访问过的最后一段的末尾；只读模式下最后一段只映射到文件末尾。
+ * 映射的段数超过maxMappedSegments时解除最久未用的段，也可以定期调用unmapIdle解除两次调用之间没有访问过的段。
+ *
+ * 不是线程安全的，多个线程访问时由调用方同步：解除映射后其他线程若仍在访问该段，JVM会崩溃。
+ */
+public class SegmentedMappedFile implements Closeable {
+
+    /**
+     * JDK13起MappedByteBuffer有force(int,int)，之前只能force整个段
+     */
+    private static final Method FORCE_RANGE;
+
+    static {
+        Method forceRange = null;
+        try{
+            forceRange = MappedByteBuffer.class.getMethod("force",int.class,int.class);
+        }catch (NoSuchMethodException ignored){
+        }
+        FORCE_RANGE = forceRange;
+    }
+
+    private static final class Segment{
+        MappedByteBuffer buffer;
+        long lastUsed;
+        boolean accessed;
+        boolean dirty;
+    }
+
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final int shift;
+    private final long segmentSize;
+    private final long mask;
+    private Segment[] segments = new Segment[16];
+    private int maxMappedSegments = Integer.MAX_VALUE;
+    private int mappedSegments;
+    /**
+     * 访问计数，用作最近使用时间，比System.nanoTime便宜
+     */
+    private long clock;
+    /**
+     * 有已修改的段被解除映射，force时需要force整个通道
+     */
+    private boolean unmappedDirty;
+    private long maps;
+    private long unmaps;
+
+    /**
+     * 以读写模式打开，段大小1GB
+     * @param path 不存在时创建
+     * @throws IOException
+     */
+    public SegmentedMappedFile(Path path) throws IOException{
+        this(path,1L << 30,false);
+    }
+
+    /**
+     * @param path 读写模式下不存在时创建
+     * @param segmentSize 段大小，必须是2的幂且不超过1GB
+     * @param readOnly
+     * @throws IOException
+     */
+    public SegmentedMappedFile(Path path,long segmentSize,boolean readOnly) throws IOException{
+        if(segmentSize <= 0 || segmentSize > (1L << 30) || Long.bitCount(segmentSize) != 1){
+            throw new IllegalArgumentException("段大小必须是不超过1GB的2的幂：" + segmentSize);
+        }
+        this.readOnly = readOnly;
+        this.segmentSize = segmentSize;
+        this.shift = Long.numberOfTrailingZeros(segmentSize);
+        this.mask = segmentSize - 1;
+        this.channel = readOnly ? FileChannel.open(path,StandardOpenOption.READ)
+                : FileChannel.open(path,StandardOpenOption.READ,StandardOpenOption.WRITE,StandardOpenOption.CREATE);
+    }
+
+    /**
+     * @param maxMappedSegments 同时映射的最大段数，超过时解除最久未用的段
+     */
+    public void setMaxMappedSegments(int maxMappedSegments) {
+        this.maxMappedSegments = Math.max(1,maxMappedSegments);
+    }
+
+    public long getSegmentSize(){
+        return segmentSize;
+    }
+
+    public int getMappedSegments(){
+        return mappedSegments;
+    }
+
+    public long getMaps(){
+        return maps;
+    }
+
+    public long getUnmaps(){
+        return unmaps;
+    }
+
+    /**
+     * @return 文件当前大小，读写模式下包含映射时增长的部分
+     * @throws IOException
+     */
+    public long size() throws IOException{
+        return channel.size();
+    }
+
+    public byte getByte(long offset) throws IOException{
+        return buffer(offset,false).get((int) (offset & mask));
+    }
+
+    public void putByte(long offset,byte value) throws IOException{
+        buffer(offset,true).put((int) (offset & mask),value);
+    }
+
+    public short getShort(long offset) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 2){
+            return buffer(offset,false).getShort(position);
+        }
+        return (short) getStraddling(offset,2);
+    }
+
+    public void putShort(long offset,short value) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 2){
+            buffer(offset,true).putShort(position,value);
+        }else{
+            putStraddling(offset,2,value);
+        }
+    }
+
+    public int getInt(long offset) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 4){
+            return buffer(offset,false).getInt(position);
+        }
+        return (int) getStraddling(offset,4);
+    }
+
+    public void putInt(long offset,int value) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 4){
+            buffer(offset,true).putInt(position,value);
+        }else{
+            putStraddling(offset,4,value);
+        }
+    }
+
+    public long getLong(long offset) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 8){
+            return buffer(offset,false).getLong(position);
+        }
+        return getStraddling(offset,8);
+    }
+
+    public void putLong(long offset,long value) throws IOException{
+        int position = (int) (offset & mask);
+        if(position <= segmentSize - 8){
+            buffer(offset,true).putLong(position,value);
+        }else{
+            putStraddling(offset,8,value);
+        }
+    }
+
+    public double getDouble(long offset) throws IOException{
+        return Double.longBitsToDouble(getLong(offset));
+    }
+
+    public void putDouble(long offset,double value) throws IOException{
+        putLong(offset,Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * 从offset开始读满dst的剩余空间，可以跨越多个段
+     */
+    public void get(long offset,ByteBuffer dst) throws IOException{
+        while(dst.hasRemaining()){
+            ByteBuffer source = buffer(offset,false).duplicate();
+            int position = (int) (offset & mask);
+            int length = Math.min(dst.remaining(),source.limit() - position);
+            if(length <= 0){
+                throw new IndexOutOfBoundsException("超出文件末尾：" + offset);
+            }
+            source.position(position).limit(position + length);
+            dst.put(source);
+            offset += length;
+        }
+    }
+
+    /**
+     * 把src的剩余内容写到offset开始的位置，可以跨越多个段
+     */
+    public void put(long offset,ByteBuffer src) throws IOException{
+        while(src.hasRemaining()){
+            ByteBuffer target = buffer(offset,true).duplicate();
+            int position = (int) (offset & mask);
+            int length = (int) Math.min(src.remaining(),segmentSize - position);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            target.position(position);
+            target.put(part);
+            src.position(src.position() + length);
+            offset += length;
+        }
+    }
+
+    public void get(long offset,byte[] dst,int index,int length) throws IOException{
+        get(offset,ByteBuffer.wrap(dst,index,length));
+    }
+
+    public void put(long offset,byte[] src,int index,int length) throws IOException{
+        put(offset,ByteBuffer.wrap(src,index,length));
+    }
+
+    private long getStraddling(long offset,int size) throws IOException{
+        long value = 0;
+        for(int i = 0;i < size;i++){
+            value = (value << 8) | (getByte(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private void putStraddling(long offset,int size,long value) throws IOException{
+        for(int i = size - 1;i >= 0;i--){
+            putByte(offset + i,(byte) value);
+            value >>>= 8;
+        }
+    }
+
+    private MappedByteBuffer buffer(long offset,boolean write) throws IOException{
+        if(offset < 0){
+            throw new IndexOutOfBoundsException("偏移量为负数：" + offset);
+        }
+        long index = offset >>> shift;
+        Segment segment = index < segments.length ? segments[(int) index] : null;
+        if(segment == null || segment.buffer == null){
+            segment = map((int) index);
+        }
+        segment.lastUsed = ++clock;
+        segment.accessed = true;
+        if(write){
+            if(readOnly){
+                throw new IllegalStateException("只读打开");
+            }
+            segment.dirty = true;
+        }
+        return segment.buffer;
+    }
+
+    private Segment map(int index) throws IOException{
+        if(!channel.isOpen()){
+            throw new IOException("文件已关闭");
+        }
+        long base = (long) index << shift;
+        long length = segmentSize;
+        if(readOnly){
+            length = Math.min(segmentSize,channel.size() - base);
+            if(length <= 0){
+                throw new IndexOutOfBoundsException("超出文件末尾：" + base);
+            }
+        }
+        if(mappedSegments >= maxMappedSegments){
+            unmapLeastRecentlyUsed();
+        }
+        if(index >= segments.length){
+            segments = Arrays.copyOf(segments,Math.max(index + 1,segments.length * 2));
+        }
+        Segment segment = segments[index];
+        if(segment == null){
+            segment = new Segment();
+            segments[index] = segment;
+        }
+        segment.buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,base,length);
+        mappedSegments++;
+        maps++;
+        return segment;
+    }
+
+    private void unmapLeastRecentlyUsed(){
+        Segment oldest = null;
+        for(Segment segment : segments){
+            if(segment != null && segment.buffer != null && (oldest == null || segment.lastUsed < oldest.lastUsed)){
+                oldest = segment;
+            }
+        }
+        if(oldest != null){
+            unmap(oldest);
+        }
+    }
+
+    private void unmap(Segment segment){
+        if(segment.dirty){
+            unmappedDirty = true;
+            segment.dirty = false;
+        }
+        DirectBuffers.release(segment.buffer);
+        segment.buffer = null;
+        segment.accessed = false;
+        mappedSegments--;
+        unmaps++;
+    }
+
+    /**
+     * 解除自上次调用以来没有访问过的段，适合由后台定时任务在持有同一把锁时调用
+     * @return 解除的段数
+     */
+    public int unmapIdle(){
+        int count = 0;
+        for(Segment segment : segments){
+            if(segment == null || segment.buffer == null){
+                continue;
+            }
+            if(segment.accessed){
+                segment.accessed = false;
+            }else{
+                unmap(segment);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 把[offset,offset+length)中修改过的内容写到存储设备。只force修改过的段，JDK13以下force这些段的全部内容
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void force(long offset,long length) throws IOException{
+        if(readOnly || length <= 0){
+            return;
+        }
+        if(unmappedDirty){
+            channel.force(false);
+            unmappedDirty = false;
+        }
+        long end = offset + length;
+        for(long index = offset >>> shift;index < segments.length && (index << shift) < end;index++){
+            Segment segment = segments[(int) index];
+            if(segment == null || segment.buffer == null || !segment.dirty){
+                continue;
+            }
+            long base = index << shift;
+            int from = (int) (Math.max(offset,base) - base);
+            int to = (int) (Math.min(end,base + segmentSize) - base);
+            forceRange(segment.buffer,from,to - from);
+            if(from == 0 && to == segmentSize){
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * 把所有修改过的内容写到存储设备
+     * @throws IOException
+     */
+    public void force() throws IOException{
+        force(0,(long) segments.length << shift);
+    }
+
+    private static void forceRange(MappedByteBuffer buffer,int index,int length) throws IOException{
+        if(FORCE_RANGE != null){
+            try{
+                FORCE_RANGE.invoke(buffer,index,length);
+                return;
+            }catch (ReflectiveOperationException e){
+                if(e.getCause() instanceof RuntimeException){
+                    throw (RuntimeException) e.getCause();
+                }
+            }
+        }
+        buffer.force();
+    }
+
+    /**
+     * 解除所有映射并关闭文件，不会force
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        for(Segment segment : segments){
+            if(segment != null && segment.buffer != null){
+                unmap(segment);
+            }
+        }
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception{
+        demo(Paths.get("segmented.idx"),5L * 1024 * 1024 * 1024,64 * 1024,2);
+    }
+
+    /**
+     * 在一个稀疏的大文件中每隔stride写一个long，其中一部分跨越段边界(包括2GB处)，
+     * 限制同时映射的段数后读回校验，再与FileChannel位置读比较随机读的速度。
+     * @param path 结束后删除
+     * @param size 文件大小，可以超过2GB
+     * @param stride 值的间隔
+     * @param maxMappedSegments
+     * @throws IOException
+     */
+    public static void demo(Path path,long size,int stride,int maxMappedSegments) throws IOException{
+        long segmentSize = 1L << 30;
+        long count = size / stride;
+        try(SegmentedMappedFile file = new SegmentedMappedFile(path,segmentSize,false)){
+            file.setMaxMappedSegments(maxMappedSegments);
+            long begin = System.nanoTime();
+            for(long i = 0;i < count;i++){
+                file.putLong(position(i,stride,segmentSize),i * 31 + 7);
+            }
+            System.out.println(String.format("写入%d个long用时%.1f ms，文件大小%d，映射%d次，解除%d次",
+                    count,(System.nanoTime() - begin) / 1e6,file.size(),file.getMaps(),file.getUnmaps()));
+            file.force();
+            for(long i = 0;i < count;i++){
+                long value = file.getLong(position(i,stride,segmentSize));
+                if(value != i * 31 + 7){
+                    throw new IllegalStateException("位置" + position(i,stride,segmentSize) + "的值不一致：" + value);
+                }
+            }
+            System.out.println("读回校验通过，当前映射" + file.getMappedSegments() + "段，idle解除" + file.unmapIdle() + "段");
+        }
+
+        int reads = 1000 * 1000;
+        try(SegmentedMappedFile file = new SegmentedMappedFile(path,segmentSize,true);
+            FileChannel channel = FileChannel.open(path,StandardOpenOption.READ)){
+            Random random = new Random(1);
+            long sum = 0;
+            long begin = System.nanoTime();
+            for(int i = 0;i < reads;i++){
+                sum += file.getLong(position(random.nextInt((int) count),stride,segmentSize));
+            }
+            long mappedNanos = System.nanoTime() - begin;
+
+            random = new Random(1);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+            long channelSum = 0;
+            begin = System.nanoTime();
+            for(int i = 0;i < reads;i++){
+                long position = position(random.nextInt((int) count),stride,segmentSize);
+                buffer.clear();
+                while(buffer.hasRemaining()){
+                    channel.read(buffer,position + buffer.position());
+                }
+                channelSum += buffer.getLong(0);
+            }
+            long channelNanos = System.nanoTime() - begin;
+            if(sum != channelSum){
+                throw new IllegalStateException("两种方式读到的内容不一致");
+            }
+            System.out.println(String.format("随机读%d次：SegmentedMappedFile %.0f ns/次，FileChannel.read %.0f ns/次",
+                    reads,(double) mappedNanos / reads,(double) channelNanos / reads));
+        }finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * 除第一段外，每个段的第一个值前移3个字节，跨越段边界
+     */
+    private static long position(long i,int stride,long segmentSize){
+        long position = i * stride;
+        if(position > 0 && (position & (segmentSize - 1)) == 0){
+            position -= 3;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,118 @@
+package org.xiaofengcanyue.io.nio;
+
+/**
+ * StaticFileHttpServer的网络参数。
+ * 打开的连接数达到maxConnections时暂停accept，新连接留在内核的accept队列(长度为backlog)中等待，
+ * 队列满后由内核拒绝，服务器不会因为连接洪水耗尽文件描述符；有连接关闭后恢复accept。
+ */
+public class ServerConfig {
+
+    public static final int DEFAULT_PORT = 10080;
+
+    private int port = DEFAULT_PORT;
+    private int threads = 10;
+    private int maxConnections = 10000;
+    private int backlog = 1024;
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize;
+    private long readTimeoutMillis = 15 * 1000;
+    private long writeTimeoutMillis = 30 * 1000;
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return AsynchronousChannelGroup的线程数
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if(threads <= 0){
+            throw new IllegalArgumentException("threads必须大于0：" + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return 同时打开的连接数上限
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if(maxConnections <= 0){
+            throw new IllegalArgumentException("maxConnections必须大于0：" + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return 内核中等待accept的连接队列长度，0表示使用系统默认值
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @return 是否关闭Nagle算法。持久连接上响应头和响应体可能分两次写出，不关闭时会与客户端的延迟确认相互等待。
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return SO_SNDBUF，0表示使用系统默认值
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @return 等待请求(包括持久连接上的下一个请求)的最长时间，超时后关闭连接
+     */
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * @return 单次写操作的最长时间，客户端长时间不读取响应时关闭连接，0表示不限制
+     */
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + port + ", threads=" + threads + ", maxConnections=" + maxConnections + ", backlog=" + backlog
+                + ", tcpNoDelay=" + tcpNoDelay + ", sendBufferSize=" + sendBufferSize
+                + ", readTimeoutMillis=" + readTimeoutMillis + ", writeTimeoutMillis=" + writeTimeoutMillis;
+    }
+}
@@ -0,0 +1,272 @@
+package org.xiaofengcanyue.io.nio;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StaticFileHttpServer的运行统计，通过/_stats路径和JMX查看。
+ * 计数器都是LongAdder，多个I/O线程同时累加时各自更新不同的单元，不会争用同一个缓存行；
+ * 延迟直方图按线程分为若干条带，读取时再合并。记录一次请求不分配内存、不加锁。
+ *
+ * 服务器没有路由表，按路径统计时路由数量不受控制，因此“路由”按响应的处理方式划分。
+ */
+public class ServerStats implements ServerStatsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerStats.class.getName());
+    private static final int MAX_STATUS = 600;
+    private static final long RATE_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 响应的处理方式
+     */
+    public enum Route{
+        /**
+         * 从StaticFileCache发送的完整文件
+         */
+        CACHED,
+        /**
+         * 从文件系统读取或映射后发送的完整文件
+         */
+        FILE,
+        GZIP,
+        PARTIAL,
+        NOT_MODIFIED,
+        STATS,
+        /**
+         * 4xx、5xx等错误响应
+         */
+        ERROR
+    }
+
+    private static final Route[] ROUTES = Route.values();
+    /**
+     * 当前由ServerStats注册的MBean，注销时只注销仍然属于自己的名字
+     */
+    private static final Map<ObjectName,ServerStats> REGISTERED = new HashMap<>();
+
+    private final IntSupplier activeConnections;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder[] statusCounts = new LongAdder[MAX_STATUS];
+    private final int stripeMask;
+    /**
+     * [路由][条带]
+     */
+    private final LatencyHistogram[][] latencies;
+
+    private long lastSampleNanos = System.nanoTime();
+    private long lastSampleRequests;
+    private double requestsPerSecond;
+
+    public ServerStats(IntSupplier activeConnections){
+        this.activeConnections = activeConnections;
+        for(int i = 0;i < MAX_STATUS;i++){
+            statusCounts[i] = new LongAdder();
+        }
+        int stripes = Integer.highestOneBit(Math.min(8,Runtime.getRuntime().availableProcessors()));
+        this.stripeMask = stripes - 1;
+        this.latencies = new LatencyHistogram[ROUTES.length][stripes];
+        for(int i = 0;i < ROUTES.length;i++){
+            for(int j = 0;j < stripes;j++){
+                latencies[i][j] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * 记录一次完成的请求
+     * @param route
+     * @param status
+     * @param bytes 写出的字节数
+     * @param latencyNanos
+     */
+    public void record(Route route,int status,long bytes,long latencyNanos){
+        requests.increment();
+        bytesOut.add(bytes);
+        if(status >= 0 && status < MAX_STATUS){
+            statusCounts[status].increment();
+        }
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        latencies[route.ordinal()][stripe].record(latencyNanos);
+    }
+
+    @Override
+    public long getRequests(){
+        return requests.sum();
+    }
+
+    @Override
+    public synchronized double getRequestsPerSecond(){
+        long now = System.nanoTime();
+        if(now - lastSampleNanos >= RATE_SAMPLE_NANOS){
+            long total = requests.sum();
+            requestsPerSecond = (total - lastSampleRequests) / ((now - lastSampleNanos) / 1e9);
+            lastSampleNanos = now;
+            lastSampleRequests = total;
+        }
+        return requestsPerSecond;
+    }
+
+    @Override
+    public long getBytesOut(){
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getActiveConnections(){
+        return activeConnections.getAsInt();
+    }
+
+    @Override
+    public Map<Integer,Long> getStatusCounts(){
+        Map<Integer,Long> counts = new TreeMap<>();
+        for(int i = 0;i < MAX_STATUS;i++){
+            long count = statusCounts[i].sum();
+            if(count != 0){
+                counts.put(i,count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @param route
+     * @return 合并各条带后的直方图
+     */
+    public LatencyHistogram getLatency(Route route){
+        LatencyHistogram merged = new LatencyHistogram();
+        for(LatencyHistogram stripe : latencies[route.ordinal()]){
+            merged.add(stripe);
+        }
+        return merged;
+    }
+
+    @Override
+    public Map<String,Long> getLatencyMicros(){
+        Map<String,Long> values = new TreeMap<>();
+        for(Route route : ROUTES){
+            LatencyHistogram histogram = getLatency(route);
+            long count = histogram.getCount();
+            if(count == 0){
+                continue;
+            }
+            values.put(route + ".count",count);
+            values.put(route + ".p50",TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(50)));
+            values.put(route + ".p99",TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)));
+            values.put(route + ".p999",TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.9)));
+            values.put(route + ".max",TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+        }
+        return values;
+    }
+
+    @Override
+    public void reset(){
+        requests.reset();
+        bytesOut.reset();
+        for(LongAdder count : statusCounts){
+            count.reset();
+        }
+        for(LatencyHistogram[] stripes : latencies){
+            for(LatencyHistogram stripe : stripes){
+                stripe.reset();
+            }
+        }
+        synchronized (this){
+            lastSampleNanos = System.nanoTime();
+            lastSampleRequests = 0;
+            requestsPerSecond = 0;
+        }
+    }
+
+    /**
+     * 注册到平台MBean服务器，同名的MBean(例如同一端口上之前启动的服务器)会被替换
+     * @param port
+     */
+    public void register(int port){
+        synchronized (REGISTERED){
+            try{
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("org.xiaofengcanyue.io.nio:type=StaticFileHttpServer,port=" + port);
+                try{
+                    server.registerMBean(this,name);
+                }catch (InstanceAlreadyExistsException e){
+                    server.unregisterMBean(name);
+                    server.registerMBean(this,name);
+                }
+                REGISTERED.put(name,this);
+            }catch (JMException e){
+                LOGGER.log(Level.WARNING,"注册MBean失败",e);
+            }
+        }
+    }
+
+    /**
+     * 注销register注册的MBean；已经被之后注册的同名MBean替换时不做处理
+     */
+    public void unregister(){
+        synchronized (REGISTERED){
+            Iterator<Map.Entry<ObjectName,ServerStats>> iterator = REGISTERED.entrySet().iterator();
+            while(iterator.hasNext()){
+                Map.Entry<ObjectName,ServerStats> entry = iterator.next();
+                if(entry.getValue() != this){
+                    continue;
+                }
+                iterator.remove();
+                try{
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(entry.getKey());
+                }catch (JMException e){
+                    LOGGER.log(Level.WARNING,"注销MBean失败",e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return /_stats返回的JSON
+     */
+    public String toJson(){
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"requests\":").append(getRequests());
+        builder.append(",\"requestsPerSecond\":").append(String.format(Locale.ROOT,"%.1f",getRequestsPerSecond()));
+        builder.append(",\"bytesOut\":").append(getBytesOut());
+        builder.append(",\"activeConnections\":").append(getActiveConnections());
+        builder.append(",\"status\":{");
+        boolean first = true;
+        for(Map.Entry<Integer,Long> entry : getStatusCounts().entrySet()){
+            builder.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            first = false;
+        }
+        builder.append("},\"latencyMicros\":{");
+        first = true;
+        for(Route route : ROUTES){
+            LatencyHistogram histogram = getLatency(route);
+            long count = histogram.getCount();
+            if(count == 0){
+                continue;
+            }
+            builder.append(first ? "" : ",").append('"').append(route).append("\":{");
+            builder.append("\"count\":").append(count);
+            builder.append(",\"p50\":").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(50)));
+            builder.append(",\"p99\":").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)));
+            builder.append(",\"p999\":").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.9)));
+            builder.append(",\"max\":").append(TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+            builder.append('}');
+            first = false;
+        }
+        builder.append("}}\n");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.util.Map;
+
+/**
+ * StaticFileHttpServer的管理接口，注册到平台MBean服务器后可以通过jconsole等工具查看。
+ * 命名以MXBean结尾，属性只使用基本类型和Map，客户端不需要本项目的类。
+ */
+public interface ServerStatsMXBean {
+
+    long getRequests();
+
+    /**
+     * @return 距上一次采样(至少间隔一秒)以来的每秒请求数
+     */
+    double getRequestsPerSecond();
+
+    long getBytesOut();
+
+    int getActiveConnections();
+
+    /**
+     * @return 状态码到响应次数
+     */
+    Map<Integer,Long> getStatusCounts();
+
+    /**
+     * @return 以“路由.指标”为键的延迟(微秒)和请求数，例如CACHED.p99、FILE.count
+     */
+    Map<String,Long> getLatencyMicros();
+
+    void reset();
+}
@@ -0,0 +1,475 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 多进程共享的配置(字符串键值对)，文件映射到内存，读取不加锁。
+ * AboutFileChannel.updateWithLock每次访问都要获取FileLock，而且文件锁在整个虚拟机中共享，不能同步线程。
+ *
+ * 文件格式：
+ * <pre>
+ * 头部(64)：magic(4) 格式(4) version(8) 每个槽的容量(4) 保留
+ * 槽0、槽1：长度(4) CRC32(4) 内容
+ * 内容：条数(4) 之后每条为 键长度(2) 键 值长度(4) 值，UTF-8编码
+ * </pre>
+ * version为v时，当前内容在槽(v&amp;1)中。写入者先获得虚拟机内的锁，再获得文件的排他锁，把新内容写入另一个槽，
+ * 然后一次写入8字节的version来发布，写入者中途崩溃时version不变，读者不受影响。
+ * 读者按seqlock的方式读取：读version，复制当前槽，再读version，两次相同说明读取期间没有写入者改写这个槽
+ * (改写它的写入者必须先发布v+1)，否则重试。解析后的内容按version缓存，version不变时get只需读一次version。
+ */
+public class SharedConfigStore implements Closeable {
+
+    private static final int MAGIC = 0x43464753;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int SLOT_HEADER_SIZE = 8;
+
+    /**
+     * 映射内存的普通读写没有顺序保证，JIT可能重排；用Unsafe的内存屏障保证读version与读内容的顺序。
+     * 不可用时退回读写一个volatile字段，在HotSpot上有同样的效果
+     */
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        try{
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            loadFence = lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe);
+            storeFence = lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe);
+        }catch (ReflectiveOperationException | RuntimeException ignored){
+            loadFence = null;
+            storeFence = null;
+        }
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+    }
+
+    /**
+     * 同一虚拟机中对同一文件的FileLock会抛出OverlappingFileLockException，同一文件的所有实例共用一把锁
+     */
+    private static final ConcurrentMap<Path,ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    private static volatile int fence;
+
+    private static final class Snapshot{
+        private final long version;
+        private final Map<String,String> values;
+
+        Snapshot(long version,Map<String,String> values){
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final ReentrantLock lock;
+    private final int capacity;
+    private volatile Snapshot snapshot = new Snapshot(-1,Collections.<String,String>emptyMap());
+    private boolean force;
+    private volatile long retries;
+
+    public SharedConfigStore(Path path) throws IOException{
+        this(path,64 * 1024);
+    }
+
+    /**
+     * @param path 不存在时创建
+     * @param capacity 新建文件时每个槽的容量，序列化后的配置不能超过它；文件已存在时使用文件中记录的容量
+     * @throws IOException
+     */
+    public SharedConfigStore(Path path,int capacity) throws IOException{
+        channel = FileChannel.open(path,StandardOpenOption.READ,StandardOpenOption.WRITE,StandardOpenOption.CREATE);
+        try{
+            lock = LOCKS.computeIfAbsent(path.toRealPath(),k -> new ReentrantLock());
+            int slotCapacity;
+            lock.lock();
+            try{
+                FileLock fileLock = channel.lock();
+                try{
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    if(channel.size() >= HEADER_SIZE){
+                        channel.read(header,0);
+                    }
+                    if(isZero(header)){
+                        slotCapacity = capacity;
+                        initialize(slotCapacity);
+                    }else{
+                        if(header.getInt(0) != MAGIC || header.getInt(4) != FORMAT){
+                            throw new IOException("不是配置文件：" + path);
+                        }
+                        slotCapacity = header.getInt(CAPACITY_OFFSET);
+                    }
+                }finally {
+                    fileLock.release();
+                }
+            }finally {
+                lock.unlock();
+            }
+            this.capacity = slotCapacity;
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE,0,HEADER_SIZE + 2L * (SLOT_HEADER_SIZE + slotCapacity));
+        }catch (IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 头部最后写入，之前先force槽0，头部存在时槽0一定完整。
+     * 新文件的头部全为0；初始化中途崩溃时文件可能已经变长但头部仍全为0，同样按未初始化处理，重新初始化
+     */
+    private void initialize(int slotCapacity) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0,MAGIC).putInt(4,FORMAT).putLong(VERSION_OFFSET,0).putInt(CAPACITY_OFFSET,slotCapacity);
+        /**
+         槽0是version为0时的内容：空的配置
+         */
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_HEADER_SIZE + 4);
+        slot.putInt(0,4).putInt(4,checksum(slot,SLOT_HEADER_SIZE,4));
+        channel.write(slot,HEADER_SIZE);
+        channel.write(ByteBuffer.allocate(1),HEADER_SIZE + 2L * (SLOT_HEADER_SIZE + slotCapacity) - 1);
+        channel.force(true);
+        channel.write(header,0);
+        channel.force(true);
+    }
+
+    private static boolean isZero(ByteBuffer header){
+        for(int i = 0;i < header.capacity();i++){
+            if(header.get(i) != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param force 写入后是否force，需要在断电后保留时设为true
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * @return 读取时因并发写入而重试的次数
+     */
+    public long getRetries(){
+        return retries;
+    }
+
+    public String get(String key) throws IOException{
+        return snapshot().values.get(key);
+    }
+
+    public String get(String key,String defaultValue) throws IOException{
+        String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return 当前所有配置，不可修改；同一次返回的内容来自同一个version
+     */
+    public Map<String,String> getAll() throws IOException{
+        return snapshot().values;
+    }
+
+    /**
+     * @return 配置的版本，每次写入加一
+     */
+    public long version(){
+        long version = mapped.getLong(VERSION_OFFSET);
+        loadFence();
+        return version;
+    }
+
+    private Snapshot snapshot() throws IOException{
+        Snapshot cached = snapshot;
+        long version = version();
+        if(version == cached.version){
+            return cached;
+        }
+        while(true){
+            ByteBuffer content = readSlot(version);
+            loadFence();
+            long after = mapped.getLong(VERSION_OFFSET);
+            if(after == version){
+                if(content == null){
+                    throw new IOException("配置文件已损坏，version=" + version);
+                }
+                Snapshot fresh = new Snapshot(version,decode(content));
+                snapshot = fresh;
+                return fresh;
+            }
+            retries++;
+            version = after;
+            loadFence();
+        }
+    }
+
+    /**
+     * 复制version对应槽的内容，长度或校验和不对时返回null(可能正被改写，由调用方根据version判断)
+     */
+    private ByteBuffer readSlot(long version){
+        int slot = HEADER_SIZE + (int) (version & 1) * (SLOT_HEADER_SIZE + capacity);
+        int length = mapped.getInt(slot);
+        int crc = mapped.getInt(slot + 4);
+        if(length < 4 || length > capacity){
+            return null;
+        }
+        ByteBuffer source = mapped.duplicate();
+        source.limit(slot + SLOT_HEADER_SIZE + length).position(slot + SLOT_HEADER_SIZE);
+        ByteBuffer content = ByteBuffer.allocate(length);
+        content.put(source).flip();
+        return checksum(content,0,length) == crc ? content : null;
+    }
+
+    public void put(String key,String value) throws IOException{
+        putAll(Collections.singletonMap(key,value));
+    }
+
+    /**
+     * 原子地更新多个配置，值为null表示删除
+     * @param changes
+     * @throws IOException 序列化后超过容量
+     */
+    public void putAll(Map<String,String> changes) throws IOException{
+        lock.lock();
+        try{
+            FileLock fileLock = channel.lock();
+            try{
+                long version = mapped.getLong(VERSION_OFFSET);
+                ByteBuffer current = readSlot(version);
+                if(current == null){
+                    throw new IOException("配置文件已损坏，version=" + version);
+                }
+                Map<String,String> values = new HashMap<>(decode(current));
+                for(Map.Entry<String,String> entry : changes.entrySet()){
+                    if(entry.getValue() == null){
+                        values.remove(entry.getKey());
+                    }else{
+                        values.put(entry.getKey(),entry.getValue());
+                    }
+                }
+                ByteBuffer content = encode(values);
+                if(content.remaining() > capacity){
+                    throw new IOException("配置大小" + content.remaining() + "超过容量" + capacity);
+                }
+                int slot = HEADER_SIZE + (int) ((version + 1) & 1) * (SLOT_HEADER_SIZE + capacity);
+                int length = content.remaining();
+                mapped.putInt(slot,length);
+                mapped.putInt(slot + 4,checksum(content,0,length));
+                ByteBuffer target = mapped.duplicate();
+                target.position(slot + SLOT_HEADER_SIZE);
+                target.put(content);
+                storeFence();
+                mapped.putLong(VERSION_OFFSET,version + 1);
+                if(force){
+                    mapped.force();
+                }
+            }finally {
+                fileLock.release();
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(String key) throws IOException{
+        putAll(Collections.<String,String>singletonMap(key,null));
+    }
+
+    private static ByteBuffer encode(Map<String,String> values){
+        int size = 4;
+        Map<byte[],byte[]> encoded = new HashMap<>();
+        for(Map.Entry<String,String> entry : values.entrySet()){
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            if(key.length > 0xFFFF){
+                throw new IllegalArgumentException("键过长：" + entry.getKey());
+            }
+            encoded.put(key,value);
+            size += 2 + key.length + 4 + value.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(encoded.size());
+        for(Map.Entry<byte[],byte[]> entry : encoded.entrySet()){
+            buffer.putShort((short) entry.getKey().length).put(entry.getKey());
+            buffer.putInt(entry.getValue().length).put(entry.getValue());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Map<String,String> decode(ByteBuffer content){
+        int count = content.getInt();
+        Map<String,String> values = new HashMap<>(count * 2);
+        for(int i = 0;i < count;i++){
+            byte[] key = new byte[content.getShort() & 0xFFFF];
+            content.get(key);
+            byte[] value = new byte[content.getInt()];
+            content.get(value);
+            values.put(new String(key,StandardCharsets.UTF_8),new String(value,StandardCharsets.UTF_8));
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    private static int checksum(ByteBuffer buffer,int position,int length){
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.limit(position + length).position(position);
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private static void loadFence(){
+        if(LOAD_FENCE != null){
+            try{
+                LOAD_FENCE.invokeExact();
+                return;
+            }catch (Throwable ignored){
+            }
+        }
+        int ignored = fence;
+    }
+
+    private static void storeFence(){
+        if(STORE_FENCE != null){
+            try{
+                STORE_FENCE.invokeExact();
+                return;
+            }catch (Throwable ignored){
+            }
+        }
+        fence = 0;
+    }
+
+    /**
+     * 解除映射并关闭文件，之后不能再访问；调用前应确保没有其他线程在使用
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        DirectBuffers.release(mapped);
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception{
+        if(args.length == 3 && "writer".equals(args[0])){
+            writer(Paths.get(args[1]),Integer.parseInt(args[2]));
+            return;
+        }
+        benchmark(Paths.get("shared.config"),10 * 1000 * 1000,2000);
+    }
+
+    /**
+     * 比较同一进程中读取一项配置的耗时：SharedConfigStore.get与按updateWithLock的方式(加FileLock再读文件)；
+     * 然后启动另一个进程不断原子地更新a和b两项(值总是相同)，本进程持续读取并检查每次读到的a和b一致
+     * @param path 结束后删除
+     * @param reads
+     * @param updates 另一个进程的更新次数
+     * @throws Exception
+     */
+    public static void benchmark(Path path,int reads,int updates) throws Exception{
+        Files.deleteIfExists(path);
+        try(SharedConfigStore store = new SharedConfigStore(path)){
+            Map<String,String> initial = new HashMap<>();
+            for(int i = 0;i < 100;i++){
+                initial.put("key" + i,"value" + i);
+            }
+            store.putAll(initial);
+
+            String[] keys = new String[64];
+            for(int i = 0;i < keys.length;i++){
+                keys[i] = "key" + i;
+            }
+            long begin = System.nanoTime();
+            int found = 0;
+            for(int i = 0;i < reads;i++){
+                if(store.get(keys[i & 63]) != null){
+                    found++;
+                }
+            }
+            long storeNanos = System.nanoTime() - begin;
+
+            int lockedReads = Math.max(1,reads / 100);
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            begin = System.nanoTime();
+            try(FileChannel channel = FileChannel.open(path,StandardOpenOption.READ,StandardOpenOption.WRITE)){
+                for(int i = 0;i < lockedReads;i++){
+                    FileLock lock = channel.lock();
+                    try{
+                        buffer.clear();
+                        channel.read(buffer,HEADER_SIZE);
+                    }finally {
+                        lock.release();
+                    }
+                }
+            }
+            long lockNanos = System.nanoTime() - begin;
+            System.out.println(String.format("get ===> %.1f ns/read (%d found); FileLock+read ===> %.1f ns/read",
+                    (double) storeNanos / reads,found,(double) lockNanos / lockedReads));
+
+            Process process = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp",System.getProperty("java.class.path"),SharedConfigStore.class.getName(),"writer",path.toString(),String.valueOf(updates))
+                    .inheritIO().start();
+            long startVersion = store.version();
+            long checks = 0;
+            begin = System.nanoTime();
+            while(process.isAlive() || store.version() < startVersion + updates){
+                Map<String,String> all = store.getAll();
+                String a = all.get("a");
+                if(a != null && !a.equals(all.get("b"))){
+                    throw new IllegalStateException("读到不一致的配置：a=" + a + ", b=" + all.get("b"));
+                }
+                checks++;
+                if(!process.isAlive() && System.nanoTime() - begin > TimeUnit.SECONDS.toNanos(60)){
+                    break;
+                }
+            }
+            System.out.println(String.format("cross-process ===> %d updates seen (version %d), %d consistent reads, %d retries, exit=%d",
+                    store.version() - startVersion,store.version(),checks,store.getRetries(),process.waitFor()));
+        }finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static void writer(Path path,int updates) throws IOException{
+        try(SharedConfigStore store = new SharedConfigStore(path)){
+            Map<String,String> changes = new HashMap<>();
+            for(int i = 0;i < updates;i++){
+                changes.put("a",String.valueOf(i));
+                changes.put("b",String.valueOf(i));
+                store.putAll(changes);
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StaticFileHttpServer的热点文件缓存。
+ * 小文件连同预先生成的响应头一起读入直接缓冲区，写出时不再访问文件系统；较大的文件保存整个文件的MappedByteBuffer。
+ * 两类文件分别按总字节数限制容量，超出时按LRU淘汰。
+ * 缓存文件所在的目录会注册到WatchService(类似AboutNio2Files.calculate)，文件被修改或删除时对应的缓存项立即失效。
+ */
+public class StaticFileCache implements AutoCloseable{
+
+    private static final Logger LOGGER = Logger.getLogger(StaticFileCache.class.getName());
+    private static final int MAX_OVERSIZED_ENTRIES = 10000;
+
+    private final long smallFileThreshold;
+    private final long maxMappedFileSize;
+    private final Segment smallFiles;
+    private final Segment mappedFiles;
+    private final FileMetadataCache metadataCache = new FileMetadataCache();
+    private final WatchService watchService;
+    private final Map<Path,WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+    /**
+     * 按键的散列分段的失效计数。invalidate先增加计数再删除缓存项，load在读取之前记下计数，
+     * put时计数已经变化说明读取过程中文件被修改，读到的内容可能已经过期，不放入缓存。
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(64);
+    /**
+     * 超过maxMappedFileSize的文件及其大小和最后修改时间，按插入顺序淘汰。与缓存项一样由WatchService通知失效，
+     * 失效之前再次请求时直接返回null，不再打开文件，也不计为未命中。
+     */
+    private final LinkedHashMap<Path,FileMetadata> oversized = new LinkedHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder oversizedLookups = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public StaticFileCache() throws IOException{
+        this(64L * 1024 * 1024,256 * 1024,1024L * 1024 * 1024,StaticFileHttpServer.MAPPED_REGION_SIZE);
+    }
+
+    /**
+     * @param maxBytes 小文件占用直接缓冲区的总字节数上限
+     * @param smallFileThreshold 不超过该大小的文件读入直接缓冲区
+     * @param maxMappedBytes 映射文件的总字节数上限
+     * @param maxMappedFileSize 超过该大小的文件不缓存，每次请求单独发送
+     * @throws IOException
+     */
+    public StaticFileCache(long maxBytes,long smallFileThreshold,long maxMappedBytes,long maxMappedFileSize) throws IOException{
+        this.smallFileThreshold = smallFileThreshold;
+        this.maxMappedFileSize = Math.min(maxMappedFileSize,Integer.MAX_VALUE);
+        this.smallFiles = new Segment(maxBytes);
+        this.mappedFiles = new Segment(maxMappedBytes);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::watch,"static-file-cache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * 缓存的文件。header为状态行和Content-Type、Content-Length等与连接无关的响应头，不含Connection头和结尾的空行。
+     * 多个连接会同时发送同一个缓存项，因此每次使用都要通过duplicate得到独立的position和limit。
+     */
+    public static final class Entry{
+        private final Path path;
+        private final FileMetadata metadata;
+        private final ByteBuffer header;
+        private final ByteBuffer body;
+        private final long weight;
+
+        private Entry(Path path,FileMetadata metadata,ByteBuffer header,ByteBuffer body){
+            this.path = path;
+            this.metadata = metadata;
+            this.header = header;
+            this.body = body;
+            this.weight = header.capacity() + body.capacity();
+        }
+
+        public FileMetadata metadata(){
+            return metadata;
+        }
+
+        public ByteBuffer header(){
+            return header.duplicate();
+        }
+
+        public ByteBuffer body(){
+            return body.duplicate();
+        }
+    }
+
+    /**
+     * 查找缓存项，未命中时加载文件。
+     * @param filePath StaticFileHttpServer.getFilePath检查过的路径，它已经规范化，与这里的键相同
+     * @return 文件不存在、不是普通文件或超过maxMappedFileSize时返回null；超过maxMappedFileSize的文件在失效之前不会再次打开
+     * @throws IOException
+     */
+    public Entry get(Path filePath) throws IOException{
+        Path key = filePath.toAbsolutePath().normalize();
+        Entry entry = smallFiles.get(key);
+        if(entry == null){
+            entry = mappedFiles.get(key);
+        }
+        if(entry != null){
+            hits.increment();
+            return entry;
+        }
+        synchronized (oversized){
+            if(oversized.containsKey(key)){
+                oversizedLookups.increment();
+                return null;
+            }
+        }
+        misses.increment();
+        return load(key);
+    }
+
+    private Entry load(Path key) throws IOException{
+        if(!Files.isRegularFile(key)){
+            return null;
+        }
+        /**
+         先注册目录再读取文件，读取过程中发生的修改也能收到通知；
+         通知可能在读取结束、放入缓存之前就已经处理完，所以还要在put时检查失效计数。
+         */
+        watch(key.getParent());
+        long generation = generations.get(stripe(key));
+        try(FileChannel channel = FileChannel.open(key,StandardOpenOption.READ)){
+            long size = channel.size();
+            FileMetadata metadata = metadataCache.get(key,size,Files.getLastModifiedTime(key));
+            if(size > maxMappedFileSize){
+                putOversized(key,metadata,generation);
+                return null;
+            }
+            ByteBuffer header = toDirectBuffer(StaticFileHttpServer.generateFileContentHeader(metadata));
+            if(size <= smallFileThreshold){
+                ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+                while(body.hasRemaining()){
+                    if(channel.read(body,body.position()) == -1){
+                        /**
+                         文件在读取过程中被截断，内容比响应头中的Content-Length短，按未命中处理
+                         */
+                        return null;
+                    }
+                }
+                body.flip();
+                return smallFiles.put(new Entry(key,metadata,header,body),generation);
+            }
+            ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+            return mappedFiles.put(new Entry(key,metadata,header,body),generation);
+        }
+    }
+
+    /**
+     * 与Segment.put相同，读取属性的过程中文件已失效时不记录
+     */
+    private void putOversized(Path key,FileMetadata metadata,long generation){
+        synchronized (oversized){
+            if(generations.get(stripe(key)) != generation){
+                return;
+            }
+            oversized.put(key,metadata);
+            Iterator<Path> iterator = oversized.keySet().iterator();
+            while(oversized.size() > MAX_OVERSIZED_ENTRIES && iterator.hasNext()){
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    private int stripe(Path key){
+        return (key.hashCode() & Integer.MAX_VALUE) % generations.length();
+    }
+
+    private static ByteBuffer toDirectBuffer(String str){
+        byte[] bytes = str.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private void watch(Path directory) throws IOException{
+        if(directory == null || watchedDirectories.containsKey(directory)){
+            return;
+        }
+        synchronized (watchedDirectories){
+            if(!watchedDirectories.containsKey(directory)){
+                WatchKey key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,StandardWatchEventKinds.ENTRY_MODIFY,StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.put(directory,key);
+            }
+        }
+    }
+
+    private void watch(){
+        try{
+            while(true){
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        invalidateDirectory(directory);
+                    }else{
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+                if(!key.reset()){
+                    watchedDirectories.remove(directory);
+                    invalidateDirectory(directory);
+                }
+            }
+        }catch (InterruptedException | ClosedWatchServiceException e){
+            LOGGER.log(Level.FINE,"文件缓存监控已停止");
+        }
+    }
+
+    /**
+     * 缓存项使用的元数据缓存，未缓存的文件也应当通过它获取元数据，使同一文件的ETag保持一致
+     * @return
+     */
+    public FileMetadataCache metadata(){
+        return metadataCache;
+    }
+
+    public void invalidate(Path filePath){
+        Path key = filePath.toAbsolutePath().normalize();
+        generations.incrementAndGet(stripe(key));
+        metadataCache.invalidate(key);
+        synchronized (oversized){
+            oversized.remove(key);
+        }
+        if(smallFiles.remove(key) | mappedFiles.remove(key)){
+            invalidations.increment();
+        }
+    }
+
+    private void invalidateDirectory(Path directory){
+        for(int i = 0;i < generations.length();i++){
+            generations.incrementAndGet(i);
+        }
+        synchronized (oversized){
+            oversized.keySet().removeIf(path -> directory.equals(path.getParent()));
+        }
+        invalidations.add(smallFiles.removeDirectory(directory) + mappedFiles.removeDirectory(directory));
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return 不包括已知超过maxMappedFileSize的文件的重复请求，它们计入getOversizedLookups
+     */
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return 请求已知超过maxMappedFileSize、不会被缓存的文件的次数
+     */
+    public long getOversizedLookups(){
+        return oversizedLookups.sum();
+    }
+
+    public long getEvictions(){
+        return evictions.sum();
+    }
+
+    public long getInvalidations(){
+        return invalidations.sum();
+    }
+
+    public long getCachedBytes(){
+        return smallFiles.usedBytes();
+    }
+
+    public long getMappedBytes(){
+        return mappedFiles.usedBytes();
+    }
+
+    @Override
+    public void close() throws IOException{
+        watchService.close();
+    }
+
+    @Override
+    public String toString(){
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", oversizedLookups=" + getOversizedLookups() + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations() + ", cachedBytes=" + getCachedBytes() + ", mappedBytes=" + getMappedBytes();
+    }
+
+    /**
+     * 按访问顺序排列的LinkedHashMap，超出字节上限时从最久未访问的一端淘汰。
+     */
+    private final class Segment{
+        private final long maxBytes;
+        private final LinkedHashMap<Path,Entry> entries = new LinkedHashMap<>(16,0.75f,true);
+        private long usedBytes;
+
+        Segment(long maxBytes){
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(Path key){
+            return entries.get(key);
+        }
+
+        /**
+         * @param entry
+         * @param generation 读取文件之前的失效计数
+         * @return 实际缓存的项，若其他线程已先加载了同一文件则返回已有的项；读取过程中文件已失效时返回entry但不缓存
+         */
+        synchronized Entry put(Entry entry,long generation){
+            if(entry.weight > maxBytes || generations.get(stripe(entry.path)) != generation){
+                return entry;
+            }
+            Entry existing = entries.get(entry.path);
+            if(existing != null){
+                return existing;
+            }
+            Iterator<Entry> iterator = entries.values().iterator();
+            while(usedBytes + entry.weight > maxBytes && iterator.hasNext()){
+                usedBytes -= iterator.next().weight;
+                iterator.remove();
+                evictions.increment();
+            }
+            entries.put(entry.path,entry);
+            usedBytes += entry.weight;
+            return entry;
+        }
+
+        synchronized boolean remove(Path key){
+            Entry entry = entries.remove(key);
+            if(entry != null){
+                usedBytes -= entry.weight;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int removeDirectory(Path directory){
+            int removed = 0;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while(iterator.hasNext()){
+                Entry entry = iterator.next();
+                if(directory.equals(entry.path.getParent())){
+                    usedBytes -= entry.weight;
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized long usedBytes(){
+            return usedBytes;
+        }
+    }
+}
@@ -1,119 +1,536 @@
 package org.xiaofengcanyue.io.nio;
 
-import org.omg.CORBA.OBJ_ADAPTER;
-
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class StaticFileHttpServer {
+public class StaticFileHttpServer implements AutoCloseable{
 
     public static void main(String[] args) throws Exception{
-        start(Paths.get("").toAbsolutePath());
+        open(Paths.get("").toAbsolutePath(),CopyStrategy.MAPPED);
     }
 
     private static final Logger LOGGER = Logger.getLogger(StaticFileHttpServer.class.getName());
-    private static final Pattern PATH_EXTRACTOR = Pattern.compile("GET (.*?) HTTP");
     private static final String INDEX_PAGE = "index.html";
+    private static final Pattern CONTENT_LENGTH_EXTRACTOR = Pattern.compile("(?im)^Content-Length:\\s*(\\d+)");
+    private static final String HEADER_END = "\r\n\r\n";
+    private static final int PORT = ServerConfig.DEFAULT_PORT;
+    private static final String ACCESS_LOG_FILE = "access.log";
+    /**
+     * 每个连接读取请求的初始缓冲区大小，同一个缓冲区中可能积压了多个流水线(pipelining)请求。
+     */
+    static final int REQUEST_BUFFER_SIZE = 8 * 1024;
+    /**
+     * 服务器不使用请求体，但持久连接上必须读完并丢弃它，否则请求体会被当作下一个请求解析；超过该大小时直接关闭连接。
+     */
+    static final long MAX_DISCARDED_BODY_SIZE = 1024 * 1024;
+    /**
+     * 每次映射的文件区域大小，单个MappedByteBuffer不能超过Integer.MAX_VALUE，大文件需要分段映射。
+     */
+    static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+    private static final String MULTIPART_BOUNDARY = "STATIC_FILE_BOUNDARY_" + Long.toHexString(new Random().nextLong());
+    private static final ByteBuffer MULTIPART_TRAILER = toReadOnlyDirectBuffer("\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+    private static final ByteBuffer KEEP_ALIVE_HEADER = toReadOnlyDirectBuffer(generateConnectionHeader(true) + "\r\n");
+    private static final ByteBuffer CLOSE_HEADER = toReadOnlyDirectBuffer(generateConnectionHeader(false) + "\r\n");
+
+    /**
+     * 文件内容的发送方式
+     * STREAM：将文件读入堆缓冲区后再写入socket，所有字节都要经过堆上的数组中转。
+     * MAPPED：将文件分段映射为MappedByteBuffer后直接写入socket，数据从页缓存直接发出，不经过堆内存。
+     */
+    public enum CopyStrategy{
+        STREAM,
+        MAPPED
+    }
+
+    private final AsynchronousChannelGroup group;
+    private final HttpAcceptor acceptor;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private StaticFileHttpServer(AsynchronousChannelGroup group,HttpAcceptor acceptor){
+        this.group = group;
+        this.acceptor = acceptor;
+    }
+
+    /**
+     * 只返回通道组，关闭通道组不会关闭缓存、访问日志和gzip压缩线程，也不会注销MBean，需要完整关闭时使用open
+     */
+    public static AsynchronousChannelGroup start(final Path root) throws IOException{
+        return start(root,CopyStrategy.MAPPED);
+    }
+
+    /**
+     * 访问日志写入当前目录下的access.log
+     */
+    public static AsynchronousChannelGroup start(final Path root,final CopyStrategy copyStrategy) throws IOException{
+        return open(root,copyStrategy).group();
+    }
+
+    public static AsynchronousChannelGroup start(final Path root,final CopyStrategy copyStrategy,final StaticFileCache cache) throws IOException{
+        return start(root,copyStrategy,cache,null);
+    }
+
+    public static AsynchronousChannelGroup start(final Path root,final CopyStrategy copyStrategy,final StaticFileCache cache,final AccessLog accessLog) throws IOException{
+        return start(root,new ServerConfig(),copyStrategy,cache,accessLog);
+    }
+
+    public static AsynchronousChannelGroup start(final Path root,final ServerConfig config,final CopyStrategy copyStrategy,final StaticFileCache cache,final AccessLog accessLog) throws IOException{
+        return open(root,config,copyStrategy,cache,accessLog).group();
+    }
+
+    /**
+     * 使用新建的StaticFileCache，访问日志写入当前目录下的access.log，二者都由返回的服务器在close时关闭
+     */
+    public static StaticFileHttpServer open(final Path root,final CopyStrategy copyStrategy) throws IOException{
+        StaticFileCache cache = new StaticFileCache();
+        AccessLog accessLog = null;
+        try{
+            accessLog = new AccessLog(Paths.get(ACCESS_LOG_FILE));
+            return open(root,new ServerConfig(),copyStrategy,cache,accessLog);
+        }catch (IOException e){
+            if(accessLog != null){
+                accessLog.close();
+            }
+            cache.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param root
+     * @param config 线程数、连接数上限、socket选项和超时
+     * @param copyStrategy 未命中缓存的文件的发送方式
+     * @param cache 热点文件缓存，为null时每次请求都访问文件系统；启动成功后由返回的服务器在close时关闭
+     * @param accessLog 访问日志，为null时不记录；启动成功后由返回的服务器在close时关闭
+     * @return
+     * @throws IOException
+     */
+    public static StaticFileHttpServer open(final Path root,final ServerConfig config,final CopyStrategy copyStrategy,final StaticFileCache cache,final AccessLog accessLog) throws IOException{
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(config.getThreads(), Executors.defaultThreadFactory());
+        HttpAcceptor acceptor;
+        try{
+            AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group);
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+            serverChannel.bind(new InetSocketAddress(config.getPort()),config.getBacklog());
+            acceptor = new HttpAcceptor(serverChannel,config,root,copyStrategy,cache,accessLog);
+        }catch (IOException e){
+            group.shutdownNow();
+            throw e;
+        }
+        StaticFileHttpServer server = new StaticFileHttpServer(group,acceptor);
+        acceptor.stats.register(config.getPort());
+        acceptor.start();
+        LOGGER.log(Level.INFO,"服务器已经启动，文件根目录为："+root+"，发送方式："+copyStrategy+"，"+config);
+        return server;
+    }
+
+    public AsynchronousChannelGroup group(){
+        return group;
+    }
+
+    public ServerStats stats(){
+        return acceptor.stats;
+    }
+
+    /**
+     * 关闭监听通道和所有连接并等待通道组的线程退出，然后关闭缓存、访问日志和gzip压缩线程，注销MBean。
+     * 被中断时不再等待，仍然释放其他资源，并保留中断状态。
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        if(!closed.compareAndSet(false,true)){
+            return;
+        }
+        try{
+            group.shutdownNow();
+            group.awaitTermination(5,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally {
+            acceptor.close();
+        }
+    }
+
+    private static int indexOfHeaderEnd(byte[] array,int from,int to){
+        for(int i = from;i + 3 < to;i++){
+            if(array[i] == '\r' && array[i+1] == '\n' && array[i+2] == '\r' && array[i+3] == '\n'){
+                return i;
+            }
+        }
+        return -1;
+    }
 
-    public static void start(final Path root) throws IOException{
-        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(10, Executors.defaultThreadFactory());
-        final AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group).bind(new InetSocketAddress(10080));
-        serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
-            @Override
-            public void completed(AsynchronousSocketChannel result, Void attachment) {
-                serverChannel.accept(null,this);
-                try{
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
-                    result.read(buffer).get();
-                    buffer.flip();
-                    String request = new String(buffer.array());
-                    LOGGER.log(Level.INFO,"请求：{0}",request);
-                    String requestPath = extractPath(request);
-                    LOGGER.log(Level.INFO,"处理请求：{0}",requestPath);
-                    Path filePath = getFilePath(root,requestPath);
-                    LOGGER.log(Level.INFO,"文件路径：{0}\r\n 是否存在：{1}",new Object[]{filePath.toAbsolutePath(),Files.exists(filePath)});
-                    if(!Files.exists(filePath)){
-                        String error404 = generateErrorResponse(404,"Not Found");
-                        result.write(ByteBuffer.wrap(error404.getBytes()));
-                        return;
+    /**
+     * 分别以两种发送方式启动服务器，反复请求同一个文件，比较吞吐量(MB/s)。
+     * @param root
+     * @param fileName 相对于root的文件名
+     * @param rounds 每种方式的请求次数
+     * @throws Exception
+     */
+    public static void compareCopyStrategies(Path root,String fileName,int rounds) throws Exception{
+        for(CopyStrategy copyStrategy : CopyStrategy.values()){
+            StaticFileHttpServer server = open(root,new ServerConfig(),copyStrategy,null,null);
+            try{
+                fetch(fileName);
+                long bytes = 0;
+                long begin = System.nanoTime();
+                for(int i = 0;i < rounds;i++){
+                    bytes += fetch(fileName);
+                }
+                long elapsed = System.nanoTime() - begin;
+                double mbPerSecond = (bytes / (1024.0 * 1024.0)) / (elapsed / 1e9);
+                System.out.println(copyStrategy + " ===> " + bytes + " bytes, " + String.format("%.2f MB/s",mbPerSecond));
+            }finally {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * 比较每个请求新建连接与在一个持久连接上以流水线方式发送请求的每秒请求数。
+     * @param root
+     * @param fileName 相对于root的文件名，适合使用小文件
+     * @param requests 请求次数
+     * @param pipelineDepth 持久连接上每批连续发送的请求数
+     * @throws Exception
+     */
+    public static void compareKeepAlive(Path root,String fileName,int requests,int pipelineDepth) throws Exception{
+        StaticFileCache cache = new StaticFileCache();
+        StaticFileHttpServer server = open(root,new ServerConfig(),CopyStrategy.MAPPED,cache,null);
+        try{
+            long begin = System.nanoTime();
+            for(int i = 0;i < requests;i++){
+                fetch(fileName);
+            }
+            printRequestsPerSecond("close",requests,System.nanoTime() - begin);
+
+            begin = System.nanoTime();
+            try(SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost",PORT))){
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                byte[] request = ("GET /" + fileName + " HTTP/1.1\r\n\r\n").getBytes("UTF-8");
+                for(int sent = 0;sent < requests;sent += pipelineDepth){
+                    int batch = Math.min(pipelineDepth,requests - sent);
+                    ByteBuffer requestBuffer = ByteBuffer.allocate(request.length * batch);
+                    for(int i = 0;i < batch;i++){
+                        requestBuffer.put(request);
                     }
-                    String header = generateFileContentResponseHeader(filePath);
-                    result.write(ByteBuffer.wrap(header.getBytes())).get();
-                    Files.copy(filePath, Channels.newOutputStream(result));
-
-                }catch (Exception e){
-                    String error = generateErrorResponse(500,"Internal Server Error");
-                    result.write(ByteBuffer.wrap(error.getBytes()));
-                    LOGGER.log(Level.SEVERE,e.getMessage(),e);
-                }finally {
-                    try{
-                        result.close();
-                    }catch (IOException e){
-                        LOGGER.log(Level.WARNING,e.getMessage(),e);
+                    requestBuffer.flip();
+                    while(requestBuffer.hasRemaining()){
+                        sc.write(requestBuffer);
                     }
+                    readResponses(sc,buffer,batch);
                 }
             }
+            printRequestsPerSecond("keep-alive",requests,System.nanoTime() - begin);
+            System.out.println("cache ===> " + cache);
+        }finally {
+            server.close();
+        }
+    }
 
-            @Override
-            public void failed(Throwable exc, Void attachment) {
-                LOGGER.log(Level.SEVERE,exc.getMessage(),exc);
+    private static void printRequestsPerSecond(String mode,int requests,long elapsedNanos){
+        System.out.println(mode + " ===> " + requests + " requests, " + String.format("%.0f req/s",requests / (elapsedNanos / 1e9)));
+    }
+
+    /**
+     * 按Content-Length切分并丢弃持久连接上连续返回的响应。
+     * @param sc
+     * @param buffer 写模式的缓冲区，读完之后剩余字节保留在其中
+     * @param count 需要读取的响应个数
+     * @throws IOException
+     */
+    private static void readResponses(SocketChannel sc,ByteBuffer buffer,int count) throws IOException{
+        int responses = 0;
+        long bodyRemaining = -1;
+        while(responses < count){
+            if(sc.read(buffer) == -1){
+                throw new EOFException("连接已关闭，已读取"+responses+"个响应");
             }
-        });
-        LOGGER.log(Level.INFO,"服务器已经启动，文件根目录为："+root);
+            buffer.flip();
+            while(responses < count){
+                if(bodyRemaining < 0){
+                    int end = indexOfHeaderEnd(buffer.array(),buffer.position(),buffer.limit());
+                    if(end == -1){
+                        break;
+                    }
+                    String header = new String(buffer.array(),buffer.position(),end - buffer.position(),"ISO-8859-1");
+                    Matcher matcher = CONTENT_LENGTH_EXTRACTOR.matcher(header);
+                    bodyRemaining = matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+                    buffer.position(end + HEADER_END.length());
+                }
+                int skip = (int) Math.min(bodyRemaining,buffer.remaining());
+                buffer.position(buffer.position() + skip);
+                bodyRemaining -= skip;
+                if(bodyRemaining > 0){
+                    break;
+                }
+                bodyRemaining = -1;
+                responses++;
+            }
+            buffer.compact();
+        }
     }
 
-    private static String extractPath(String request){
-        Matcher matcher = PATH_EXTRACTOR.matcher(request);
-        if(matcher.find()){
-            return matcher.group(1);
+    private static long fetch(String fileName) throws IOException{
+        try(SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost",PORT))){
+            sc.write(ByteBuffer.wrap(("GET /" + fileName + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes("UTF-8")));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            long total = 0;
+            int len;
+            while((len = sc.read(buffer)) != -1){
+                total += len;
+                buffer.clear();
+            }
+            return total;
         }
-        return null;
     }
 
-    private static Path getFilePath(Path root,String requestPath){
-        if(requestPath == null || "/".equals(requestPath)){
+    /**
+     * 返回的路径已经是规范化的绝对路径，StaticFileCache等缓存直接以它为键。
+     * @param root
+     * @param requestPath HttpRequestParser.path()返回的已解码、已检查的请求路径
+     * @return 不在root之下(例如解码后是绝对路径)或不是合法路径时返回null
+     */
+    static Path getFilePath(Path root,String requestPath){
+        if(requestPath.isEmpty()){
             requestPath = INDEX_PAGE;
         }
-        if(requestPath.startsWith("/")){
-            requestPath = requestPath.substring(1);
+        Path base = root.toAbsolutePath().normalize();
+        Path filePath;
+        try{
+            filePath = base.resolve(requestPath).normalize();
+        }catch (InvalidPathException e){
+            return null;
         }
-        int pos = requestPath.indexOf("?");
-        if(pos != -1){
-            requestPath = requestPath.substring(0,pos);
+        return filePath.startsWith(base) ? filePath : null;
+    }
+
+    /**
+     * 未命中缓存时只读取一次文件属性，既判断能否发送，又交给FileMetadataCache.get(filePath,size,lastModified)使用
+     * @param filePath
+     * @return 文件不存在、不是普通文件(例如目录)或无法读取属性时返回null
+     */
+    static BasicFileAttributes readRegularFileAttributes(Path filePath){
+        try{
+            BasicFileAttributes attributes = Files.readAttributes(filePath,BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        }catch (IOException e){
+            return null;
         }
-        return root.resolve(requestPath);
     }
 
-    private static String getContentType(Path filePath) throws IOException{
+    static String getContentType(Path filePath) throws IOException{
         return Files.probeContentType(filePath);
     }
 
-    private static String generateFileContentResponseHeader(Path filePath) throws IOException{
+    static String generateFileContentResponseHeader(FileMetadata metadata,boolean keepAlive){
+        StringBuilder builder = new StringBuilder();
+        builder.append(generateFileContentHeader(metadata));
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        return builder.toString();
+    }
+
+    /**
+     * 与连接无关的响应头部分，可以预先生成后缓存。
+     * @param metadata
+     * @return
+     */
+    static String generateFileContentHeader(FileMetadata metadata){
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 200 OK\r\n");
+        builder.append("Content-Type: ");
+        builder.append(metadata.contentType());
+        builder.append("\r\n");
+        builder.append("Content-Length: "+metadata.size()+"\r\n");
+        builder.append(generateValidatorHeader(metadata));
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append("Vary: Accept-Encoding\r\n");
+        return builder.toString();
+    }
+
+    /**
+     * /_stats的响应，不允许缓存
+     * @param json
+     * @param keepAlive
+     * @param headOnly
+     * @return
+     */
+    static String generateStatsResponse(String json,boolean keepAlive,boolean headOnly){
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 200 OK\r\n");
+        builder.append("Content-Type: application/json; charset=UTF-8\r\n");
+        builder.append("Content-Length: "+json.length()+"\r\n");
+        builder.append("Cache-Control: no-store\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        if(!headOnly){
+            builder.append(json);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * gzip版本的200响应头，metadata中的大小和ETag是压缩后的
+     * @param metadata
+     * @param keepAlive
+     * @return
+     */
+    static String generateGzipResponseHeader(FileMetadata metadata,boolean keepAlive){
         StringBuilder builder = new StringBuilder();
         builder.append("HTTP/1.1 200 OK\r\n");
         builder.append("Content-Type: ");
-        builder.append(getContentType(filePath));
+        builder.append(metadata.contentType());
+        builder.append("\r\n");
+        builder.append("Content-Encoding: gzip\r\n");
+        builder.append("Content-Length: "+metadata.size()+"\r\n");
+        builder.append(generateValidatorHeader(metadata));
+        builder.append("Vary: Accept-Encoding\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        return builder.toString();
+    }
+
+    /**
+     * 客户端缓存校验用的ETag和Last-Modified
+     * @param metadata
+     * @return
+     */
+    static String generateValidatorHeader(FileMetadata metadata){
+        return "ETag: " + metadata.etag() + "\r\nLast-Modified: " + metadata.httpDate() + "\r\n";
+    }
+
+    /**
+     * 304响应没有响应体，只带校验头
+     * @param metadata
+     * @param keepAlive
+     * @return
+     */
+    static String generateNotModifiedResponse(FileMetadata metadata,boolean keepAlive){
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 304 Not Modified\r\n");
+        builder.append(generateValidatorHeader(metadata));
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        return builder.toString();
+    }
+
+    /**
+     * 单个区间的206响应头
+     * @param metadata
+     * @param start
+     * @param end 不包含
+     * @param keepAlive
+     * @return
+     */
+    static String generatePartialContentHeader(FileMetadata metadata,long start,long end,boolean keepAlive){
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 206 Partial Content\r\n");
+        builder.append("Content-Type: ");
+        builder.append(metadata.contentType());
         builder.append("\r\n");
-        builder.append("Content-Length: "+Files.size(filePath)+"\r\n");
+        builder.append("Content-Range: bytes "+start+"-"+(end - 1)+"/"+metadata.size()+"\r\n");
+        builder.append("Content-Length: "+(end - start)+"\r\n");
+        builder.append(generateValidatorHeader(metadata));
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
         builder.append("\r\n");
         return builder.toString();
     }
 
-    private static String generateErrorResponse(int statusCode,String message){
+    /**
+     * 多个区间的206响应头，响应体为multipart/byteranges
+     * @param metadata
+     * @param contentLength 包括各部分的分隔头和结尾
+     * @param keepAlive
+     * @return
+     */
+    static String generateMultipartHeader(FileMetadata metadata,long contentLength,boolean keepAlive){
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 206 Partial Content\r\n");
+        builder.append("Content-Type: multipart/byteranges; boundary="+MULTIPART_BOUNDARY+"\r\n");
+        builder.append("Content-Length: "+contentLength+"\r\n");
+        builder.append(generateValidatorHeader(metadata));
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        return builder.toString();
+    }
+
+    static String generatePartHeader(FileMetadata metadata,long start,long end){
+        StringBuilder builder = new StringBuilder();
+        builder.append("\r\n--"+MULTIPART_BOUNDARY+"\r\n");
+        builder.append("Content-Type: ");
+        builder.append(metadata.contentType());
+        builder.append("\r\n");
+        builder.append("Content-Range: bytes "+start+"-"+(end - 1)+"/"+metadata.size()+"\r\n");
+        builder.append("\r\n");
+        return builder.toString();
+    }
+
+    static ByteBuffer multipartTrailerBuffer(){
+        return MULTIPART_TRAILER.duplicate();
+    }
+
+    static String generateRangeNotSatisfiableResponse(long size,boolean keepAlive){
+        String message = "Range Not Satisfiable";
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 416 "+message+"\r\n");
+        builder.append("Content-Type: text/plain\r\n");
+        builder.append("Content-Range: bytes */"+size+"\r\n");
+        builder.append("Content-Length: "+message.length()+"\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
+        builder.append("\r\n");
+        builder.append(message);
+        return builder.toString();
+    }
+
+    /**
+     * Connection头连同响应头结尾的空行，与缓存的响应头拼接后通过gathering write一起写出。
+     * @param keepAlive
+     * @return
+     */
+    static ByteBuffer connectionHeaderBuffer(boolean keepAlive){
+        return (keepAlive ? KEEP_ALIVE_HEADER : CLOSE_HEADER).duplicate();
+    }
+
+    static String generateConnectionHeader(boolean keepAlive){
+        if(keepAlive){
+            return "Connection: keep-alive\r\n";
+        }
+        return "Connection: close\r\n";
+    }
+
+    private static ByteBuffer toReadOnlyDirectBuffer(String str){
+        byte[] bytes = str.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    static String generateErrorResponse(int statusCode,String message,boolean keepAlive){
         StringBuilder builder = new StringBuilder();
         builder.append("HTTP/1.1 "+statusCode+" "+message+"\r\n");
         builder.append("Content-Type: text/plain\r\n");
         builder.append("Content-Length: "+message.length()+"\r\n");
+        builder.append(generateConnectionHeader(keepAlive));
         builder.append("\r\n");
         builder.append(message);
         return builder.toString();
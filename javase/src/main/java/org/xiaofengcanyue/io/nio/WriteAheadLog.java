@@ -0,0 +1,736 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 分段的预写日志(write-ahead log)。每条记录有一个从0开始递增的序号，磁盘格式为
+ * <pre>
+ * 长度(4) CRC32(4) 内容
+ * </pre>
+ * CRC32覆盖长度和内容，全零的区域不会被当成有效记录。
+ *
+ * 多个线程追加记录时组提交：记录先复制到内存中的批次，由专门的写入线程把积累的所有批次写入并只force一次，
+ * 追加线程等待覆盖自己记录的那次force，append返回时记录已经落盘。
+ * 追加线程自己不做I/O，它被中断时不会因ClosedByInterruptException关闭段文件的通道，使其他线程的追加也失败。
+ * 段文件以其第一条记录的序号命名，写满segmentSize后新建下一段；超过maxSegments时删除最旧的段，
+ * 也可以在检查点之后调用deleteBefore删除不再需要的段。
+ * 打开时校验最后一段，截断末尾不完整的记录(写入过程中崩溃)。Reader以内存映射读取段文件，用于重放。
+ */
+public class WriteAheadLog implements Closeable {
+
+    static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".wal";
+
+    /**
+     * 一批连续的记录，newSegment为true时从这批开始写入新的段
+     */
+    private static final class Batch{
+        private final ByteBuffer buffer;
+        private final long firstSequence;
+        private final boolean newSegment;
+        private long endSequence;
+
+        Batch(ByteBuffer buffer,long firstSequence,boolean newSegment){
+            this.buffer = buffer;
+            this.firstSequence = firstSequence;
+            this.endSequence = firstSequence;
+            this.newSegment = newSegment;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int batchSize;
+    private int maxSegments = Integer.MAX_VALUE;
+    private long maxPendingBytes = 16L * 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    /**
+     * 有新的记录或者已关闭时通知写入线程
+     */
+    private final Condition batchesReady = lock.newCondition();
+    private final ArrayDeque<Batch> sealed = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private Batch current;
+    private long nextSequence;
+    private long durableSequence;
+    /**
+     * 已分配到当前段(包括还未写入的)的字节数，用于决定何时换段
+     */
+    private long segmentBytes;
+    private long pendingBytes;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * 段序号到文件，访问时同步在其自身上
+     */
+    private final TreeMap<Long,Path> segments = new TreeMap<>();
+    /**
+     * 当前段的通道，只由写入线程访问
+     */
+    private FileChannel channel;
+    private final Thread writer;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final CRC32 crc = new CRC32();
+
+    public WriteAheadLog(Path directory) throws IOException{
+        this(directory,64L * 1024 * 1024,256 * 1024);
+    }
+
+    /**
+     * @param directory 不存在时创建，已有日志时从最后一条有效记录之后继续
+     * @param segmentSize 段文件的大小上限，不超过Integer.MAX_VALUE，单条记录比它大时独占一段
+     * @param batchSize 批次缓冲区大小，大于它的记录单独成为一批
+     * @throws IOException
+     */
+    public WriteAheadLog(Path directory,long segmentSize,int batchSize) throws IOException{
+        if(segmentSize <= HEADER_SIZE || segmentSize > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("段大小超出范围：" + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        Files.createDirectories(directory);
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory,"*" + SUFFIX)){
+            for(Path path : stream){
+                String name = path.getFileName().toString();
+                try{
+                    segments.put(Long.parseLong(name.substring(0,name.length() - SUFFIX.length())),path);
+                }catch (NumberFormatException ignored){
+                }
+            }
+        }
+        if(segments.isEmpty()){
+            openSegment(0);
+        }else{
+            recover(segments.lastKey(),segments.lastEntry().getValue());
+        }
+        writer = new Thread(this::writeLoop,"wal-writer-" + directory.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 扫描最后一段，截断第一条无效记录及之后的内容
+     */
+    private void recover(long base,Path path) throws IOException{
+        channel = FileChannel.open(path,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        long size = channel.size();
+        long count = 0;
+        long valid = 0;
+        if(size > 0){
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+            try{
+                int length;
+                while((length = frameLength(mapped,(int) valid,crc)) > 0){
+                    valid += HEADER_SIZE + length;
+                    count++;
+                }
+            }finally {
+                DirectBuffers.release(mapped);
+            }
+        }
+        if(valid < size){
+            channel.truncate(valid);
+            channel.force(true);
+        }
+        channel.position(valid);
+        nextSequence = base + count;
+        durableSequence = nextSequence;
+        segmentBytes = valid;
+    }
+
+    /**
+     * 校验position处的记录
+     * @return 记录内容的长度，不是完整有效的记录时返回-1
+     */
+    static int frameLength(ByteBuffer buffer,int position,CRC32 crc){
+        if(buffer.limit() - position < HEADER_SIZE){
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if(length <= 0 || length > buffer.limit() - position - HEADER_SIZE){
+            return -1;
+        }
+        ByteBuffer content = buffer.duplicate();
+        content.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+        return checksum(crc,length,content) == buffer.getInt(position + 4) ? length : -1;
+    }
+
+    private static int checksum(CRC32 crc,int length,ByteBuffer content){
+        crc.reset();
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param maxSegments 保留的最多段数(包括当前段)，换段时删除多出的最旧的段
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = Math.max(1,maxSegments);
+    }
+
+    /**
+     * @param maxPendingBytes 尚未写入的字节数上限，超过时append等待
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public long append(byte[] record) throws IOException{
+        return append(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 追加一条记录并等待它落盘
+     * @param record 剩余的字节为记录内容，不能为空
+     * @return 记录的序号
+     * @throws IOException 写入或force失败，之后所有的append都会失败
+     */
+    public long append(ByteBuffer record) throws IOException{
+        int length = record.remaining();
+        if(length == 0){
+            throw new IllegalArgumentException("记录不能为空");
+        }
+        lock.lock();
+        try{
+            while(pendingBytes >= maxPendingBytes && failure == null && !closed){
+                changed.awaitUninterruptibly();
+            }
+            checkOpen();
+            long sequence = add(record,length);
+            batchesReady.signal();
+            while(durableSequence <= sequence){
+                if(failure != null){
+                    throw failure;
+                }
+                changed.awaitUninterruptibly();
+            }
+            return sequence;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException{
+        if(failure != null){
+            throw failure;
+        }
+        if(closed){
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * 调用时需持有lock
+     */
+    private long add(ByteBuffer record,int length){
+        int frame = HEADER_SIZE + length;
+        boolean roll = segmentBytes > 0 && segmentBytes + frame > segmentSize;
+        if(roll || current == null || current.buffer.remaining() < frame){
+            if(current != null){
+                sealed.add(current);
+            }
+            current = new Batch(takeBuffer(frame),nextSequence,roll);
+            if(roll){
+                segmentBytes = 0;
+            }
+        }
+        ByteBuffer buffer = current.buffer;
+        int position = buffer.position();
+        buffer.putInt(length).putInt(0).put(record);
+        ByteBuffer content = buffer.duplicate();
+        content.limit(position + frame).position(position + HEADER_SIZE);
+        buffer.putInt(position + 4,checksum(crc,length,content));
+        current.endSequence = ++nextSequence;
+        segmentBytes += frame;
+        pendingBytes += frame;
+        return current.endSequence - 1;
+    }
+
+    /**
+     * 调用时需持有lock
+     */
+    private ByteBuffer takeBuffer(int length){
+        if(length > batchSize){
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(batchSize);
+    }
+
+    /**
+     * 写入线程：等待新的批次并写入，关闭后写完剩余的批次再退出；写入失败后不再写入
+     */
+    private void writeLoop(){
+        lock.lock();
+        try{
+            while(failure == null){
+                while(sealed.isEmpty() && current == null && !closed){
+                    batchesReady.awaitUninterruptibly();
+                }
+                if(sealed.isEmpty() && current == null){
+                    return;
+                }
+                writeBatches();
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只由写入线程调用，调用时需持有lock。取走所有积累的批次，释放锁后写入并force，再重新获得锁
+     */
+    private void writeBatches(){
+        List<Batch> toWrite = new ArrayList<>(sealed);
+        sealed.clear();
+        if(current != null){
+            toWrite.add(current);
+            current = null;
+        }
+        if(toWrite.isEmpty()){
+            return;
+        }
+        IOException error = null;
+        lock.unlock();
+        try{
+            for(Batch batch : toWrite){
+                if(batch.newSegment){
+                    rollTo(batch.firstSequence);
+                }
+                batch.buffer.flip();
+                while(batch.buffer.hasRemaining()){
+                    channel.write(batch.buffer);
+                }
+            }
+            channel.force(false);
+            forces.incrementAndGet();
+            batches.addAndGet(toWrite.size());
+        }catch (IOException e){
+            error = e;
+        }finally {
+            lock.lock();
+        }
+        if(error != null){
+            failure = error;
+        }else{
+            durableSequence = toWrite.get(toWrite.size() - 1).endSequence;
+        }
+        for(Batch batch : toWrite){
+            pendingBytes -= batch.buffer.limit();
+            if(batch.buffer.capacity() == batchSize && freeBuffers.size() < 4){
+                batch.buffer.clear();
+                freeBuffers.add(batch.buffer);
+            }
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * 只由写入线程调用：force并关闭当前段，新建以base命名的段，再按maxSegments删除最旧的段
+     */
+    private void rollTo(long base) throws IOException{
+        channel.force(false);
+        forces.incrementAndGet();
+        channel.close();
+        openSegment(base);
+        List<Path> expired = new ArrayList<>();
+        synchronized (segments){
+            while(segments.size() > maxSegments){
+                expired.add(segments.pollFirstEntry().getValue());
+            }
+        }
+        for(Path path : expired){
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void openSegment(long base) throws IOException{
+        Path path = directory.resolve(String.format("%020d%s",base,SUFFIX));
+        channel = FileChannel.open(path,StandardOpenOption.CREATE_NEW,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        synchronized (segments){
+            segments.put(base,path);
+        }
+        forceDirectory();
+    }
+
+    /**
+     * 新建的段文件在目录项落盘之后才不会因崩溃丢失。Linux上可以force以只读方式打开的目录，其他系统上忽略
+     */
+    private void forceDirectory(){
+        try(FileChannel dir = FileChannel.open(directory,StandardOpenOption.READ)){
+            dir.force(true);
+        }catch (IOException ignored){
+        }
+    }
+
+    /**
+     * 删除所有记录的序号都小于sequence的段，当前段不会被删除。用于检查点之后回收空间
+     * @param sequence 仍需保留的第一条记录的序号
+     * @return 删除的段数
+     * @throws IOException
+     */
+    public int deleteBefore(long sequence) throws IOException{
+        List<Path> expired = new ArrayList<>();
+        synchronized (segments){
+            while(segments.size() > 1){
+                Long next = segments.higherKey(segments.firstKey());
+                if(next > sequence){
+                    break;
+                }
+                expired.add(segments.pollFirstEntry().getValue());
+            }
+        }
+        for(Path path : expired){
+            Files.deleteIfExists(path);
+        }
+        return expired.size();
+    }
+
+    /**
+     * @return 仍保留的第一条记录的序号
+     */
+    public long getFirstSequence(){
+        synchronized (segments){
+            return segments.firstKey();
+        }
+    }
+
+    /**
+     * @return 下一条追加的记录的序号
+     */
+    public long getNextSequence(){
+        lock.lock();
+        try{
+            return nextSequence;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 序号小于它的记录都已落盘
+     */
+    public long getDurableSequence(){
+        lock.lock();
+        try{
+            return durableSequence;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSegmentCount(){
+        synchronized (segments){
+            return segments.size();
+        }
+    }
+
+    public long getBatches(){
+        return batches.get();
+    }
+
+    public long getForces(){
+        return forces.get();
+    }
+
+    /**
+     * 从序号为sequence的记录开始读取，读到已落盘的最后一条为止；之后追加的记录落盘后可以继续读到
+     * @param sequence 不能小于getFirstSequence()
+     * @return
+     * @throws IOException
+     */
+    public Reader reader(long sequence) throws IOException{
+        if(sequence < getFirstSequence()){
+            throw new IllegalArgumentException("记录已删除：" + sequence);
+        }
+        return new Reader(sequence);
+    }
+
+    /**
+     * 以内存映射按顺序读取记录。定位到某个序号时先按段文件名找到所在的段，再在段内按长度跳过之前的记录。
+     * 不是线程安全的。
+     */
+    public final class Reader implements Closeable{
+        private final CRC32 readerCrc = new CRC32();
+        private long sequence;
+        private long segmentBase = -1;
+        private MappedByteBuffer mapped;
+        private ByteBuffer record;
+        private int position;
+
+        private Reader(long sequence){
+            this.sequence = sequence;
+        }
+
+        /**
+         * 读取下一条记录
+         * @return 没有已落盘的记录时返回false，之后可以再次调用
+         * @throws IOException 记录损坏或所在的段已被删除
+         */
+        public boolean next() throws IOException{
+            if(sequence >= getDurableSequence()){
+                return false;
+            }
+            if(mapped == null || mapped.limit() - position < HEADER_SIZE){
+                map();
+            }
+            int length = frameLength(mapped,position,readerCrc);
+            if(length < 0 && mapped.getInt(position) > mapped.limit() - position - HEADER_SIZE){
+                /**
+                 映射的大小是当时的file.size()，其中包括已写入但还没有落盘的批次，
+                 记录可能在映射之后才写完并落盘，跨过了映射的结尾，重新映射一次
+                 */
+                map();
+                length = frameLength(mapped,position,readerCrc);
+            }
+            if(length < 0){
+                throw new IOException("损坏的记录：" + sequence);
+            }
+            record.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+            position += HEADER_SIZE + length;
+            sequence++;
+            return true;
+        }
+
+        /**
+         * @return 刚读到的记录的序号
+         */
+        public long sequence(){
+            return sequence - 1;
+        }
+
+        /**
+         * @return 刚读到的记录内容，只读，调用next或close后失效；每次返回同一个对象
+         */
+        public ByteBuffer record(){
+            return record;
+        }
+
+        /**
+         * 映射sequence所在的段：同一段文件变长后重新映射并保持位置，否则定位到新的段
+         */
+        private void map() throws IOException{
+            long base;
+            Path path;
+            synchronized (segments){
+                Map.Entry<Long,Path> entry = segments.floorEntry(sequence);
+                if(entry == null){
+                    throw new IOException("记录已删除：" + sequence);
+                }
+                base = entry.getKey();
+                path = entry.getValue();
+            }
+            boolean sameSegment = base == segmentBase;
+            release();
+            try(FileChannel file = FileChannel.open(path,StandardOpenOption.READ)){
+                mapped = file.map(FileChannel.MapMode.READ_ONLY,0,file.size());
+            }
+            record = mapped.duplicate();
+            if(!sameSegment){
+                segmentBase = base;
+                position = 0;
+                for(long skip = base;skip < sequence;skip++){
+                    int length = frameLength(mapped,position,readerCrc);
+                    if(length < 0){
+                        throw new IOException("损坏的记录：" + skip);
+                    }
+                    position += HEADER_SIZE + length;
+                }
+            }
+        }
+
+        private void release(){
+            if(mapped != null){
+                DirectBuffers.release(mapped);
+                mapped = null;
+                record = null;
+            }
+        }
+
+        @Override
+        public void close(){
+            release();
+        }
+    }
+
+    /**
+     * 等待写入线程写入并force尚未写入的记录，然后关闭当前段。等待中的append仍会完成，之后的append失败。
+     * 等待期间被中断时继续等待，返回前恢复中断状态
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException{
+        lock.lock();
+        try{
+            if(closed){
+                return;
+            }
+            closed = true;
+            batchesReady.signal();
+            changed.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while(writer.isAlive()){
+            try{
+                writer.join();
+            }catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        lock.lock();
+        try{
+            if(failure != null){
+                throw failure;
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        benchmark(Paths.get("wal-benchmark"),8,20000,128);
+    }
+
+    /**
+     * threads个线程各追加records条recordSize字节的记录，比较组提交和每条记录write+force(持有同一把锁)的速度，
+     * 然后用Reader重放并校验全部记录，再模拟检查点删除旧段
+     * @param directory 结束后删除
+     * @param threads
+     * @param records 每个线程的记录数
+     * @param recordSize 至少为8，前8个字节为线程号和线程内序号
+     * @throws Exception
+     */
+    public static void benchmark(Path directory,int threads,int records,int recordSize) throws Exception{
+        final long total = (long) threads * records;
+        try(WriteAheadLog log = new WriteAheadLog(directory,4L * 1024 * 1024,256 * 1024)){
+            long elapsed = runWriters(threads,records,recordSize,new Appender() {
+                @Override
+                public long append(ByteBuffer record) throws IOException {
+                    return log.append(record);
+                }
+            });
+            System.out.println(String.format("WriteAheadLog ===> %d records in %.1f ms, %.0f records/s, %d batches, %d forces, %d segments",
+                    total,elapsed / 1e6,total / (elapsed / 1e9),log.getBatches(),log.getForces(),log.getSegmentCount()));
+
+            long[] expected = new long[threads];
+            long begin = System.nanoTime();
+            long count = 0;
+            try(Reader reader = log.reader(0)){
+                while(reader.next()){
+                    ByteBuffer record = reader.record();
+                    int thread = record.getInt(record.position());
+                    int index = record.getInt(record.position() + 4);
+                    if(record.remaining() != recordSize || reader.sequence() != count || index != expected[thread]++){
+                        throw new IllegalStateException("重放的记录不一致：" + reader.sequence());
+                    }
+                    count++;
+                }
+            }
+            System.out.println(String.format("replay ===> %d records in %.1f ms",count,(System.nanoTime() - begin) / 1e6));
+            if(count != total){
+                throw new IllegalStateException("重放的记录数不一致：" + count);
+            }
+
+            int deleted = log.deleteBefore(total / 2);
+            System.out.println("checkpoint at " + total / 2 + " ===> deleted " + deleted + " segments, first sequence " + log.getFirstSequence());
+        }
+
+        Path naive = directory.resolve("naive.log");
+        try(final FileChannel channel = FileChannel.open(naive,StandardOpenOption.CREATE,StandardOpenOption.WRITE)){
+            final int naiveRecords = Math.max(1,records / 10);
+            final AtomicLong sequence = new AtomicLong();
+            long elapsed = runWriters(threads,naiveRecords,recordSize,new Appender() {
+                @Override
+                public long append(ByteBuffer record) throws IOException {
+                    synchronized (channel){
+                        while(record.hasRemaining()){
+                            channel.write(record);
+                        }
+                        channel.force(false);
+                        return sequence.getAndIncrement();
+                    }
+                }
+            });
+            long naiveTotal = (long) threads * naiveRecords;
+            System.out.println(String.format("write+force per record ===> %d records in %.1f ms, %.0f records/s",
+                    naiveTotal,elapsed / 1e6,naiveTotal / (elapsed / 1e9)));
+        }finally {
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+                for(Path path : stream){
+                    Files.delete(path);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private interface Appender{
+        long append(ByteBuffer record) throws IOException;
+    }
+
+    private static long runWriters(int threads,final int records,final int recordSize,final Appender appender) throws InterruptedException{
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0;t < threads;t++){
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer record = ByteBuffer.allocate(recordSize);
+                    try{
+                        start.await();
+                        for(int i = 0;i < records;i++){
+                            record.clear();
+                            record.putInt(0,thread).putInt(4,i);
+                            appender.append(record);
+                        }
+                    }catch (InterruptedException | IOException e){
+                        e.printStackTrace();
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            },"wal-writer-" + t).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
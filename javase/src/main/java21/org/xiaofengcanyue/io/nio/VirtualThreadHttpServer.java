@@ -0,0 +1,371 @@
+package org.xiaofengcanyue.io.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 与StaticFileHttpServer功能相近的另一种服务方式：每个连接一个虚拟线程，连接上的代码是普通的阻塞式读写。
+ * 虚拟线程阻塞在socket上时会让出载体线程，因此不需要CompletionHandler也能用少量平台线程服务大量连接。
+ * 需要JDK 21，只在jdk21 profile中编译(mvn -Pjdk21 compile)。
+ *
+ * 与异步通道版本共用HttpRequestParser、StaticFileCache、FileMetadataCache和响应头的生成方法；
+ * 支持GET/HEAD、持久连接、ETag/Last-Modified条件请求和单个区间的Range请求，多区间Range按完整文件返回，不提供gzip版本。
+ * 读取超时通过socket的SO_TIMEOUT实现，阻塞写没有超时，由内核发送缓冲区限制单个连接积压的数据。
+ */
+public class VirtualThreadHttpServer implements AutoCloseable{
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreadHttpServer.class.getName());
+
+    private final Path root;
+    private final ServerConfig config;
+    private final StaticFileCache cache;
+    private final FileMetadataCache metadataCache;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    /**
+     * 连接数达到上限时acceptor阻塞在acquire上，新连接留在内核的accept队列中
+     */
+    private final Semaphore connectionPermits;
+    private final Thread acceptor;
+
+    private VirtualThreadHttpServer(Path root,ServerConfig config,StaticFileCache cache) throws IOException{
+        this.root = root;
+        this.config = config;
+        this.cache = cache;
+        this.metadataCache = cache != null ? cache.metadata() : new FileMetadataCache();
+        this.connectionPermits = new Semaphore(config.getMaxConnections());
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+        serverChannel.bind(new InetSocketAddress(config.getPort()),config.getBacklog());
+        this.acceptor = new Thread(this::acceptLoop,"virtual-http-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    public static VirtualThreadHttpServer start(Path root,ServerConfig config,StaticFileCache cache) throws IOException{
+        VirtualThreadHttpServer server = new VirtualThreadHttpServer(root,config,cache);
+        server.acceptor.start();
+        LOGGER.log(Level.INFO,"服务器已经启动(虚拟线程)，文件根目录为："+root+"，"+config);
+        return server;
+    }
+
+    private void acceptLoop(){
+        try{
+            while(true){
+                connectionPermits.acquire();
+                SocketChannel channel;
+                try{
+                    channel = serverChannel.accept();
+                }catch (IOException e){
+                    connectionPermits.release();
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try{
+                        serve(channel);
+                    }finally {
+                        connectionPermits.release();
+                    }
+                });
+            }
+        }catch (ClosedChannelException | InterruptedException e){
+            LOGGER.log(Level.FINE,"acceptor已停止");
+        }catch (IOException e){
+            LOGGER.log(Level.SEVERE,e.getMessage(),e);
+        }
+    }
+
+    /**
+     * 一个连接上的请求循环，运行在独立的虚拟线程中
+     */
+    private void serve(SocketChannel channel){
+        try(channel){
+            channel.setOption(StandardSocketOptions.TCP_NODELAY,config.isTcpNoDelay());
+            if(config.getSendBufferSize() > 0){
+                channel.setOption(StandardSocketOptions.SO_SNDBUF,config.getSendBufferSize());
+            }
+            /**
+             SocketChannel的read不支持超时，通过socket适配器的输入流读取时SO_TIMEOUT才生效
+             */
+            channel.socket().setSoTimeout((int) config.getReadTimeoutMillis());
+            InputStream input = channel.socket().getInputStream();
+            ByteBuffer requestBuffer = ByteBuffer.allocate(StaticFileHttpServer.REQUEST_BUFFER_SIZE);
+            HttpRequestParser parser = new HttpRequestParser();
+            while(true){
+                boolean keepAlive;
+                long contentLength;
+                try{
+                    requestBuffer = readRequest(input,requestBuffer,parser);
+                    if(requestBuffer == null){
+                        return;
+                    }
+                    keepAlive = parser.isKeepAlive();
+                    contentLength = parser.contentLength();
+                    if(contentLength > StaticFileHttpServer.MAX_DISCARDED_BODY_SIZE){
+                        keepAlive = false;
+                    }
+                    respond(channel,parser,keepAlive);
+                }catch (HttpRequestParser.BadRequestException e){
+                    writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateErrorResponse(e.getStatusCode(),e.getMessage(),false).getBytes()));
+                    return;
+                }
+                requestBuffer.flip();
+                requestBuffer.position(parser.requestLength());
+                requestBuffer.compact();
+                parser.reset();
+                if(!keepAlive || !discardBody(input,requestBuffer,contentLength)){
+                    return;
+                }
+            }
+        }catch (SocketTimeoutException | ClosedChannelException e){
+            LOGGER.log(Level.FINE,"连接关闭：{0}",e.toString());
+        }catch (IOException e){
+            LOGGER.log(Level.WARNING,e.getMessage(),e);
+        }
+    }
+
+    /**
+     * 阻塞读取直到缓冲区中有完整的请求头，请求头超过容量时成倍扩大缓冲区，超过HttpRequestParser.MAX_REQUEST_SIZE时由parser报告431
+     * @return 包含完整请求头的缓冲区(可能是扩大后的新缓冲区)，客户端关闭了连接时返回null
+     */
+    private static ByteBuffer readRequest(InputStream input,ByteBuffer requestBuffer,HttpRequestParser parser) throws IOException{
+        while(!parser.parse(requestBuffer)){
+            if(!requestBuffer.hasRemaining()){
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(requestBuffer.capacity() * 2,HttpRequestParser.MAX_REQUEST_SIZE));
+                requestBuffer.flip();
+                larger.put(requestBuffer);
+                requestBuffer = larger;
+            }
+            int len = input.read(requestBuffer.array(),requestBuffer.arrayOffset() + requestBuffer.position(),requestBuffer.remaining());
+            if(len == -1){
+                return null;
+            }
+            requestBuffer.position(requestBuffer.position() + len);
+        }
+        return requestBuffer;
+    }
+
+    /**
+     * 丢弃请求体，否则它会被当作下一个请求解析；缓冲区中请求体之后的字节属于下一个流水线请求
+     * @return 客户端在请求体结束之前关闭了连接时返回false
+     */
+    private static boolean discardBody(InputStream input,ByteBuffer requestBuffer,long contentLength) throws IOException{
+        int buffered = (int) Math.min(contentLength,requestBuffer.position());
+        requestBuffer.flip();
+        requestBuffer.position(buffered);
+        requestBuffer.compact();
+        long remaining = contentLength - buffered;
+        while(remaining > 0){
+            /**
+             请求体比缓冲区中的字节多时缓冲区已经是空的，可以直接用来接收丢弃的字节
+             */
+            int len = input.read(requestBuffer.array(),requestBuffer.arrayOffset(),(int) Math.min(remaining,requestBuffer.capacity()));
+            if(len == -1){
+                return false;
+            }
+            remaining -= len;
+        }
+        return true;
+    }
+
+    /**
+     * @param keepAlive 响应之后是否保持连接
+     */
+    private void respond(SocketChannel channel,HttpRequestParser parser,boolean keepAlive) throws IOException{
+        HttpRequestParser.Method method = parser.method();
+        if(method == HttpRequestParser.Method.OTHER){
+            writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateErrorResponse(501,"Not Implemented",keepAlive).getBytes()));
+            return;
+        }
+        boolean headOnly = method == HttpRequestParser.Method.HEAD;
+        Path filePath = StaticFileHttpServer.getFilePath(root,parser.path());
+        if(filePath == null){
+            writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateErrorResponse(403,"Forbidden",keepAlive).getBytes()));
+            return;
+        }
+        StaticFileCache.Entry entry = cache == null ? null : cache.get(filePath);
+        FileMetadata metadata;
+        if(entry != null){
+            metadata = entry.metadata();
+        }else{
+            BasicFileAttributes attributes = StaticFileHttpServer.readRegularFileAttributes(filePath);
+            if(attributes == null){
+                writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateErrorResponse(404,"Not Found",keepAlive).getBytes()));
+                return;
+            }
+            metadata = metadataCache.get(filePath,attributes.size(),attributes.lastModifiedTime());
+        }
+        if(isNotModified(parser,metadata)){
+            writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateNotModifiedResponse(metadata,keepAlive).getBytes()));
+            return;
+        }
+
+        long start = 0;
+        long end = metadata.size();
+        ByteBuffer header;
+        List<long[]> ranges = selectRanges(parser,metadata);
+        if(ranges != null && ranges.isEmpty()){
+            writeFully(channel,ByteBuffer.wrap(StaticFileHttpServer.generateRangeNotSatisfiableResponse(metadata.size(),keepAlive).getBytes()));
+            return;
+        }else if(ranges != null && ranges.size() == 1){
+            start = ranges.get(0)[0];
+            end = ranges.get(0)[1];
+            header = ByteBuffer.wrap(StaticFileHttpServer.generatePartialContentHeader(metadata,start,end,keepAlive).getBytes());
+        }else{
+            header = ByteBuffer.wrap(StaticFileHttpServer.generateFileContentResponseHeader(metadata,keepAlive).getBytes());
+        }
+        if(headOnly){
+            end = start;
+        }
+        if(entry != null){
+            ByteBuffer body = entry.body();
+            body.limit((int) end).position((int) start);
+            writeFully(channel,header,body);
+        }else{
+            writeFully(channel,header);
+            if(end > start){
+                try(FileChannel file = FileChannel.open(filePath,StandardOpenOption.READ)){
+                    transferFully(file,start,end,channel);
+                }
+            }
+        }
+    }
+
+    private static boolean isNotModified(HttpRequestParser parser,FileMetadata metadata){
+        int index = parser.findHeader("If-None-Match");
+        if(index != -1){
+            return metadata.matchesIfNoneMatch(parser.headerValue(index));
+        }
+        index = parser.findHeader("If-Modified-Since");
+        return index != -1 && metadata.notModifiedSince(parser.headerValue(index));
+    }
+
+    private static List<long[]> selectRanges(HttpRequestParser parser,FileMetadata metadata){
+        int index = parser.findHeader("Range");
+        if(index == -1){
+            return null;
+        }
+        int ifRange = parser.findHeader("If-Range");
+        if(ifRange != -1 && !metadata.matchesIfRange(parser.headerValue(ifRange))){
+            return null;
+        }
+        return ByteRanges.parse(parser.headerValue(index),metadata.size());
+    }
+
+    private static void writeFully(SocketChannel channel,ByteBuffer... buffers) throws IOException{
+        long remaining = 0;
+        for(ByteBuffer buffer : buffers){
+            remaining += buffer.remaining();
+        }
+        while(remaining > 0){
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * transferTo每次可能只传输一部分，需要循环直到写完
+     */
+    private static void transferFully(FileChannel file,long position,long end,SocketChannel channel) throws IOException{
+        while(position < end){
+            long transferred = file.transferTo(position,end - position,channel);
+            if(transferred <= 0 && position >= file.size()){
+                throw new IOException("文件在发送过程中被截断");
+            }
+            position += transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        serverChannel.close();
+        acceptor.interrupt();
+        executor.shutdownNow();
+        try{
+            executor.awaitTermination(5,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 与AboutSocketChannel.startSimpleServer相同，返回固定字符串后关闭连接，但每个连接在自己的虚拟线程中处理，慢客户端不会阻塞accept。
+     * @param port
+     * @throws IOException
+     */
+    public static void startSimpleServer(int port) throws IOException{
+        try(ServerSocketChannel channel = ServerSocketChannel.open();
+            ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()){
+            channel.bind(new InetSocketAddress("localhost",port));
+            while(true){
+                SocketChannel sc = channel.accept();
+                executor.execute(() -> {
+                    try(sc){
+                        sc.write(ByteBuffer.wrap("Hello".getBytes("UTF-8")));
+                    }catch (IOException e){
+                        LOGGER.log(Level.WARNING,e.getMessage(),e);
+                    }
+                });
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        compareWithAsync(Files.createTempDirectory("load"),64,5000);
+    }
+
+    /**
+     * 在相同的请求组合和并发连接数下，比较异步通道版本与虚拟线程版本的吞吐量和延迟分布
+     * @param root 测试文件所在目录
+     * @param connections
+     * @param durationMillis
+     * @throws Exception
+     */
+    public static void compareWithAsync(Path root,int connections,long durationMillis) throws Exception{
+        Logger.getLogger("org.xiaofengcanyue.io.nio").setLevel(Level.WARNING);
+        List<String> files = HttpLoadGenerator.createFiles(root,1024,64 * 1024,1024 * 1024);
+        HttpLoadGenerator generator = new HttpLoadGenerator();
+        generator.setConnections(connections);
+        generator.setDurationMillis(durationMillis);
+        generator.addRequest(files.get(0),80);
+        generator.addRequest(files.get(1),15);
+        generator.addRequest(files.get(2),5);
+        ServerConfig config = new ServerConfig();
+
+        for(boolean keepAlive : new boolean[]{true,false}){
+            generator.setKeepAlive(keepAlive);
+            String mode = keepAlive ? " keep-alive" : " close";
+            StaticFileHttpServer asyncServer = StaticFileHttpServer.open(root,config,StaticFileHttpServer.CopyStrategy.MAPPED,new StaticFileCache(),null);
+            try{
+                System.out.println(generator.run("AsynchronousChannelGroup(" + config.getThreads() + ")" + mode));
+            }finally {
+                asyncServer.close();
+            }
+            try(StaticFileCache virtualCache = new StaticFileCache()){
+                VirtualThreadHttpServer virtualServer = start(root,config,virtualCache);
+                try{
+                    System.out.println(generator.run("virtual threads" + mode));
+                }finally {
+                    virtualServer.close();
+                }
+            }
+        }
+    }
+}